@@ -1,29 +1,100 @@
 package aQute.jpm.lib;
 
+import java.io.IOException;
 import java.net.URI;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import aQute.service.library.Coordinate;
 import aQute.struct.struct;
 
 public class ArtifactData extends struct {
 	public byte[]		sha;
+	public long			size;
 	public long			time	= System.currentTimeMillis();
 	public String		error;
 	public URI			url;
-	boolean				busy	= false;
 	public String		file;
 	public String		name;
 	public boolean		local;
 	public Coordinate	coordinate;
 
-	synchronized void done() {
-		busy = false;
-		notifyAll();
+	/*
+	 * What we expect to download, if known. Not part of the persistent data
+	 */
+	byte[]				expectedSha;
+	long				expectedSize;
+
+	/*
+	 * The state of a download, null when the data is complete. The download is
+	 * shared by everybody that asked for it, it is only cancelled when nobody
+	 * is interested anymore.
+	 */
+	CompletableFuture<ArtifactData>	future;
+	Future< ? >						task;
+	final AtomicInteger				interest	= new AtomicInteger();
+
+	void start() {
+		future = new CompletableFuture<ArtifactData>();
 	}
 
-	public synchronized void sync() throws InterruptedException {
-		while (busy)
-			wait();
+	void done() {
+		if (future != null)
+			future.complete(this);
 	}
 
+	/**
+	 * Wait until the download is finished. A failed download has its error
+	 * set.
+	 */
+	public void sync() throws InterruptedException {
+		CompletableFuture<ArtifactData> f = future;
+		if (f == null)
+			return;
+		interest.incrementAndGet();
+		try {
+			f.get();
+		} catch (ExecutionException | CancellationException e) {
+			// error is set
+		} finally {
+			interest.decrementAndGet();
+		}
+	}
+
+	public boolean isDone() {
+		CompletableFuture<ArtifactData> f = future;
+		return f == null || f.isDone();
+	}
+
+	/**
+	 * Answer a new future for this artifact that completes when the download
+	 * is done, exceptionally if it failed. Cancelling the answered future, or
+	 * completing it by a timeout, withdraws the interest of the caller in the
+	 * download. When no one is interested anymore, the download is cancelled.
+	 */
+	CompletableFuture<ArtifactData> subscribe() {
+		final CompletableFuture<ArtifactData> view = new CompletableFuture<ArtifactData>();
+		final CompletableFuture<ArtifactData> f = future;
+		if (f == null) {
+			complete(view);
+			return view;
+		}
+		interest.incrementAndGet();
+		f.whenComplete((data, t) -> complete(view));
+		view.whenComplete((data, t) -> {
+			if (interest.decrementAndGet() == 0 && !f.isDone() && task != null)
+				task.cancel(true);
+		});
+		return view;
+	}
+
+	private void complete(CompletableFuture<ArtifactData> view) {
+		if (error != null)
+			view.completeExceptionally(new IOException(error));
+		else
+			view.complete(this);
+	}
 }
@@ -0,0 +1,263 @@
+package aQute.jpm.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.lib.io.IO;
+import aQute.lib.settings.Settings;
+
+/**
+ * Fetches a large artifact with a number of concurrent {@code Range} requests.
+ * On a high latency link a single TCP stream cannot fill the pipe, parallel
+ * streams can. The target file is preallocated and every chunk writes into
+ * its own region with positional writes. A chunk that breaks continues where
+ * it stopped. When the download fails, the progress of the chunks is kept with
+ * the part file so the next attempt only fetches what is missing.
+ * <p>
+ * When the size of an artifact is not known up front, the response of a
+ * normal request tells it. That response then supplies the first chunk.
+ * <p>
+ * The SHA-1 of a file cannot be composed from the digests of its parts, so
+ * the file is digested through a memory map when all chunks are written. At
+ * that moment the content is still in the page cache.
+ * <p>
+ * Each chunk is a separate transfer for the {@link HostLimiter}. Chunks run
+ * on the transfer executor since the download itself usually runs on the
+ * download executor and waits for them.
+ */
+class ChunkedDownload {
+	private final static Logger		logger				= LoggerFactory.getLogger(ChunkedDownload.class);
+	static final String				JPM_CHUNK_THRESHOLD	= "jpm.download.chunk.threshold";
+	static final String				JPM_CHUNKS			= "jpm.download.chunks";
+	static final int				DEFAULT_THRESHOLD	= 32 * 1024 * 1024;
+	static final int				DEFAULT_CHUNKS		= 4;
+	static final int				BUFFER				= 64 * 1024;
+
+	final Transport					transport;
+	final HostLimiter				hostLimiter;
+	final long						threshold;
+	final int						chunks;
+
+	ChunkedDownload(Transport transport, HostLimiter hostLimiter, long threshold, int chunks) {
+		this.transport = transport;
+		this.hostLimiter = hostLimiter;
+		this.threshold = threshold;
+		this.chunks = chunks;
+	}
+
+	ChunkedDownload(Transport transport, HostLimiter hostLimiter, Settings settings) {
+		this(transport, hostLimiter,
+				JustAnotherPackageManager.getInt(settings, JPM_CHUNK_THRESHOLD, DEFAULT_THRESHOLD),
+				JustAnotherPackageManager.getInt(settings, JPM_CHUNKS, DEFAULT_CHUNKS));
+	}
+
+	/**
+	 * Only http(s) downloads with a known size above the threshold are split
+	 */
+	boolean accepts(URI uri, long size) {
+		String scheme = uri.getScheme();
+		return chunks > 1 && threshold > 0 && size >= threshold
+			&& ("http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme));
+	}
+
+	byte[] fetch(URI uri, PartialDownload partial, long size) throws Exception {
+		return fetch(uri, partial, size, null, false);
+	}
+
+	/**
+	 * Fetch the uri into the part file of the partial download. When a
+	 * previous attempt broke, only what its chunks did not fetch yet is
+	 * requested. When this attempt breaks, the progress of the chunks is kept
+	 * for the next one, if the server has a validator for the resource.
+	 *
+	 * @param first an already opened response of a complete request, it
+	 *            supplies the first chunk, or null
+	 * @param slot if we hold a host slot for the first response
+	 * @return the SHA-1 of the file, or null if the server does not support
+	 *         ranges and the caller must fall back to a normal download
+	 */
+	byte[] fetch(final URI uri, PartialDownload partial, final long size, Transport.Response first,
+			final boolean slot) throws Exception {
+		final long chunkSize = (size + chunks - 1) / chunks;
+		final int n = (int) ((size + chunkSize - 1) / chunkSize);
+		PartialDownload.Validator previous = first == null ? partial.getChunks(uri, size, n) : null;
+		final AtomicReference<PartialDownload.Validator> validator = new AtomicReference<PartialDownload.Validator>(
+				previous);
+		final AtomicLongArray positions = new AtomicLongArray(n);
+		for (int i = 0; i < n; i++)
+			positions.set(i, previous != null ? previous.chunks[i] : i * chunkSize);
+		// taken by the first chunk, closed here if that chunk never ran
+		final AtomicReference<Transport.Response> opened = new AtomicReference<Transport.Response>(first);
+
+		try {
+			IO.mkdirs(partial.file.getParentFile());
+			if (previous == null)
+				partial.delete();
+			else
+				logger.debug("resuming the chunks of {}", uri);
+
+			try (final FileChannel channel = FileChannel.open(partial.file.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				// preallocate
+				if (previous == null)
+					channel.write(ByteBuffer.allocate(1), size - 1);
+
+				List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+				for (int i = 0; i < n; i++) {
+					final int index = i;
+					final long to = Math.min(size, (i + 1) * chunkSize);
+					if (positions.get(i) >= to)
+						continue;
+					futures.add(JustAnotherPackageManager.getTransferExecutor().submit(new Callable<Boolean>() {
+						@Override
+						public Boolean call() throws Exception {
+							Transport.Response response = index == 0 ? opened.getAndSet(null) : null;
+							return chunk(uri, channel, positions, index, to, size, response, response != null && slot,
+									validator);
+						}
+					}));
+				}
+
+				boolean ranged = true;
+				Exception failure = null;
+				for (Future<Boolean> f : futures) {
+					try {
+						ranged &= f.get();
+					} catch (ExecutionException e) {
+						if (failure == null)
+							failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+						for (Future<Boolean> other : futures)
+							other.cancel(true);
+					} catch (CancellationException e) {
+						// caused by another failure
+					}
+				}
+				if (!ranged) {
+					logger.debug("no range support for {}", uri);
+					partial.delete();
+					return null;
+				}
+				if (failure != null) {
+					keep(uri, partial, size, positions, validator.get());
+					throw failure;
+				}
+				logger.debug("fetched {} in {} chunks", uri, futures.size());
+				return JustAnotherPackageManager.sha1(channel, size);
+			}
+		} finally {
+			Transport.Response response = opened.getAndSet(null);
+			if (response != null) {
+				response.close();
+				if (slot)
+					hostLimiter.release(uri);
+			}
+		}
+	}
+
+	/**
+	 * Keep the progress of the chunks with the part file. A resource without
+	 * a validator cannot be resumed safely.
+	 */
+	private void keep(URI uri, PartialDownload partial, long size, AtomicLongArray positions,
+			PartialDownload.Validator validator) {
+		if (validator == null || validator.getIfRange() == null) {
+			partial.delete();
+			return;
+		}
+		PartialDownload.Validator v = new PartialDownload.Validator();
+		v.url = uri;
+		v.etag = validator.etag;
+		v.lastModified = validator.lastModified;
+		v.size = size;
+		v.chunks = new long[positions.length()];
+		for (int i = 0; i < v.chunks.length; i++)
+			v.chunks[i] = positions.get(i);
+		try {
+			partial.setChunks(v);
+		} catch (Exception e) {
+			logger.debug("cannot keep the progress of {}: {}", uri, e);
+			partial.delete();
+		}
+	}
+
+	/**
+	 * Fetch the rest of a chunk, from its position up to to, into the
+	 * channel. The position of the chunk is updated as the bytes are written.
+	 *
+	 * @param first a complete response that starts at the position, or null
+	 * @param slot if we hold a host slot for the first response
+	 * @param validator the validator of the resource, set from the first
+	 *            response that arrives. Once known, the resource must not
+	 *            change for the range requests.
+	 * @return false if the server does not support ranges
+	 */
+	private boolean chunk(URI uri, FileChannel channel, AtomicLongArray positions, int index, long to, long size,
+			Transport.Response first, boolean slot, AtomicReference<PartialDownload.Validator> validator)
+			throws Exception {
+		for (int attempt = 0;; attempt++) {
+			long position = positions.get(index);
+			boolean ranged = first == null;
+			if (ranged)
+				slot = hostLimiter.acquire(uri);
+			try (Transport.Response response = ranged ? request(uri, position, to, validator.get()) : first) {
+				first = null;
+				if (ranged) {
+					String range = response.getHeader("Content-Range");
+					if (response.getCode() != 206 || range == null
+						|| !range.trim().startsWith("bytes " + position + "-" + (to - 1) + "/" + size))
+						return false;
+				}
+				validator.compareAndSet(null, PartialDownload.getValidator(uri, response));
+
+				InputStream in = response.getStream();
+				byte[] buffer = new byte[BUFFER];
+				int n;
+				while (position < to && (n = in.read(buffer, 0, (int) Math.min(buffer.length, to - position))) > 0) {
+					ByteBuffer bb = ByteBuffer.wrap(buffer, 0, n);
+					while (bb.hasRemaining())
+						position += channel.write(bb, position);
+					positions.set(index, position);
+				}
+				if (position < to)
+					throw new IOException("Chunk ended early at " + position + " of " + uri);
+				return true;
+			} catch (IOException e) {
+				if (attempt >= transport.retries || Thread.currentThread().isInterrupted())
+					throw e;
+				logger.debug("chunk of {} broke at {}, resuming: {}", uri, positions.get(index), e.getMessage());
+			} finally {
+				if (slot)
+					hostLimiter.release(uri);
+				slot = false;
+			}
+		}
+	}
+
+	private Transport.Response request(URI uri, long position, long to, PartialDownload.Validator validator)
+			throws Exception {
+		Map<String,String> headers = new LinkedHashMap<String,String>();
+		headers.put("Range", "bytes=" + position + "-" + (to - 1));
+		String ifRange = validator == null ? null : validator.getIfRange();
+		if (ifRange != null)
+			headers.put("If-Range", ifRange);
+		return transport.request(uri, headers, false);
+	}
+}
@@ -0,0 +1,128 @@
+package aQute.jpm.lib;
+
+import java.io.File;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.lib.hex.Hex;
+import aQute.lib.io.IO;
+import aQute.libg.cryptography.SHA1;
+import aQute.service.library.Library.Phase;
+import aQute.service.library.Library.RevisionRef;
+import aQute.struct.struct;
+
+/**
+ * Persisted dependency closures. The closure of a released artifact does not
+ * change for a given library, so it is stored in the jpm home under the SHA-1
+ * of the root artifact and the resolution options. Installing the same
+ * artifact again, also after a remove, then needs no resolution at all.
+ * <p>
+ * Every entry records the fingerprint of the library settings it was resolved
+ * with. An entry with another fingerprint is stale and removed when it is
+ * read. Closures with snapshot dependencies are not stored.
+ */
+class ClosureCache {
+	private final static Logger	logger	= LoggerFactory.getLogger(ClosureCache.class);
+	// bump when the resolution rules change
+	static final int			FORMAT	= 1;
+
+	public static class Entry extends struct {
+		public String				root;
+		public boolean				optionals;
+		public String				fingerprint;
+		public long					created;
+		public List<RevisionRef>	closure	= list();
+	}
+
+	final File				dir;
+	private volatile String	fingerprint;
+
+	ClosureCache(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Set the library settings the closures are resolved with
+	 */
+	void setFingerprint(String... settings) {
+		try {
+			StringBuilder sb = new StringBuilder().append(FORMAT);
+			for (String s : settings)
+				sb.append('\n').append(s);
+			fingerprint = Hex.toHexString(SHA1.digest(sb.toString().getBytes("UTF-8")).digest()).toLowerCase();
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	String getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * Answer the persisted closure of a root artifact or null if there is no
+	 * valid one
+	 */
+	List<RevisionRef> get(byte[] root, boolean optionals) {
+		String fp = fingerprint;
+		if (fp == null)
+			return null;
+
+		File file = file(root, optionals);
+		if (!file.isFile())
+			return null;
+
+		try {
+			Entry entry = JustAnotherPackageManager.codec.dec().from(file).get(Entry.class);
+			if (fp.equals(entry.fingerprint))
+				return entry.closure;
+			logger.debug("stale closure {}, library settings changed", file);
+		} catch (Exception e) {
+			logger.debug("cannot read closure {}: {}", file, e);
+		}
+		IO.delete(file);
+		return null;
+	}
+
+	/**
+	 * Persist the closure of a root artifact
+	 */
+	void put(byte[] root, boolean optionals, List<RevisionRef> closure) {
+		String fp = fingerprint;
+		if (fp == null)
+			return;
+
+		for (RevisionRef ref : closure)
+			if (ref.phase == Phase.STAGING) {
+				logger.debug("not persisting the closure of {}, it has snapshots", Hex.toHexString(root));
+				return;
+			}
+
+		Entry entry = new Entry();
+		entry.root = Hex.toHexString(root).toLowerCase();
+		entry.optionals = optionals;
+		entry.fingerprint = fp;
+		entry.created = System.currentTimeMillis();
+		entry.closure.addAll(closure);
+
+		File file = file(root, optionals);
+		try {
+			IO.mkdirs(dir);
+			File tmp = IO.createTempFile(dir, file.getName(), ".tmp");
+			try {
+				JustAnotherPackageManager.codec.enc().to(tmp).put(entry);
+				IO.rename(tmp, file);
+			} finally {
+				IO.delete(tmp);
+			}
+		} catch (Exception e) {
+			logger.debug("cannot persist closure {}: {}", file, e);
+		}
+	}
+
+	private File file(byte[] root, boolean optionals) {
+		return new File(dir, Hex.toHexString(root).toLowerCase() + (optionals ? "-optionals" : "") + ".json");
+	}
+}
@@ -36,6 +36,12 @@ public class CommandData extends struct {
 	public Version		version;
 	@Define(optional = true)
 	public String		bsn;
+	/**
+	 * The exact coordinate the command was installed from, if it came from
+	 * the library
+	 */
+	@Define(optional = true)
+	public String		coordinate;
 	public String		main;
 	/**
 	 * Use javaw instead of java
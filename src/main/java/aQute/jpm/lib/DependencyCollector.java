@@ -1,77 +1,303 @@
 package aQute.jpm.lib;
 
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.net.URI;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import aQute.bnd.header.OSGiHeader;
+import aQute.lib.hex.Hex;
+import aQute.service.library.Library.RevisionRef;
+
+/**
+ * Collects the artifacts of a class path. Every artifact is fetched in the
+ * background, errors are reported when they happen.
+ * <p>
+ * A transitive collector also collects the dependencies of the artifacts. As
+ * soon as an artifact is downloaded its manifest is read and the fetches of
+ * its {@code JPM-Classpath} and local {@code Class-Path} entries are started,
+ * while the other downloads are still running. Artifacts are fetched only once
+ * per coordinate or url and the number of fetches in flight is bounded.
+ * <p>
+ * The class path does not depend on the order in which downloads finish: it is
+ * a breadth first walk over the dependency graph, starting with the artifacts
+ * in the order they were added. An artifact with the same SHA-1 as an earlier
+ * one is dropped.
+ */
 class DependencyCollector {
-	private final static Logger				logger	= LoggerFactory.getLogger(DependencyCollector.class);
-	private final List<ArtifactData>		list	= new ArrayList<ArtifactData>();
+	private final static Logger				logger				= LoggerFactory.getLogger(DependencyCollector.class);
+	static final String						JPM_RESOLVE_INFLIGHT	= "jpm.resolve.inflight";
+	static final int						DEFAULT_INFLIGHT	= 16;
+
 	private final JustAnotherPackageManager	jpm;
-	private boolean							synced;
+	private final boolean					transitive;
+	private final int						maxInflight;
+	private final List<Node>				roots				= new ArrayList<Node>();
+	private final ConcurrentMap<String,Node>	nodes			= new ConcurrentHashMap<String,Node>();
+	private final Deque<Node>				waiting				= new ArrayDeque<Node>();
+	private int								inflight;
+
+	/**
+	 * A fetch in the dependency graph. The children are known before the
+	 * result completes, the result is null when the fetch failed.
+	 */
+	class Node {
+		final Object									what;
+		final Supplier<CompletableFuture<ArtifactData>>	fetch;
+		final boolean									expand;
+		final List<Node>								children	= new ArrayList<Node>();
+		final CompletableFuture<ArtifactData>			result		= new CompletableFuture<ArtifactData>();
+
+		Node(Object what, Supplier<CompletableFuture<ArtifactData>> fetch, boolean expand) {
+			this.what = what;
+			this.fetch = fetch;
+			this.expand = expand;
+		}
+
+		ArtifactData await() throws InterruptedException {
+			try {
+				return result.get();
+			} catch (ExecutionException e) {
+				return null;
+			}
+		}
+	}
 
 	public DependencyCollector(JustAnotherPackageManager jpm) {
+		this(jpm, true);
+	}
+
+	public DependencyCollector(JustAnotherPackageManager jpm, boolean transitive) {
+		this(jpm, transitive, JustAnotherPackageManager.getInt(jpm.settings, JPM_RESOLVE_INFLIGHT, DEFAULT_INFLIGHT));
+	}
+
+	DependencyCollector(JustAnotherPackageManager jpm, boolean transitive, int maxInflight) {
 		this.jpm = jpm;
+		this.transitive = transitive;
+		this.maxInflight = Math.max(1, maxInflight);
 	}
 
 	/**
 	 * Add a revision to this collector and start the download
-	 * 
-	 * @throws Exception
 	 */
-	public void add(String coordinate, String name) throws Exception {
+	public CompletableFuture<ArtifactData> add(final String coordinate, String name) {
 		logger.debug("add {} = {}", coordinate, name);
-		ArtifactData candidate = jpm.getCandidateAsync(coordinate);
-		if (candidate == null) {
-			jpm.reporter.error("Cannot find %s", coordinate);
-			return;
+		return root(coordinate, coordinate, () -> jpm.fetch(coordinate, jpm.downloadTimeout, TimeUnit.SECONDS),
+				transitive);
+	}
+
+	/**
+	 * Add a resolved revision, it is downloaded from its urls without a lookup
+	 * in the library. Its dependencies are not collected, they are part of the
+	 * resolved closure.
+	 */
+	public CompletableFuture<ArtifactData> add(final RevisionRef ref) {
+		logger.debug("add {} = {}", ref.artifactId, ref.name);
+		final String sha = Hex.toHexString(ref.revision);
+		if (ref.urls.isEmpty())
+			return root("sha:" + sha, sha, () -> jpm.fetch(sha, jpm.downloadTimeout, TimeUnit.SECONDS), false);
+		return root("sha:" + sha, ref.urls.iterator().next(),
+				() -> jpm.fetch(ref.urls, ref.revision, ref.size, jpm.downloadTimeout, TimeUnit.SECONDS), false);
+	}
+
+	/**
+	 * Add an artifact that is already in the repository. Its dependencies are
+	 * not collected, they are added by the caller.
+	 */
+	public CompletableFuture<ArtifactData> add(final ArtifactData artifact) {
+		return root("sha:" + Hex.toHexString(artifact.sha), artifact.url,
+				() -> CompletableFuture.completedFuture(artifact), false);
+	}
+
+	/**
+	 * Add an artifact that might still be downloading
+	 */
+	public CompletableFuture<ArtifactData> addAsync(final ArtifactData artifact) {
+		// downloads are already shared, duplicates are dropped by their SHA-1
+		return root(null, artifact.url, () -> artifact.subscribe(), transitive);
+	}
+
+	private CompletableFuture<ArtifactData> root(String key, Object what,
+			Supplier<CompletableFuture<ArtifactData>> fetch, boolean expand) {
+		Node node = node(key, what, fetch, expand);
+		synchronized (roots) {
+			roots.add(node);
 		}
-		list.add(candidate);
+		return node.result;
 	}
 
-	void sync() throws InterruptedException {
-		if (!synced) {
-			for (ArtifactData artifact : list) {
-				artifact.sync();
-				if (artifact.error != null)
-					jpm.reporter.error("Download error %s for %s", artifact.error, artifact.url);
-				File file = new File(artifact.file);
-				if (!file.isFile())
-					jpm.reporter.error("No file found for %s", artifact.url);
+	/**
+	 * Answer the node for the key, a new node is scheduled. A node without a
+	 * key is always new.
+	 */
+	private Node node(String key, Object what, Supplier<CompletableFuture<ArtifactData>> fetch, boolean expand) {
+		Node node = new Node(what, fetch, expand);
+		Node existing = key == null ? null : nodes.putIfAbsent(key, node);
+		if (existing != null)
+			return existing;
+
+		synchronized (this) {
+			if (inflight >= maxInflight) {
+				waiting.add(node);
+				return node;
 			}
-			synced = true;
+			inflight++;
 		}
+		start(node);
+		return node;
 	}
 
-	public Collection< ? extends String> getPaths() throws InterruptedException {
-		sync();
-		List<String> paths = new ArrayList<String>();
-		for (ArtifactData artifact : list) {
-			if (artifact.error == null) {
-				paths.add(artifact.file);
-			}
+	private void start(final Node node) {
+		CompletableFuture<ArtifactData> future;
+		try {
+			future = node.fetch.get();
+		} catch (Exception e) {
+			future = new CompletableFuture<ArtifactData>();
+			future.completeExceptionally(e);
 		}
+		future.whenComplete((artifact, t) -> finish(node, check(artifact, t, node.what)));
+	}
 
-		return paths;
+	private void finish(Node node, ArtifactData artifact) {
+		try {
+			if (artifact != null && node.expand)
+				expand(node, artifact);
+		} catch (Exception e) {
+			logger.debug("cannot collect the dependencies of {}: {}", node.what, e);
+		} finally {
+			node.result.complete(artifact);
+			Node next;
+			synchronized (this) {
+				next = waiting.poll();
+				if (next == null)
+					inflight--;
+			}
+			if (next != null)
+				start(next);
+		}
 	}
 
-	public List<byte[]> getDigests() throws InterruptedException {
-		sync();
-		List<byte[]> digests = new ArrayList<byte[]>();
-		for (ArtifactData artifact : list) {
-			if (artifact.error == null) {
-				digests.add(artifact.sha);
+	/**
+	 * Start the fetches of the dependencies in the manifest of the artifact.
+	 * Relative {@code Class-Path} entries are only followed for local
+	 * artifacts, many published jars have class path entries that only make
+	 * sense in their original build.
+	 */
+	private void expand(Node node, ArtifactData artifact) throws Exception {
+		Manifest m;
+		try (JarFile jar = new JarFile(artifact.file)) {
+			m = jar.getManifest();
+		}
+		if (m == null)
+			return;
+
+		Attributes main = m.getMainAttributes();
+		String classpath = main.getValue("Class-Path");
+		if (classpath != null && artifact.url != null && "file".equalsIgnoreCase(artifact.url.getScheme())) {
+			for (String entry : classpath.trim().split("\\s+")) {
+				if (entry.isEmpty())
+					continue;
+				final URI child = artifact.url.resolve(entry);
+				if (!new File(child).isFile()) {
+					logger.debug("class path entry {} of {} not found", entry, artifact.url);
+					continue;
+				}
+				node.children.add(node(child.toString(), child,
+						() -> jpm.fetch(Collections.singletonList(child), null, 0, jpm.downloadTimeout,
+								TimeUnit.SECONDS), true));
+			}
+		}
+
+		String requires = main.getValue("JPM-Classpath");
+		if (requires != null) {
+			for (final String coordinate : OSGiHeader.parseHeader(requires).keySet()) {
+				node.children.add(node(coordinate, coordinate,
+						() -> jpm.fetch(coordinate, jpm.downloadTimeout, TimeUnit.SECONDS), true));
 			}
 		}
-		return digests;
 	}
 
-	public void add(ArtifactData artifact) {
-		list.add(artifact);
+	private ArtifactData check(ArtifactData artifact, Throwable t, Object what) {
+		if (t != null) {
+			Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+			if (cause instanceof FileNotFoundException)
+				jpm.reporter.error("Cannot find %s", what);
+			else
+				jpm.reporter.error("Download error %s for %s", cause.getMessage(), what);
+			return null;
+		}
+		if (artifact.file == null || !new File(artifact.file).isFile()) {
+			jpm.reporter.error("No file found for %s", what);
+			return null;
+		}
+		return artifact;
+	}
 
+	/**
+	 * Wait for all artifacts and answer them in breadth first order
+	 */
+	List<ArtifactData> resolve() throws InterruptedException {
+		Deque<Node> queue;
+		synchronized (roots) {
+			queue = new ArrayDeque<Node>(roots);
+		}
+		Map<Node,Boolean> visited = new IdentityHashMap<Node,Boolean>();
+		Set<String> shas = new HashSet<String>();
+		List<ArtifactData> result = new ArrayList<ArtifactData>();
+		while (!queue.isEmpty()) {
+			Node node = queue.poll();
+			if (visited.put(node, Boolean.TRUE) != null)
+				continue;
+			ArtifactData artifact = node.await();
+			if (artifact == null)
+				continue;
+			if (shas.add(Hex.toHexString(artifact.sha)))
+				result.add(artifact);
+			queue.addAll(node.children);
+		}
+		return result;
+	}
+
+	/**
+	 * Wait for all artifacts, in any order
+	 */
+	void sync() throws InterruptedException {
+		resolve();
+	}
+
+	public Collection< ? extends String> getPaths() throws InterruptedException {
+		List<String> paths = new ArrayList<String>();
+		for (ArtifactData artifact : resolve())
+			paths.add(artifact.file);
+		return paths;
+	}
+
+	public List<byte[]> getDigests() throws InterruptedException {
+		List<byte[]> digests = new ArrayList<byte[]>();
+		for (ArtifactData artifact : resolve())
+			digests.add(artifact.sha);
+		return digests;
 	}
 }
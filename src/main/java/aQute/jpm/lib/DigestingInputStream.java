@@ -0,0 +1,137 @@
+package aQute.jpm.lib;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import aQute.lib.hex.Hex;
+
+/**
+ * Calculates the SHA-1 (and optionally other digests) of the bytes that flow
+ * through it. If an expected size and/or SHA-1 is known, the stream fails as
+ * soon as more bytes arrive than expected and, at the end of the stream, when
+ * the size or digest do not match. This allows a download to be verified
+ * while it is written instead of reading the file again afterwards.
+ */
+class DigestingInputStream extends FilterInputStream {
+	final MessageDigest				sha1;
+	final Map<String,MessageDigest>	others	= new LinkedHashMap<String,MessageDigest>();
+	final byte[]					expectedSha;
+	final long						expectedSize;
+	long							count;
+	byte[]							sha;
+	String							failure;
+
+	DigestingInputStream(InputStream in, byte[] expectedSha, long expectedSize, String... algorithms)
+			throws NoSuchAlgorithmException {
+		super(in);
+		this.sha1 = MessageDigest.getInstance("SHA-1");
+		for (String algorithm : algorithms)
+			others.put(algorithm, MessageDigest.getInstance(algorithm));
+		this.expectedSha = expectedSha;
+		this.expectedSize = expectedSize;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b < 0)
+			verify();
+		else {
+			sha1.update((byte) b);
+			for (MessageDigest md : others.values())
+				md.update((byte) b);
+			count(1);
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		int n = super.read(buffer, offset, length);
+		if (n < 0)
+			verify();
+		else if (n > 0) {
+			sha1.update(buffer, offset, n);
+			for (MessageDigest md : others.values())
+				md.update(buffer, offset, n);
+			count(n);
+		}
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		throw new IOException("Cannot skip in a digesting stream");
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * Digest bytes that were received earlier, for example the part of a
+	 * resumed download that is already on disk. Must be called before the
+	 * stream itself is read.
+	 */
+	void update(InputStream prefix) throws IOException {
+		byte[] buffer = new byte[64 * 1024];
+		for (int n; (n = prefix.read(buffer, 0, buffer.length)) > 0;) {
+			sha1.update(buffer, 0, n);
+			for (MessageDigest md : others.values())
+				md.update(buffer, 0, n);
+			count(n);
+		}
+	}
+
+	private void count(int n) throws IOException {
+		count += n;
+		if (expectedSize > 0 && count > expectedSize) {
+			failure = "Received more bytes than expected: " + count + " > " + expectedSize + " for " + getExpected();
+			throw new IOException(failure);
+		}
+	}
+
+	/**
+	 * Finish the digest and verify it against the expected values. Can be
+	 * called multiple times.
+	 *
+	 * @return the SHA-1 of the stream
+	 */
+	byte[] verify() throws IOException {
+		if (sha == null) {
+			sha = sha1.digest();
+			if (expectedSize > 0 && count != expectedSize)
+				failure = "Truncated, received " + count + " bytes but expected " + expectedSize + " for "
+						+ getExpected();
+			else if (expectedSha != null && !Arrays.equals(expectedSha, sha))
+				failure = "Invalid SHA-1, expected " + getExpected() + " but received " + Hex.toHexString(sha);
+		}
+		if (failure != null)
+			throw new IOException(failure);
+		return sha;
+	}
+
+	/**
+	 * Answer the digest for one of the additional algorithms given in the
+	 * constructor. Only valid after the stream has been read completely.
+	 */
+	byte[] getDigest(String algorithm) {
+		MessageDigest md = others.get(algorithm);
+		return md == null ? null : md.digest();
+	}
+
+	long getCount() {
+		return count;
+	}
+
+	private String getExpected() {
+		return expectedSha == null ? "<unknown sha>" : Hex.toHexString(expectedSha);
+	}
+}
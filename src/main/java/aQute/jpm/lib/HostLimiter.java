@@ -0,0 +1,56 @@
+package aQute.jpm.lib;
+
+import java.net.URI;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits the number of concurrent transfers per host. The download executor
+ * can run many transfers in parallel (especially with virtual threads), this
+ * makes sure we do not open too many connections to a single server.
+ */
+class HostLimiter {
+	final ConcurrentMap<String,Semaphore>	hosts	= new ConcurrentHashMap<String,Semaphore>();
+	final int								limit;
+
+	HostLimiter(int limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * Wait for a slot for the host of the given uri. Must be followed by a
+	 * {@link #release(URI)} when a slot was acquired.
+	 *
+	 * @return true if a slot was acquired
+	 */
+	boolean acquire(URI uri) throws InterruptedException {
+		Semaphore semaphore = getSemaphore(uri);
+		if (semaphore == null)
+			return false;
+		semaphore.acquire();
+		return true;
+	}
+
+	void release(URI uri) {
+		Semaphore semaphore = getSemaphore(uri);
+		if (semaphore != null)
+			semaphore.release();
+	}
+
+	private Semaphore getSemaphore(URI uri) {
+		if (limit <= 0 || uri.getHost() == null)
+			return null;
+
+		String key = uri.getHost().toLowerCase(Locale.ROOT) + ":" + uri.getPort();
+		Semaphore semaphore = hosts.get(key);
+		if (semaphore == null) {
+			Semaphore fresh = new Semaphore(limit, true);
+			semaphore = hosts.putIfAbsent(key, fresh);
+			if (semaphore == null)
+				semaphore = fresh;
+		}
+		return semaphore;
+	}
+}
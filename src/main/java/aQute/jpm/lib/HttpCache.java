@@ -0,0 +1,253 @@
+package aQute.jpm.lib;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.lib.hex.Hex;
+import aQute.lib.io.IO;
+import aQute.lib.settings.Settings;
+import aQute.libg.cryptography.SHA1;
+import aQute.struct.struct;
+
+/**
+ * An on disk cache for library metadata (POMs, maven-metadata.xml, search
+ * results). Every url is stored as a body file and a json file with the
+ * validators of the response, both named after the SHA-1 of the url.
+ * <p>
+ * An entry younger than the time to live is served without network access.
+ * An older entry is revalidated with {@code If-None-Match} and
+ * {@code If-Modified-Since}, a 304 only refreshes its age. In refresh mode
+ * every entry that can expire is revalidated. When the network
+ * cannot be reached, or the transport is offline, stale entries are served.
+ * <p>
+ * The modification time of a body file is its last access. When the cache
+ * grows beyond its maximum size the least recently used entries are evicted.
+ */
+class HttpCache {
+	private final static Logger	logger				= LoggerFactory.getLogger(HttpCache.class);
+	static final String			JPM_CACHE_TTL		= "jpm.http.cache.ttl";
+	static final String			JPM_CACHE_SIZE		= "jpm.http.cache.size";
+	static final String			META				= ".json";
+	// seconds
+	static final int			DEFAULT_TTL			= 3600;
+	static final int			DEFAULT_SIZE		= 64 * 1024 * 1024;
+
+	public static class Entry extends struct {
+		public String	url;
+		public String	etag;
+		public String	lastModified;
+		public long		fetched;
+		public long		size;
+	}
+
+	final File								dir;
+	final Transport							transport;
+	final long								ttl;
+	final long								maxSize;
+	private volatile boolean				refresh;
+	private final ConcurrentMap<String,Object>	locks	= new ConcurrentHashMap<String,Object>();
+
+	/**
+	 * @param ttl time to live in milliseconds
+	 * @param maxSize maximum size in bytes, evicts when exceeded
+	 */
+	HttpCache(File dir, Transport transport, long ttl, long maxSize) {
+		this.dir = dir;
+		this.transport = transport;
+		this.ttl = ttl;
+		this.maxSize = maxSize;
+	}
+
+	HttpCache(File dir, Transport transport, Settings settings) {
+		this(dir, transport, 1000L * JustAnotherPackageManager.getInt(settings, JPM_CACHE_TTL, DEFAULT_TTL),
+				JustAnotherPackageManager.getInt(settings, JPM_CACHE_SIZE, DEFAULT_SIZE));
+	}
+
+	/**
+	 * Revalidate all entries that can expire, regardless of their age
+	 */
+	void setRefresh(boolean refresh) {
+		this.refresh = refresh;
+	}
+
+	/**
+	 * Open the content of the url, from the cache when possible
+	 */
+	InputStream open(URI uri) throws Exception {
+		return IO.stream(get(uri, ttl));
+	}
+
+	/**
+	 * Get a file with the content of the url. Local files are not cached.
+	 *
+	 * @param ttl the time to live in milliseconds of a cached entry
+	 * @throws FileNotFoundException if the server does not have the url
+	 */
+	File get(URI uri, long ttl) throws Exception {
+		if ("file".equalsIgnoreCase(uri.getScheme())) {
+			File file = new File(uri);
+			if (!file.isFile())
+				throw new FileNotFoundException(uri.toString());
+			return file;
+		}
+
+		String key = Hex.toHexString(SHA1.digest(uri.toString().getBytes("UTF-8")).digest());
+		Object lock = locks.putIfAbsent(key, key);
+		if (lock == null)
+			lock = key;
+
+		File body = new File(dir, key);
+		File meta = new File(dir, key + META);
+		synchronized (lock) {
+			Entry entry = body.isFile() ? read(meta) : null;
+			long now = System.currentTimeMillis();
+			if (entry != null && (transport.isOffline() || fresh(entry, now, ttl))) {
+				touch(body, now);
+				return body;
+			}
+
+			Map<String,String> headers = new HashMap<String,String>();
+			if (entry != null) {
+				if (entry.etag != null)
+					headers.put("If-None-Match", entry.etag);
+				if (entry.lastModified != null)
+					headers.put("If-Modified-Since", entry.lastModified);
+			}
+
+			Transport.Response response;
+			try {
+				response = transport.request(uri, headers, true);
+			} catch (FileNotFoundException e) {
+				IO.delete(body);
+				IO.delete(meta);
+				throw e;
+			} catch (IOException e) {
+				if (entry == null)
+					throw e;
+				logger.debug("serving stale {}: {}", uri, e.getMessage());
+				touch(body, now);
+				return body;
+			}
+
+			try {
+				if (entry != null && response.getCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+					logger.debug("not modified {}", uri);
+					entry.fetched = now;
+					write(entry, meta);
+					touch(body, now);
+					return body;
+				}
+
+				IO.mkdirs(dir);
+				File tmp = IO.createTempFile(dir, key, ".tmp");
+				try {
+					IO.copy(response.getStream(), tmp);
+					entry = new Entry();
+					entry.url = uri.toString();
+					entry.etag = response.getHeader("ETag");
+					entry.lastModified = response.getHeader("Last-Modified");
+					entry.fetched = now;
+					entry.size = tmp.length();
+					IO.rename(tmp, body);
+				} finally {
+					IO.delete(tmp);
+				}
+				write(entry, meta);
+			} finally {
+				response.close();
+			}
+		}
+		evict(body);
+		return body;
+	}
+
+	/**
+	 * Remove the least recently used entries until the cache is below its
+	 * maximum size. The given entry is kept.
+	 */
+	void evict(File keep) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+
+		List<File> bodies = new ArrayList<File>();
+		long total = 0;
+		for (File f : files) {
+			total += f.length();
+			if (!f.getName().endsWith(META) && !f.getName().endsWith(".tmp"))
+				bodies.add(f);
+		}
+		if (total <= maxSize)
+			return;
+
+		final Map<File,Long> access = new HashMap<File,Long>();
+		for (File f : bodies)
+			access.put(f, f.lastModified());
+		File[] sorted = bodies.toArray(new File[0]);
+		Arrays.sort(sorted, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(access.get(a), access.get(b));
+			}
+		});
+
+		for (File f : sorted) {
+			if (total <= maxSize)
+				break;
+			if (f.equals(keep))
+				continue;
+			File meta = new File(dir, f.getName() + META);
+			total -= f.length() + meta.length();
+			logger.debug("evict {}", f);
+			IO.delete(f);
+			IO.delete(meta);
+		}
+	}
+
+	private boolean fresh(Entry entry, long now, long ttl) {
+		if (refresh && ttl < Long.MAX_VALUE)
+			return false;
+		return now - entry.fetched < ttl;
+	}
+
+	private void touch(File body, long now) {
+		if (!body.setLastModified(now))
+			logger.debug("cannot set access time of {}", body);
+	}
+
+	private Entry read(File meta) {
+		if (!meta.isFile())
+			return null;
+		try {
+			return JustAnotherPackageManager.codec.dec().from(meta).get(Entry.class);
+		} catch (Exception e) {
+			logger.debug("cannot read cache entry {}: {}", meta, e);
+			return null;
+		}
+	}
+
+	private void write(Entry entry, File meta) throws Exception {
+		File tmp = IO.createTempFile(dir, meta.getName(), ".tmp");
+		try {
+			JustAnotherPackageManager.codec.enc().to(tmp).put(entry);
+			IO.rename(tmp, meta);
+		} finally {
+			IO.delete(tmp);
+		}
+	}
+}
@@ -31,29 +31,48 @@ import aQute.struct.struct;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Field;
 import java.net.URI;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.Enumeration;
 import java.util.Formatter;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
@@ -99,6 +118,12 @@ public class JustAnotherPackageManager {
 	public static final String	LOCK				= "lock";
 	private static final String	JPM_CACHE_LOCAL		= "jpm.cache.local";
 	private static final String	JPM_CACHE_GLOBAL	= "jpm.cache.global";
+	static final String			JPM_DOWNLOAD_THREADS	= "jpm.download.threads";
+	static final String			JPM_DOWNLOAD_VIRTUAL	= "jpm.download.virtual";
+	static final String			JPM_DOWNLOAD_HOST		= "jpm.download.host.limit";
+	static final String			JPM_DOWNLOAD_TIMEOUT	= "jpm.download.timeout";
+	static final int			DEFAULT_THREADS			= 8;
+	static final int			DEFAULT_HOST_LIMIT		= 6;
 	static final String			PERMISSION_ERROR	= "No write acces, might require administrator or root privileges (sudo in *nix)";
 	static JSONCodec			codec				= new JSONCodec();
 	static Pattern				BSN_P				= Pattern.compile(
@@ -110,11 +135,22 @@ public class JustAnotherPackageManager {
 	static Pattern				CMD_P				= Pattern.compile("([a-z_][a-z\\d_]*)", Pattern.CASE_INSENSITIVE);
 	static Pattern				SHA_P				= Pattern.compile("(?:sha:)?([a-fA-F0-9]{40,40})",
 			Pattern.CASE_INSENSITIVE);
+	static final long			MAP_WINDOW			= 64 * 1024 * 1024;
 	static Executor				executor;
+	static ExecutorService		transferExecutor;
+	static ExecutorService		lookupExecutor;
+	// how the executors are created, from the settings
+	static boolean				virtualThreads			= true;
+	static int					downloadThreads			= DEFAULT_THREADS;
+	// set on the threads of a bounded transfer pool
+	static final ThreadLocal<Boolean>	transferThread	= new ThreadLocal<Boolean>();
+	static ScheduledExecutorService	scheduler;
 
 	final File					homeDir;
 	final File					binDir;
 	final File					repoDir;
+	final RepoLayout			layout;
+	final RepoIndex				index;
 	final File					commandDir;
 	final File					serviceDir;
 	final File					service;
@@ -123,10 +159,23 @@ public class JustAnotherPackageManager {
 
 	MavenCentralLibrary					library;
 	final List<Service>			startedByDaemon		= new ArrayList<Service>();
+	final ConcurrentMap<String,ArtifactData>	inflight	= new ConcurrentHashMap<String,ArtifactData>();
+	final HostLimiter			hostLimiter;
+	final Transport				transport;
+	final ChunkedDownload		chunked;
+	final MirrorSelector		mirrors;
+	final HttpCache				httpCache;
+	final ClosureCache			closureCache;
+	final NegativeCache			negativeCache;
+	final ProgramIndex			programIndex;
+	final RevisionStore			revisionStore;
+	final UpdateChecker			updateChecker;
+	final long					downloadTimeout;
 	boolean						localInstall		= false;
 	private boolean				underTest			= System.getProperty("jpm.intest") != null;
 	Settings						settings;
 	private String				jvmLocation = null;
+	private boolean				refresh;
 
 	/**
 	 * Constructor
@@ -141,6 +190,11 @@ public class JustAnotherPackageManager {
 			this.platform = platform;
 
 		settings = new Settings(this.platform.getConfigFile());
+		configureExecutor(settings);
+		hostLimiter = new HostLimiter(getInt(settings, JPM_DOWNLOAD_HOST, DEFAULT_HOST_LIMIT));
+		transport = new Transport(settings);
+		chunked = new ChunkedDownload(transport, hostLimiter, settings);
+		downloadTimeout = getInt(settings, JPM_DOWNLOAD_TIMEOUT, 0);
 
 		this.reporter = reporter;
 		this.homeDir = homeDir;
@@ -153,6 +207,25 @@ public class JustAnotherPackageManager {
 		serviceDir = new File(homeDir, SERVICE);
 		IO.mkdirs(commandDir);
 		IO.mkdirs(serviceDir);
+
+		httpCache = new HttpCache(IO.getFile(homeDir, "cache/http"), transport, settings);
+		closureCache = new ClosureCache(IO.getFile(homeDir, "cache/closure"));
+		negativeCache = new NegativeCache(IO.getFile(homeDir, "cache/misses.json"), settings);
+		programIndex = new ProgramIndex(IO.getFile(homeDir, "cache/index"));
+		revisionStore = new RevisionStore(IO.getFile(homeDir, "cache/revisions.json"));
+		updateChecker = new UpdateChecker(this, IO.getFile(homeDir, "cache/updates.json"), settings);
+		mirrors = new MirrorSelector(repoDir, hostLimiter, settings);
+		layout = new RepoLayout(repoDir);
+		if (!layout.isMigrated() && repoDir.canWrite())
+			layout.migrate(getInUse());
+
+		index = new RepoIndex(layout);
+		try {
+			index.open();
+		} catch (Exception e) {
+			logger.debug("cannot open the repository index, falling back to the file system: {}", e);
+		}
+
 		service = new File(repoDir, SERVICE_JAR_FILE);
 		if (!service.isFile())
 			init();
@@ -241,54 +314,175 @@ public class JustAnotherPackageManager {
 	 * @throws Exception
 	 */
 	public void gc() throws Exception {
-		HashSet<byte[]> deps = new HashSet<byte[]>();
+		int count = layout.gc(getInUse());
+		index.rebuild();
+		RepoLock.clean(repoDir);
+		PartialDownload.clean(repoDir);
+		System.out.format("Garbage collection done (%d file(s) removed)%n", count);
+	}
 
-		// deps.add(SERVICE_JAR_FILE);
+	/**
+	 * Answer the hex shas of all binaries used by the installed commands and
+	 * services.
+	 */
+	Set<String> getInUse() throws Exception {
+		Set<String> deps = new HashSet<String>();
 
-		for (File cmd : commandDir.listFiles()) {
-			CommandData data = getData(CommandData.class, cmd);
+		for (CommandData data : getCommands()) {
 			addDependencies(deps, data);
 		}
 
-		for (File service : serviceDir.listFiles()) {
-			File dataFile = new File(service, "data");
-			ServiceData data = getData(ServiceData.class, dataFile);
-			addDependencies(deps, data);
+		for (ServiceData data : getServices()) {
+			if (data != null)
+				addDependencies(deps, data);
 		}
+		return deps;
+	}
 
-		int count = 0;
-		for (File f : repoDir.listFiles()) {
-			String name = f.getName();
-			if (!deps.contains(name.getBytes())) {
-				if (!name.endsWith(".json")
-						|| !deps.contains(name.substring(0, name.length() - ".json".length()).getBytes())) { // Remove
-					// json
-					// files
-					// only
-					// if
-					// the
-					// bin
-					// is
-					// going
-					// as
-					// well
-					IO.delete(f);
-					count++;
-				} else {
+	private void addDependencies(Set<String> deps, CommandData data) {
+		if (data.sha != null)
+			deps.add(Hex.toHexString(data.sha));
+		for (byte[] dep : data.dependencies) {
+			deps.add(Hex.toHexString(dep));
+		}
+		for (byte[] dep : data.runbundles) {
+			deps.add(Hex.toHexString(dep));
+		}
+	}
 
-				}
+	/**
+	 * Create a lockfile of the installed commands and services. Fields that
+	 * only make sense on this machine are cleared.
+	 */
+	public Lockfile lock() throws Exception {
+		Lockfile lock = new Lockfile();
+		Set<String> shas = new TreeSet<String>();
+		for (CommandData data : getCommands()) {
+			addDependencies(shas, data);
+			data.bin = null;
+			data.jpmRepoDir = null;
+			lock.commands.add(data);
+		}
+		for (ServiceData data : getServices()) {
+			if (data == null)
+				continue;
+			addDependencies(shas, data);
+			if (data.sdir != null) {
+				if (data.work != null && data.work.startsWith(data.sdir))
+					data.work = null;
+				if (data.log != null && data.log.startsWith(data.sdir))
+					data.log = null;
 			}
+			data.sdir = null;
+			data.lock = null;
+			data.serviceLib = null;
+			data.bin = null;
+			data.jpmRepoDir = null;
+			lock.services.add(data);
 		}
-		System.out.format("Garbage collection done (%d file(s) removed)%n", count);
+
+		for (String hex : shas) {
+			Lockfile.Artifact artifact = new Lockfile.Artifact();
+			artifact.sha = Hex.toByteArray(hex);
+			ArtifactData data = get(artifact.sha);
+			if (data == null) {
+				reporter.warning("Artifact %s is in use but not in the repository", hex);
+				continue;
+			}
+			artifact.size = data.size;
+			artifact.name = data.name;
+			File meta = layout.findMeta(hex);
+			if (meta != null) {
+				ArtifactData stored = codec.dec().from(meta).get(ArtifactData.class);
+				if (stored.url != null && !"file".equalsIgnoreCase(stored.url.getScheme()))
+					artifact.urls.add(stored.url);
+				if (stored.coordinate != null)
+					artifact.coordinate = stored.coordinate.toString();
+				if (artifact.name == null)
+					artifact.name = stored.name;
+			}
+			lock.artifacts.add(artifact);
+		}
+		return lock;
 	}
 
-	private void addDependencies(HashSet<byte[]> deps, CommandData data) {
-		for (byte[] dep : data.dependencies) {
-			deps.add(dep);
+	/**
+	 * Install the commands and services of a lockfile. All artifacts are
+	 * fetched in parallel by their SHA-1, without any resolution. The commands
+	 * and services are only created when all artifacts are in the repository.
+	 *
+	 * @return true if all artifacts were fetched
+	 */
+	public boolean install(Lockfile lock, boolean force) throws Exception {
+		if (lock.version > Lockfile.VERSION) {
+			reporter.error("Lockfile version %s is not supported, upgrade jpm", lock.version);
+			return false;
 		}
-		for (byte[] dep : data.runbundles) {
-			deps.add(dep);
+
+		List<CompletableFuture<ArtifactData>> fetches = new ArrayList<CompletableFuture<ArtifactData>>();
+		for (Lockfile.Artifact artifact : lock.artifacts) {
+			if (artifact.urls.isEmpty())
+				fetches.add(fetch(Hex.toHexString(artifact.sha), downloadTimeout, TimeUnit.SECONDS));
+			else
+				fetches.add(fetch(artifact.urls, artifact.sha, artifact.size, downloadTimeout, TimeUnit.SECONDS));
+		}
+
+		boolean ok = true;
+		Set<String> present = new HashSet<String>();
+		for (int i = 0; i < fetches.size(); i++) {
+			Lockfile.Artifact artifact = lock.artifacts.get(i);
+			String what = Strings.display(artifact.coordinate, artifact.name, Hex.toHexString(artifact.sha));
+			try {
+				ArtifactData data = fetches.get(i).get();
+				if (Arrays.equals(artifact.sha, data.sha)) {
+					present.add(Hex.toHexString(data.sha));
+					continue;
+				}
+				reporter.error("Invalid SHA-1 for %s, expected %s but was %s", what, Hex.toHexString(artifact.sha),
+						Hex.toHexString(data.sha));
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof FileNotFoundException)
+					reporter.error("Cannot find %s", what);
+				else
+					reporter.error("Download error %s for %s", cause.getMessage(), what);
+			}
+			ok = false;
+		}
+
+		Set<String> needed = new HashSet<String>();
+		for (CommandData data : lock.commands)
+			addDependencies(needed, data);
+		for (ServiceData data : lock.services)
+			addDependencies(needed, data);
+		needed.removeAll(present);
+		for (String hex : needed)
+			if (get(Hex.toByteArray(hex)) == null) {
+				reporter.error("Artifact %s is not in the lockfile nor in the repository", hex);
+				ok = false;
+			}
+
+		if (!ok)
+			return false;
+
+		String repo = repoDir.getCanonicalPath();
+		for (CommandData data : lock.commands) {
+			data.jpmRepoDir = repo;
+			if (data.jvmLocation != null && !new File(data.jvmLocation).isDirectory())
+				data.jvmLocation = getJvmLocation();
+			String result = createCommand(data, force);
+			if (result != null)
+				reporter.error("[%s] %s", data.name, result);
 		}
+		for (ServiceData data : lock.services) {
+			data.jpmRepoDir = repo;
+			if (data.jvmLocation != null && !new File(data.jvmLocation).isDirectory())
+				data.jvmLocation = getJvmLocation();
+			String result = createService(data, force);
+			if (result != null)
+				reporter.error("[%s] %s", data.name, result);
+		}
+		return true;
 	}
 
 	public void deinit(Appendable out, boolean force) throws Exception {
@@ -683,7 +877,13 @@ public class JustAnotherPackageManager {
 			}
 		}
 
+		long nextCheck = 0;
 		while (true) {
+			if (updateChecker.interval > 0 && System.currentTimeMillis() >= nextCheck) {
+				nextCheck = System.currentTimeMillis() + updateChecker.interval;
+				updateChecker.refreshInBackground();
+			}
+
 			for (Service sd : startedByDaemon) {
 				try {
 					if (!sd.isRunning()) {
@@ -732,28 +932,106 @@ public class JustAnotherPackageManager {
 	}
 
 	public ArtifactData putAsync(final URI uri) {
+		return putAsync(uri, null, 0);
+	}
+
+	/**
+	 * Download an artifact in the background. If the expected sha and/or size
+	 * are known, the download fails before it is moved into the repository
+	 * when the received bytes do not match.
+	 */
+	public ArtifactData putAsync(final URI uri, byte[] expectedSha, long expectedSize) {
+		return putAsync(Collections.singletonList(uri), expectedSha, expectedSize);
+	}
+
+	/**
+	 * Download an artifact that is available from a number of mirrors. The
+	 * mirrors are tried from best to worst according to their past
+	 * performance.
+	 */
+	public ArtifactData putAsync(Collection<URI> mirrors, byte[] expectedSha, long expectedSize) {
 		final ArtifactData data = new ArtifactData();
-		data.busy = true;
+		data.expectedSha = expectedSha;
+		data.expectedSize = expectedSize;
+		data.start();
+		if (mirrors.isEmpty()) {
+			data.error = "No location to download " + (expectedSha == null ? "artifact" : Hex.toHexString(expectedSha));
+			data.done();
+			return data;
+		}
+		final List<URI> uris = new ArrayList<URI>(mirrors);
+		final URI uri = uris.get(0);
+
+		//
+		// Single flight, if the same artifact is already being downloaded
+		// we attach to that download. A download that does not check what we
+		// expect is not joined, we download (or find in the repository) our
+		// own.
+		//
+
+		final List<String> keys = new ArrayList<String>(2);
+		List<String> candidates = new ArrayList<String>(2);
+		candidates.add(uri.toString());
+		if (expectedSha != null)
+			candidates.add(Hex.toHexString(expectedSha));
+
+		for (String key : candidates) {
+			ArtifactData pending = inflight.putIfAbsent(key, data);
+			if (pending == null) {
+				keys.add(key);
+			} else if (checks(pending, expectedSha, expectedSize)) {
+				for (String k : keys)
+					inflight.remove(k, data);
+				logger.debug("joining download of {}", uri);
+				return pending;
+			}
+		}
+
 		Runnable r = new Runnable() {
 
 			@Override
 			public void run() {
 				try {
-					put(uri, data);
+					put(uris, data);
 				} catch (Throwable e) {
 					e.printStackTrace();
 					data.error = e.toString();
 				} finally {
 					logger.debug("done downloading {}", uri);
+					for (String key : keys)
+						inflight.remove(key, data);
 					data.done();
 				}
 			}
 
 		};
-		getExecutor().execute(r);
+		FutureTask<Void> task = new FutureTask<Void>(r, null) {
+			@Override
+			protected void done() {
+				// cancelled before it ran
+				if (isCancelled() && !data.isDone()) {
+					data.error = "Cancelled download of " + uri;
+					for (String key : keys)
+						inflight.remove(key, data);
+					data.done();
+				}
+			}
+		};
+		data.task = task;
+		getExecutor().execute(task);
 		return data;
 	}
 
+	/**
+	 * A pending download checks what the caller expects if it expects at
+	 * least the same sha and size
+	 */
+	static boolean checks(ArtifactData pending, byte[] expectedSha, long expectedSize) {
+		if (expectedSha != null && !Arrays.equals(expectedSha, pending.expectedSha))
+			return false;
+		return expectedSize <= 0 || expectedSize == pending.expectedSize;
+	}
+
 	public ArtifactData put(final URI uri) throws Exception {
 		final ArtifactData data = new ArtifactData();
 		put(uri, data);
@@ -761,59 +1039,320 @@ public class JustAnotherPackageManager {
 	}
 
 	void put(final URI uri, ArtifactData data) throws Exception {
-		logger.debug("put {} {}", uri, data);
-		File tmp = createTempFile(repoDir, "mtp", ".whatever");
-		tmp.deleteOnExit();
+		put(Collections.singletonList(uri), data);
+	}
+
+	void put(List<URI> uris, ArtifactData data) throws Exception {
+		logger.debug("put {} {}", uris, data);
+		for (URI uri : uris) {
+			if ("file".equalsIgnoreCase(uri.getScheme())) {
+				putLocal(uri, data);
+				return;
+			}
+		}
+
+		//
+		// Other jpm processes might be downloading the same artifact, the lock
+		// makes sure only one of them does the transfer
+		//
+		long start = System.currentTimeMillis();
+		try (RepoLock lock = RepoLock.lock(repoDir, uris.get(0).toString(), data.expectedSha)) {
+			byte[] done = data.expectedSha != null ? data.expectedSha : lock.getResult(start);
+			ArtifactData existing = done == null ? null : get(done);
+			if (existing != null) {
+				logger.debug("downloaded by another process {}", uris);
+				xcopy(existing, data);
+				return;
+			}
+			if (isOffline())
+				throw new IOException("Offline and not in the repository: " + uris.get(0));
+
+			//
+			// A broken transfer leaves a partial file behind that the next
+			// attempt resumes, so that mirror goes first. Otherwise we race
+			// the two best mirrors. When a mirror fails we fail over to the
+			// next one.
+			//
+			PartialDownload partial = new PartialDownload(repoDir, lock.key);
+			List<URI> candidates = mirrors.order(uris, data.expectedSize);
+			URI resume = partial.getResumable();
+			boolean race = candidates.size() > 1 && !chunked.accepts(candidates.get(0), data.expectedSize);
+			if (resume != null && candidates.remove(resume)) {
+				candidates.add(0, resume);
+				race = false;
+			}
+
+			Exception failure = null;
+			for (int i = 0; i < candidates.size(); i++) {
+				URI uri = candidates.get(i);
+				try {
+					if (i == 0 && race) {
+						// failures to open are recorded by the race
+						uri = null;
+						MirrorSelector.Winner winner = mirrors.race(transport, candidates);
+						uri = winner.uri;
+						candidates.remove(uri);
+						candidates.add(0, uri);
+						putOpened(uri, winner.response, winner.slot, data, lock, partial);
+					} else {
+						long size = data.expectedSize > 0 ? data.expectedSize : partial.getChunkedSize(uri);
+						if (chunked.accepts(uri, size)) {
+							if (!putChunked(uri, null, false, size, data, lock, partial))
+								putMirror(uri, null, hostLimiter.acquire(uri), data, lock, partial);
+						} else if (size <= 0 && !uri.equals(resume) && chunked.accepts(uri, Long.MAX_VALUE)) {
+							// the response tells if it is worth chunking
+							boolean slot = hostLimiter.acquire(uri);
+							putOpened(uri, open(uri, slot), slot, data, lock, partial);
+						} else
+							putMirror(uri, null, hostLimiter.acquire(uri), data, lock, partial);
+					}
+					return;
+				} catch (InterruptedException e) {
+					throw e;
+				} catch (Exception e) {
+					logger.debug("download from {} failed: {}", uri, e);
+					if (uri != null)
+						mirrors.failure(uri);
+					if (failure == null)
+						failure = e;
+				}
+			}
+			throw failure;
+		} finally {
+			mirrors.save();
+		}
+	}
+
+	/**
+	 * Download from one mirror
+	 *
+	 * @param first an already opened response or null
+	 * @param slot if we hold a host slot for the uri
+	 */
+	private void putMirror(URI uri, Transport.Response first, boolean slot, ArtifactData data, RepoLock lock,
+			PartialDownload partial) throws Exception {
+		long start = System.currentTimeMillis();
+		DigestingInputStream in;
+		try {
+			in = partial.fetch(transport, uri, first, data.expectedSha, data.expectedSize);
+		} finally {
+			if (slot)
+				hostLimiter.release(uri);
+		}
+		mirrors.success(uri, in.getCount(), System.currentTimeMillis() - start);
+		try {
+			byte[] sha = in.verify();
+			store(uri, partial.file, sha, in.getCount(), data);
+			lock.setResult(sha);
+		} finally {
+			partial.delete();
+			logger.debug("puted {} {}", uri, data);
+		}
+	}
+
+	/**
+	 * Open a complete request, the host slot is released when that fails
+	 */
+	private Transport.Response open(URI uri, boolean slot) throws Exception {
+		try {
+			return transport.request(uri, Collections.<String,String> emptyMap(), false);
+		} catch (Exception e) {
+			if (slot)
+				hostLimiter.release(uri);
+			throw e;
+		}
+	}
+
+	/**
+	 * Download from an opened response of a complete request. When we did not
+	 * know the size and the response is large, the rest is fetched in chunks.
+	 */
+	private void putOpened(URI uri, Transport.Response first, boolean slot, ArtifactData data, RepoLock lock,
+			PartialDownload partial) throws Exception {
+		long size = first.getLength();
+		if (data.expectedSize <= 0 && first.getCode() == 200 && chunked.accepts(uri, size)
+			&& "bytes".equalsIgnoreCase(first.getHeader("Accept-Ranges"))) {
+			if (!putChunked(uri, first, slot, size, data, lock, partial))
+				putMirror(uri, null, hostLimiter.acquire(uri), data, lock, partial);
+		} else
+			putMirror(uri, first, slot, data, lock, partial);
+	}
+
+	/**
+	 * Download a large artifact in parallel chunks. A download that breaks
+	 * keeps its part file, the next attempt resumes the chunks.
+	 *
+	 * @param first an opened response of a complete request or null
+	 * @param slot if we hold a host slot for the first response
+	 * @return false if the server does not support ranges
+	 */
+	private boolean putChunked(URI uri, Transport.Response first, boolean slot, long size, ArtifactData data,
+			RepoLock lock, PartialDownload partial) throws Exception {
+		long start = System.currentTimeMillis();
+		byte[] sha = chunked.fetch(uri, partial, size, first, slot);
+		if (sha == null)
+			return false;
+		mirrors.success(uri, size, System.currentTimeMillis() - start);
 		try {
-			copy(uri.toURL(), tmp);
-			byte[] sha = SHA1.digest(tmp).digest();
-			logger.debug("SHA {} {}", uri, Hex.toHexString(sha));
+			if (data.expectedSha != null && !Arrays.equals(data.expectedSha, sha))
+				throw new IOException("Invalid SHA-1, expected " + Hex.toHexString(data.expectedSha)
+						+ " but received " + Hex.toHexString(sha) + " for " + uri);
+			store(uri, partial.file, sha, size, data);
+			lock.setResult(sha);
+			logger.debug("puted {} {}", uri, data);
+			return true;
+		} finally {
+			partial.delete();
+		}
+	}
+
+	/**
+	 * Fast path for local files. The file is digested through a memory map
+	 * and, when it is not already in the repository, the kernel copies it
+	 * with transferTo so the content never passes through a user space
+	 * buffer. We do not hard link because build tools often rewrite their
+	 * output files in place, which would silently change a binary that is
+	 * supposed to be identified by its content.
+	 */
+	private void putLocal(URI uri, ArtifactData data) throws Exception {
+		File source = new File(uri);
+		File tmp = null;
+		try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+			long size = in.size();
+			byte[] sha = sha1(in, size);
+			if (data.expectedSize > 0 && size != data.expectedSize)
+				throw new IOException("Size of " + source + " is " + size + " but expected " + data.expectedSize);
+			if (data.expectedSha != null && !Arrays.equals(data.expectedSha, sha))
+				throw new IOException("Invalid SHA-1 for " + source + ", expected "
+						+ Hex.toHexString(data.expectedSha) + " but was " + Hex.toHexString(sha));
+
 			ArtifactData existing = get(sha);
 			if (existing != null) {
 				logger.debug("existing");
 				xcopy(existing, data);
 				return;
 			}
-			File meta = new File(repoDir, Hex.toHexString(sha) + ".json");
-			File file = new File(repoDir, Hex.toHexString(sha));
-			rename(tmp, file);
-			logger.debug("file {}", file);
-			data.file = file.getAbsolutePath();
-			data.sha = sha;
-			data.busy = false;
-			CommandData cmddata = parseCommandData(data);
-			if (cmddata.bsn != null) {
-				data.name = cmddata.bsn + "-" + cmddata.version;
-			} else
-				data.name = Strings.display(cmddata.title, cmddata.bsn, cmddata.name, uri);
-			codec.enc().to(meta).put(data);
-			logger.debug("TD = {}", data);
+
+			tmp = createTempFile(repoDir, "mtp", ".whatever");
+			tmp.deleteOnExit();
+			try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE)) {
+				for (long position = 0; position < size;)
+					position += in.transferTo(position, size - position, out);
+			}
+			store(uri, tmp, sha, size, data);
 		} finally {
-			IO.delete(tmp);
+			if (tmp != null)
+				IO.delete(tmp);
 			logger.debug("puted {} {}", uri, data);
 		}
 	}
 
+	/**
+	 * Calculate the SHA-1 of a file by mapping it in windows
+	 */
+	static byte[] sha1(FileChannel channel, long size) throws Exception {
+		MessageDigest md = MessageDigest.getInstance("SHA-1");
+		for (long position = 0; position < size;) {
+			long length = Math.min(size - position, MAP_WINDOW);
+			md.update(channel.map(MapMode.READ_ONLY, position, length));
+			position += length;
+		}
+		return md.digest();
+	}
+
+	/**
+	 * Move a verified temporary file into the repository, unless we already
+	 * have it, and record its metadata.
+	 */
+	private void store(URI uri, File tmp, byte[] sha, long size, ArtifactData data) throws Exception {
+		logger.debug("SHA {} {}", uri, Hex.toHexString(sha));
+		ArtifactData existing = get(sha);
+		if (existing != null) {
+			logger.debug("existing");
+			xcopy(existing, data);
+			return;
+		}
+		String hex = Hex.toHexString(sha);
+		File meta = layout.getMeta(hex);
+		File file = layout.prepare(hex);
+		rename(tmp, file);
+		logger.debug("file {}", file);
+		data.file = file.getAbsolutePath();
+		data.sha = sha;
+		data.size = size;
+		data.url = uri;
+		CommandData cmddata = parseCommandData(data, false);
+		if (cmddata.bsn != null) {
+			data.name = cmddata.bsn + "-" + cmddata.version;
+		} else
+			data.name = Strings.display(cmddata.title, cmddata.bsn, cmddata.name, uri);
+		codec.enc().to(meta).put(data);
+		addToIndex(data, false);
+		logger.debug("TD = {}", data);
+	}
+
+	/**
+	 * Answer an artifact in the repository, null if it is not there. A hit in
+	 * the repository index only has the file, size, time and name of the
+	 * artifact, use {@link #getMetadata(byte[])} for the url and coordinate it
+	 * was fetched with.
+	 */
 	public ArtifactData get(byte[] sha) throws Exception {
+		ArtifactData artifact = index.get(sha);
+		if (artifact != null)
+			return artifact;
+
 		String name = Hex.toHexString(sha);
-		File data = IO.getFile(repoDir, name + ".json");
+		File data = layout.findMeta(name);
 		logger.debug("artifact data file {}", data);
-		if (data.isFile()) { // Bin + metadata
-			ArtifactData artifact = codec.dec().from(data).get(ArtifactData.class);
-			artifact.file = IO.getFile(repoDir, name).getAbsolutePath();
+		if (data != null) { // Bin + metadata
+			artifact = codec.dec().from(data).get(ArtifactData.class);
+			File bin = new File(data.getParentFile(), name);
+			artifact.file = bin.getAbsolutePath();
+			artifact.size = bin.length();
+			addToIndex(artifact, data.getParentFile().equals(repoDir));
 			return artifact;
 		}
-		File bin = IO.getFile(repoDir, name);
-		if (bin.exists()) { // Only bin
-			ArtifactData artifact = new ArtifactData();
+		File bin = layout.find(name);
+		if (bin != null) { // Only bin
+			artifact = new ArtifactData();
 			artifact.file = bin.getAbsolutePath();
 			artifact.sha = sha;
+			artifact.size = bin.length();
+			artifact.time = bin.lastModified();
+			addToIndex(artifact, bin.getParentFile().equals(repoDir));
 			return artifact;
 		}
 
 		return null;
 	}
 
+	/**
+	 * Answer an artifact in the repository with the url and coordinate from
+	 * its metadata, null if it is not there.
+	 */
+	public ArtifactData getMetadata(byte[] sha) throws Exception {
+		ArtifactData artifact = get(sha);
+		if (artifact == null || artifact.url != null)
+			return artifact;
+
+		File meta = layout.findMeta(Hex.toHexString(sha));
+		if (meta != null) {
+			ArtifactData stored = codec.dec().from(meta).get(ArtifactData.class);
+			artifact.url = stored.url;
+			artifact.coordinate = stored.coordinate;
+		}
+		return artifact;
+	}
+
+	private void addToIndex(ArtifactData artifact, boolean legacy) {
+		try {
+			index.add(artifact, legacy);
+		} catch (Exception e) {
+			logger.debug("cannot add {} to the repository index: {}", artifact.file, e);
+		}
+	}
+
 	public List<Revision> filter(Collection<Revision> list, EnumSet<Library.Phase> phases) {
 		List<Revision> filtered = new ArrayList<Library.Revision>();
 		for (Revision r : list)
@@ -823,53 +1362,11 @@ public class JustAnotherPackageManager {
 		return filtered;
 	}
 
+	/**
+	 * Answer the latest revision per program, see {@link LatestSelector}
+	 */
 	public Map<String,Revision> latest(Collection<Revision> list) {
-		Map<String,Revision> programs = new HashMap<String,Library.Revision>();
-
-		for (Revision r : list) {
-			String coordinates = r.groupId + ":" + r.artifactId;
-			if (r.classifier != null)
-				coordinates += ":" + r.classifier;
-
-			if (r.groupId.equals(Library.SHA_GROUP))
-				continue;
-
-			Revision current = programs.get(coordinates);
-			if (current == null)
-				programs.put(coordinates, r);
-			else {
-				// who is better?
-				if (compare(r, current) >= 0)
-					programs.put(coordinates, r);
-			}
-		}
-		return programs;
-	}
-
-	private int compare(Revision a, Revision b) {
-		if (Arrays.equals(a._id, b._id))
-			return 0;
-
-		Version va = getVersion(a);
-		Version vb = getVersion(b);
-		int n = va.compareTo(vb);
-		if (n != 0)
-			return n;
-
-		if (a.created != b.created)
-			return a.created > b.created ? 1 : -1;
-
-		for (int i = 0; i < a._id.length; i++)
-			if (a._id[i] != b._id[i])
-				return a._id[i] > b._id[i] ? 1 : -1;
-
-		return 0;
-	}
-
-	private Version getVersion(Revision a) {
-		if (a.qualifier != null)
-			return new Version(a.baseline + "." + a.qualifier);
-		return new Version(a.baseline);
+		return LatestSelector.latest(list);
 	}
 
 	public String getCoordinates(Revision r) {
@@ -922,10 +1419,10 @@ public class JustAnotherPackageManager {
 				return null;
 			}
 
-		Coordinate c = new Coordinate(arg);
+		Coordinate c = Coordinate.parse(arg);
 
 		if (c.isSha()) {
-			ArtifactData r = get(c.getSha());
+			ArtifactData r = getMetadata(c.getSha());
 			if (r != null)
 				return r;
 		}
@@ -935,39 +1432,276 @@ public class JustAnotherPackageManager {
 			return null;
 
 		logger.debug("revision {}", Hex.toHexString(revision._id));
+		programIndex.add(revision);
+		revisionStore.add(revision);
 
-		ArtifactData ad = get(revision._id);
+		ArtifactData ad = getMetadata(revision._id);
 		if (ad != null) {
 			logger.debug("found in cache");
+			ad.coordinate = new Coordinate(revision);
 			return ad;
 		}
 
-		URI url = revision.urls.iterator().next();
-		ArtifactData artifactData = putAsync(url);
-		artifactData.coordinate = c;
+		ArtifactData artifactData = putAsync(revision.urls, revision._id, revision.size);
+		artifactData.coordinate = new Coordinate(revision);
 		return artifactData;
 	}
 
-	public static Executor getExecutor() {
+	/**
+	 * Fetch an artifact by coordinate, sha, url, or file. The lookup and the
+	 * download run in the background. The answered future completes when the
+	 * artifact is in the repository, and exceptionally when it cannot be found
+	 * or downloaded, or when it did not finish within the timeout. Cancelling
+	 * it stops the download unless others are waiting for the same artifact.
+	 *
+	 * @param timeout the maximum time to wait, 0 for no limit
+	 */
+	public CompletableFuture<ArtifactData> fetch(String coordinate, long timeout, TimeUnit unit) {
+		CompletableFuture<ArtifactData> result = new CompletableFuture<ArtifactData>();
+		Future< ? > lookup = getLookupExecutor().submit(() -> {
+			try {
+				ArtifactData data = getCandidateAsync(coordinate);
+				if (data == null)
+					result.completeExceptionally(new FileNotFoundException("Cannot find " + coordinate));
+				else
+					follow(result, data.subscribe());
+			} catch (Throwable e) {
+				result.completeExceptionally(e);
+			}
+		});
+		result.whenComplete((data, t) -> lookup.cancel(true));
+		return withTimeout(result, timeout, unit, coordinate);
+	}
+
+	/**
+	 * Fetch an artifact from a number of mirrors, see
+	 * {@link #fetch(String, long, TimeUnit)}.
+	 */
+	public CompletableFuture<ArtifactData> fetch(Collection<URI> mirrors, byte[] expectedSha, long expectedSize,
+			long timeout, TimeUnit unit) {
+		CompletableFuture<ArtifactData> result = new CompletableFuture<ArtifactData>();
+		try {
+			ArtifactData existing = expectedSha == null ? null : get(expectedSha);
+			ArtifactData data = existing != null ? existing : putAsync(mirrors, expectedSha, expectedSize);
+			follow(result, data.subscribe());
+		} catch (Exception e) {
+			result.completeExceptionally(e);
+		}
+		return withTimeout(result, timeout, unit, mirrors);
+	}
+
+	/**
+	 * Complete the result with the download, and withdraw from the download
+	 * when the result is completed first (cancel or timeout).
+	 */
+	private static void follow(CompletableFuture<ArtifactData> result, CompletableFuture<ArtifactData> download) {
+		download.whenComplete((data, t) -> {
+			if (t != null)
+				result.completeExceptionally(t);
+			else
+				result.complete(data);
+		});
+		result.whenComplete((data, t) -> download.cancel(true));
+	}
+
+	static <T> CompletableFuture<T> withTimeout(CompletableFuture<T> future, long timeout, TimeUnit unit,
+			Object what) {
+		if (timeout <= 0 || future.isDone())
+			return future;
+		ScheduledFuture< ? > timer = getScheduler().schedule(
+				() -> future.completeExceptionally(new TimeoutException("Timeout fetching " + what)), timeout, unit);
+		future.whenComplete((data, t) -> timer.cancel(false));
+		return future;
+	}
+
+	static synchronized ScheduledExecutorService getScheduler() {
+		if (scheduler == null)
+			scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "jpm-timeout");
+				t.setDaemon(true);
+				return t;
+			});
+		return scheduler;
+	}
+
+	/**
+	 * Answer the executor used for downloads. If none was set or configured, a
+	 * default bounded pool is created.
+	 */
+	public static synchronized Executor getExecutor() {
 		if (executor == null)
-			executor = Executors.newFixedThreadPool(4);
+			executor = createExecutor(false, DEFAULT_THREADS);
 		return executor;
 	}
 
-	public static void setExecutor(Executor executor) {
+	/**
+	 * Answer the executor for work that a download waits for, like the chunks
+	 * of a large download or the requests of a mirror race. It must be
+	 * separate from the download executor to prevent a deadlock when that
+	 * executor is a bounded pool.
+	 */
+	static synchronized ExecutorService getTransferExecutor() {
+		if (transferExecutor == null)
+			transferExecutor = createExecutor(virtualThreads, downloadThreads, "jpm-transfer-", true);
+		return transferExecutor;
+	}
+
+	/**
+	 * Submit work that the caller waits for to the transfer executor. When the
+	 * caller is itself a task of a bounded transfer pool, the work runs on the
+	 * calling thread: waiting for the pool from its own threads deadlocks as
+	 * soon as all of them wait.
+	 */
+	static <T> Future<T> submitTransfer(Callable<T> task) {
+		if (transferThread.get() != null) {
+			FutureTask<T> inline = new FutureTask<T>(task);
+			inline.run();
+			return inline;
+		}
+		return getTransferExecutor().submit(task);
+	}
+
+	/**
+	 * Answer the executor for library lookups. A lookup waits for the
+	 * requests it fans out to the transfer executor, it must therefore not
+	 * run on that executor itself.
+	 */
+	static synchronized ExecutorService getLookupExecutor() {
+		if (lookupExecutor == null)
+			lookupExecutor = createExecutor(virtualThreads, downloadThreads, "jpm-lookup-", false);
+		return lookupExecutor;
+	}
+
+	public static synchronized void setExecutor(Executor executor) {
 		JustAnotherPackageManager.executor = executor;
 	}
 
+	/**
+	 * Configure the executors from the settings, a download executor that is
+	 * already set is kept. On a VM that supports virtual threads (JDK 21+)
+	 * each task gets its own virtual thread unless
+	 * {@value #JPM_DOWNLOAD_VIRTUAL} is false, otherwise each executor is a
+	 * pool of {@value #JPM_DOWNLOAD_THREADS} threads.
+	 */
+	static synchronized void configureExecutor(Settings settings) {
+		virtualThreads = !"false".equalsIgnoreCase(settings.get(JPM_DOWNLOAD_VIRTUAL));
+		downloadThreads = getInt(settings, JPM_DOWNLOAD_THREADS, DEFAULT_THREADS);
+		if (executor == null)
+			executor = createExecutor(virtualThreads, downloadThreads);
+	}
+
+	static ExecutorService createExecutor(boolean virtual, int threads) {
+		return createExecutor(virtual, threads, "jpm-download-", false);
+	}
+
+	/**
+	 * @param transfer mark the threads of a pool as transfer threads, see
+	 *            {@link #submitTransfer(Callable)}
+	 */
+	static ExecutorService createExecutor(boolean virtual, int threads, final String name, final boolean transfer) {
+		if (virtual) {
+			try {
+				ExecutorService es = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+						.invoke(null);
+				logger.debug("using virtual threads for downloads");
+				return es;
+			} catch (Exception e) {
+				logger.debug("no virtual threads on this VM, using a pool of {} threads", threads);
+			}
+		}
+		final AtomicInteger n = new AtomicInteger();
+		return Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				Runnable run = !transfer ? r : () -> {
+					transferThread.set(Boolean.TRUE);
+					r.run();
+				};
+				Thread t = new Thread(run, name + n.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	static int getInt(Settings settings, String key, int deflt) {
+		String value = settings.get(key);
+		if (value == null)
+			return deflt;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			logger.debug("invalid number for {}: {}", key, value);
+			return deflt;
+		}
+	}
+
 	public void setLibrary(URI url) throws Exception {
 		if (url == null)
-			url = new URI("http://repo1.maven.org/maven2/");
+			url = new URI(MavenCentralLibrary.DEFAULT_URL);
+
+		library = new MavenCentralLibrary(url, httpCache, negativeCache);
+		closureCache.setFingerprint(url.toString());
+	}
+
+	/**
+	 * Answer the dependency closure of an artifact, a persisted closure is
+	 * used when there is one.
+	 */
+	public List<RevisionRef> getClosure(byte[] sha, boolean optionals) throws Exception {
+		List<RevisionRef> closure = closureCache.get(sha, optionals);
+		if (closure != null) {
+			logger.debug("persisted closure {}", Hex.toHexString(sha));
+			return closure;
+		}
+
+		closure = new ArrayList<RevisionRef>();
+		for (RevisionRef ref : library.getClosure(sha, optionals))
+			closure.add(ref);
+		closureCache.put(sha, optionals, closure);
+		return closure;
+	}
+
+	/**
+	 * Only use the cache and the repository, never access the network
+	 */
+	public void setOffline(boolean offline) {
+		transport.setOffline(offline);
+	}
 
-		library = new MavenCentralLibrary();
+	/**
+	 * Ignore the remembered lookup misses and revalidate the cached library
+	 * metadata
+	 */
+	public void setRefresh(boolean refresh) {
+		this.refresh = refresh;
+		negativeCache.setRefresh(refresh);
+		httpCache.setRefresh(refresh);
+	}
+
+	public boolean isOffline() {
+		return transport.isOffline();
 	}
 
 	public void close() {
-		if (executor != null && executor instanceof ExecutorService)
-			((ExecutorService) executor).shutdown();
+		programIndex.save();
+		revisionStore.save();
+		negativeCache.save();
+		index.close();
+		synchronized (JustAnotherPackageManager.class) {
+			if (executor != null && executor instanceof ExecutorService) {
+				((ExecutorService) executor).shutdown();
+				executor = null;
+			}
+			if (transferExecutor != null) {
+				transferExecutor.shutdown();
+				transferExecutor = null;
+			}
+			if (lookupExecutor != null) {
+				lookupExecutor.shutdown();
+				lookupExecutor = null;
+			}
+		}
 	}
 
 	public void init() throws IOException {
@@ -1017,6 +1751,10 @@ public class JustAnotherPackageManager {
 		return to;
 	}
 
+	public Transport getTransport() {
+		return transport;
+	}
+
 	public MavenCentralLibrary getLibrary() {
 		return library;
 	}
@@ -1026,6 +1764,35 @@ public class JustAnotherPackageManager {
 	}
 
 	public String what(String key, boolean oneliner) throws Exception {
+		byte[] sha = sha(key);
+		logger.debug("sha {}", Hex.toHexString(sha));
+		Revision revision = getRevision(sha);
+		if (revision == null) {
+			return null;
+		}
+		return describe(revision, oneliner);
+	}
+
+	/**
+	 * Describe several jars, the revisions are looked up in one batch
+	 *
+	 * @return the description per key, null when nothing is known
+	 */
+	public Map<String,String> what(Collection<String> keys, boolean oneliner) throws Exception {
+		Map<String,byte[]> shas = new LinkedHashMap<String,byte[]>();
+		for (String key : keys)
+			shas.put(key, sha(key));
+
+		Map<ShaKey,Revision> revisions = getRevisions(shas.values());
+		Map<String,String> result = new LinkedHashMap<String,String>();
+		for (Map.Entry<String,byte[]> e : shas.entrySet()) {
+			Revision revision = revisions.get(ShaKey.of(e.getValue()));
+			result.put(e.getKey(), revision == null ? null : describe(revision, oneliner));
+		}
+		return result;
+	}
+
+	private byte[] sha(String key) throws Exception {
 		byte[] sha;
 
 		Matcher m = SHA_P.matcher(key);
@@ -1034,22 +1801,23 @@ public class JustAnotherPackageManager {
 		} else {
 			m = URL_P.matcher(key);
 			if (m.matches()) {
-				URL url = new URL(key);
-				sha = SHA1.digest(url.openStream()).digest();
+				try (InputStream in = transport.open(new URI(key))) {
+					sha = SHA1.digest(in).digest();
+				}
 			} else {
 				File jarfile = new File(key);
 				if (!jarfile.exists()) {
 					reporter.error("File does not exist: %s", jarfile.getCanonicalPath());
 				}
-				sha = SHA1.digest(jarfile).digest();
+				try (FileChannel channel = FileChannel.open(jarfile.toPath(), StandardOpenOption.READ)) {
+					sha = sha1(channel, channel.size());
+				}
 			}
 		}
-		logger.debug("sha {}", Hex.toHexString(sha));
-		Revision revision = library.getRevision(sha);
-		if (revision == null) {
-			return null;
-		}
+		return sha;
+	}
 
+	private String describe(Revision revision, boolean oneliner) throws Exception {
 		Justif justif = new Justif(120, 20, 70, 20, 75);
 		DateFormat dateFormat = DateFormat.getDateInstance();
 
@@ -1072,7 +1840,7 @@ public class JustAnotherPackageManager {
 				f.format("%n");
 				f.format("Dependencies\t0:%n");
 				boolean flag = false;
-				Iterable<RevisionRef> closure = library.getClosure(revision._id, true);
+				Iterable<RevisionRef> closure = getClosure(revision._id, true);
 				for (RevisionRef dep : closure) {
 					f.format(" - %s \t2- %s \t3- %s%n", dep.name, createCoord(dep),
 							dateFormat.format(new Date(dep.created)));
@@ -1107,48 +1875,17 @@ public class JustAnotherPackageManager {
 
 	public void listUpdates(List<UpdateMemo> notFound, List<UpdateMemo> upToDate, List<UpdateMemo> toUpdate,
 			CommandData data, boolean staged) throws Exception {
+		listUpdates(notFound, upToDate, toUpdate, Collections.singletonList(data), staged);
+	}
 
-		// UpdateMemo memo = new UpdateMemo();
-		// memo.current = data;
-		//
-		// Matcher m = data.coordinates == null ? null :
-		// COORD_P.matcher(data.coordinates);
-		//
-		// if (data.version == null || m == null || !m.matches()) {
-		// Revision revision = library.getRevision(data.sha);
-		// if (revision == null) {
-		// notFound.add(memo);
-		// return;
-		// }
-		// data.version = new Version(revision.version);
-		// data.coordinates = getCoordinates(revision);
-		// if (data instanceof ServiceData) {
-		// storeData(IO.getFile(new File(serviceDir, data.name), "data"), data);
-		// } else {
-		// storeData(IO.getFile(commandDir, data.name), data);
-		// }
-		// }
-		//
-		// Iterable< ? extends Program> programs =
-		// library.getQueryPrograms(data.coordinates, 0, 0);
-		// int count = 0;
-		// RevisionRef best = null;
-		// for (Program p : programs) {
-		// // best = selectBest(p.revisions, staged, null);
-		// count++;
-		// }
-		// if (count != 1 || best == null) {
-		// notFound.add(memo);
-		// return;
-		// }
-		// Version bestVersion = new Version(best.version);
-		//
-		// if (data.version.compareTo(bestVersion) < 0) { // Update available
-		// memo.best = best;
-		// toUpdate.add(memo);
-		// } else { // up to date
-		// upToDate.add(memo);
-		// }
+	/**
+	 * Check the commands and services for updates. The results of the last
+	 * check, by the daemon or an earlier update, are used when they are still
+	 * fresh, the others are checked concurrently.
+	 */
+	public void listUpdates(List<UpdateMemo> notFound, List<UpdateMemo> upToDate, List<UpdateMemo> toUpdate,
+			Collection< ? extends CommandData> datas, boolean staged) throws Exception {
+		updateChecker.listUpdates(notFound, upToDate, toUpdate, datas, staged, refresh);
 	}
 
 	public void update(UpdateMemo memo) throws Exception {
@@ -1185,13 +1922,75 @@ public class JustAnotherPackageManager {
 	}
 
 	/**
-	 * Find programs
+	 * Find programs. The query is answered from the local program index, the
+	 * library is only asked when the index cannot fill the page or when
+	 * refreshing. The programs the library returns are added to the index.
 	 *
 	 * @throws Exception
 	 */
 
 	public List<Program> find(String query, int skip, int limit) throws Exception {
-		return library.getQueryPrograms(query, skip, limit);
+		List<Program> programs = programIndex.find(query, skip, limit);
+		int wanted = limit <= 0 ? ProgramIndex.DEFAULT_LIMIT : limit;
+		if ((programs.size() >= wanted && !refresh) || isOffline())
+			return programs;
+
+		try {
+			List<Program> remote = library.getQueryPrograms(query, 0, Math.max(skip, 0) + wanted);
+			if (remote == null || remote.isEmpty())
+				return programs;
+
+			programIndex.addAll(remote);
+			programIndex.save();
+		} catch (Exception e) {
+			logger.debug("cannot query the library for {}, using the local index: {}", query, e);
+			return programs;
+		}
+		return programIndex.find(query, skip, limit);
+	}
+
+	/**
+	 * Query the revisions that were seen before, without going to the
+	 * library
+	 */
+	public Library.Find<Revision> findRevision() {
+		return revisionStore.find();
+	}
+
+	/**
+	 * Answer the revision for a SHA-1, released revisions are answered from
+	 * the local revision store
+	 */
+	Revision getRevision(byte[] sha) throws Exception {
+		Revision revision = revisionStore.get(sha);
+		if (revision != null && revision.phase != Library.Phase.STAGING)
+			return revision;
+
+		revision = library.getRevision(sha);
+		revisionStore.add(revision);
+		return revision;
+	}
+
+	/**
+	 * Answer the revisions for many SHA-1s, released revisions are answered
+	 * from the local revision store and the others are looked up in one batch
+	 */
+	public Map<ShaKey,Revision> getRevisions(Collection<byte[]> shas) throws Exception {
+		Map<ShaKey,Revision> result = new LinkedHashMap<ShaKey,Revision>();
+		List<byte[]> remote = new ArrayList<byte[]>();
+		for (byte[] sha : shas) {
+			Revision revision = revisionStore.get(sha);
+			if (revision != null && revision.phase != Library.Phase.STAGING)
+				result.put(ShaKey.of(sha), revision);
+			else
+				remote.add(sha);
+		}
+		if (!remote.isEmpty())
+			for (Map.Entry<ShaKey,Revision> e : library.getRevisions(remote).entrySet()) {
+				revisionStore.add(e.getValue());
+				result.put(e.getKey(), e.getValue());
+			}
+		return result;
 	}
 
 	public boolean isWildcard(String coordinate) {
@@ -1199,12 +1998,24 @@ public class JustAnotherPackageManager {
 	}
 
 	public CommandData parseCommandData(ArtifactData artifact) throws Exception {
+		return parseCommandData(artifact, true);
+	}
+
+	/**
+	 * Parse the manifest of a command
+	 *
+	 * @param dependencies if the dependencies must be fetched, otherwise only
+	 *            the identity of the command is parsed
+	 */
+	private CommandData parseCommandData(ArtifactData artifact, boolean dependencies) throws Exception {
 		File source = new File(artifact.file);
 		if (!source.isFile())
 			throw new FileNotFoundException();
 
 		CommandData data = new CommandData();
 		data.sha = artifact.sha;
+		if (artifact.coordinate != null)
+			data.coordinate = artifact.coordinate.toString();
 		data.jpmRepoDir = repoDir.getCanonicalPath();
 		try (JarFile jar = new JarFile(source)) {
 			logger.debug("Parsing {}", source);
@@ -1221,57 +2032,56 @@ public class JustAnotherPackageManager {
 			data.description = main.getValue(Constants.BUNDLE_DESCRIPTION);
 			data.title = main.getValue("JPM-Name");
 
-			if (main.getValue("Class-Path") != null) {
-				File parent = source.getParentFile();
-				for (String entry : main.getValue("Class-Path").split("\\s+")) {
-					File child = new File(parent, entry);
-					if (!child.isFile()) {
-						reporter.error("Target specifies Class-Path in JAR but the indicated file %s is not found",
-								child);
-					} else {
-						ArtifactData x = put(child.toURI());
-						data.dependencies.add(x.sha);
+			if (dependencies) {
+				DependencyCollector classpath = new DependencyCollector(this);
+				if (main.getValue("Class-Path") != null) {
+					File parent = source.getParentFile();
+					for (String entry : main.getValue("Class-Path").split("\\s+")) {
+						File child = new File(parent, entry);
+						if (!child.isFile()) {
+							reporter.error("Target specifies Class-Path in JAR but the indicated file %s is not found",
+									child);
+						} else {
+							classpath.addAsync(putAsync(child.toURI()));
+						}
 					}
 				}
-			}
 
-			logger.debug("name {} {} {}", data.name, data.main, data.title);
-			DependencyCollector path = new DependencyCollector(this);
-			path.add(artifact);
-			DependencyCollector bundles = new DependencyCollector(this);
-			if (main.getValue("JPM-Classpath") != null) {
-				Parameters requires = OSGiHeader.parseHeader(main.getValue("JPM-Classpath"));
+				logger.debug("name {} {} {}", data.name, data.main, data.title);
+				DependencyCollector path = new DependencyCollector(this);
+				path.add(artifact);
+				DependencyCollector bundles = new DependencyCollector(this, false);
+				if (main.getValue("JPM-Classpath") != null) {
+					Parameters requires = OSGiHeader.parseHeader(main.getValue("JPM-Classpath"));
 
-				for (Map.Entry<String,Attrs> e : requires.entrySet()) {
-					path.add(e.getKey(), e.getValue().get("name")); // coordinate
+					for (Map.Entry<String,Attrs> e : requires.entrySet()) {
+						path.add(e.getKey(), e.getValue().get("name")); // coordinate
+					}
+				} else if (!artifact.local && library != null) {
+					// No JPM-Classpath, falling back to the dependencies in
+					// the POM
+					try {
+						for (RevisionRef ref : getClosure(artifact.sha, false))
+							path.add(ref);
+					} catch (Exception e) {
+						reporter.warning("Cannot resolve the dependencies of %s: %s", artifact.url, e);
+					}
 				}
-			} else if (!artifact.local) { // No JPM-Classpath, falling back to
-											// server's revision
-											// Iterable<RevisionRef> closure =
-											// library.getClosure(artifact.sha,
-											// false);
-				// System.out.println("getting closure " + artifact.url + " " +
-				// Strings.join("\n",closure));
-
-				// if (closure != null) {
-				// for (RevisionRef ref : closure) {
-				// path.add(Hex.toHexString(ref.revision));
-				// }
-				// }
-			}
 
-			if (main.getValue("JPM-Runbundles") != null) {
-				Parameters jpmrunbundles = OSGiHeader.parseHeader(main.getValue("JPM-Runbundles"));
+				if (main.getValue("JPM-Runbundles") != null) {
+					Parameters jpmrunbundles = OSGiHeader.parseHeader(main.getValue("JPM-Runbundles"));
 
-				for (Map.Entry<String,Attrs> e : jpmrunbundles.entrySet()) {
-					bundles.add(e.getKey(), e.getValue().get("name"));
+					for (Map.Entry<String,Attrs> e : jpmrunbundles.entrySet()) {
+						bundles.add(e.getKey(), e.getValue().get("name"));
+					}
 				}
-			}
 
-			logger.debug("collect digests runpath");
-			data.dependencies.addAll(path.getDigests());
-			logger.debug("collect digests bundles");
-			data.runbundles.addAll(bundles.getDigests());
+				logger.debug("collect digests runpath");
+				data.dependencies.addAll(classpath.getDigests());
+				data.dependencies.addAll(path.getDigests());
+				logger.debug("collect digests bundles");
+				data.runbundles.addAll(bundles.getDigests());
+			}
 
 			Parameters command = OSGiHeader.parseHeader(main.getValue("JPM-Command"));
 			if (command.size() > 1)
@@ -1334,12 +2144,28 @@ public class JustAnotherPackageManager {
 
 	public List< ? > toString(List<byte[]> dependencies) throws Exception {
 		List<String> out = new ArrayList<String>();
+		List<ArtifactData> local = new ArrayList<ArtifactData>();
+		List<byte[]> unknown = new ArrayList<byte[]>();
 		for (byte[] dependency : dependencies) {
 			ArtifactData data = get(dependency);
+			local.add(data);
 			if (data == null)
-				out.add(Hex.toHexString(dependency));
-			else {
+				unknown.add(dependency);
+		}
+
+		Map<ShaKey,Revision> revisions = unknown.isEmpty() || isOffline() ? Collections.<ShaKey,Revision> emptyMap()
+				: getRevisions(unknown);
+		for (int i = 0; i < dependencies.size(); i++) {
+			byte[] dependency = dependencies.get(i);
+			ArtifactData data = local.get(i);
+			if (data != null)
 				out.add(Strings.display(data.name, Hex.toHexString(dependency)));
+			else {
+				Revision revision = revisions.get(ShaKey.of(dependency));
+				if (revision == null)
+					out.add(Hex.toHexString(dependency));
+				else
+					out.add(getCoordinates(revision) + " " + Hex.toHexString(dependency));
 			}
 		}
 		return out;
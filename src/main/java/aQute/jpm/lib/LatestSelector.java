@@ -0,0 +1,119 @@
+package aQute.jpm.lib;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import aQute.service.library.Library;
+import aQute.service.library.Library.Revision;
+
+/**
+ * Selects the latest revision per program (group, artifact and classifier) in
+ * a single pass. The version key of a revision is computed once, the program
+ * is looked up with a reusable probe and the coordinate strings are only
+ * built for the winners.
+ * <p>
+ * A revision is better when its version is higher, then when it was created
+ * later, then when its SHA-1 is higher. On a complete tie the last one wins.
+ */
+final class LatestSelector {
+
+	private static final class Program {
+		String	groupId;
+		String	artifactId;
+		String	classifier;
+		int		hash;
+
+		Program set(Revision r) {
+			groupId = r.groupId;
+			artifactId = r.artifactId;
+			classifier = r.classifier;
+			int h = groupId.hashCode() * 31 + artifactId.hashCode();
+			hash = classifier == null ? h : h * 31 + classifier.hashCode();
+			return this;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			Program p = (Program) o;
+			return hash == p.hash && groupId.equals(p.groupId) && artifactId.equals(p.artifactId)
+					&& (classifier == null ? p.classifier == null : classifier.equals(p.classifier));
+		}
+	}
+
+	private static final class Best {
+		Revision	revision;
+		VersionKey	version;
+
+		Best(Revision revision, VersionKey version) {
+			this.revision = revision;
+			this.version = version;
+		}
+	}
+
+	private final Map<Program,Best>	best	= new HashMap<Program,Best>();
+	private final Program			probe	= new Program();
+
+	static Map<String,Revision> latest(Collection<Revision> list) {
+		LatestSelector selector = new LatestSelector();
+		for (Revision r : list)
+			selector.add(r);
+		return selector.result();
+	}
+
+	void add(Revision r) {
+		if (r.groupId.equals(Library.SHA_GROUP))
+			return;
+
+		VersionKey version = VersionKey.of(r);
+		Best current = best.get(probe.set(r));
+		if (current == null)
+			best.put(new Program().set(r), new Best(r, version));
+		else if (compare(r, version, current.revision, current.version) >= 0) {
+			current.revision = r;
+			current.version = version;
+		}
+	}
+
+	/**
+	 * The latest revisions by their {@code groupId:artifactId[:classifier]}
+	 */
+	Map<String,Revision> result() {
+		Map<String,Revision> result = new HashMap<String,Revision>(best.size() * 2);
+		for (Map.Entry<Program,Best> e : best.entrySet()) {
+			Program p = e.getKey();
+			StringBuilder sb = new StringBuilder(p.groupId).append(':').append(p.artifactId);
+			if (p.classifier != null)
+				sb.append(':').append(p.classifier);
+			result.put(sb.toString(), e.getValue().revision);
+		}
+		return result;
+	}
+
+	static int compare(Revision a, VersionKey va, Revision b, VersionKey vb) {
+		if (a == b || Arrays.equals(a._id, b._id))
+			return 0;
+
+		int n = va.compareTo(vb);
+		if (n != 0)
+			return n;
+
+		if (a.created != b.created)
+			return a.created > b.created ? 1 : -1;
+
+		if (a._id == null || b._id == null)
+			return 0;
+
+		for (int i = 0; i < a._id.length && i < b._id.length; i++)
+			if (a._id[i] != b._id[i])
+				return a._id[i] > b._id[i] ? 1 : -1;
+
+		return 0;
+	}
+}
@@ -0,0 +1,33 @@
+package aQute.jpm.lib;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Set;
+
+import aQute.struct.Define;
+import aQute.struct.struct;
+
+/**
+ * The installed commands and services with the exact artifacts they run on.
+ * Installing a lockfile needs no resolution, every artifact is downloaded by
+ * its SHA-1 from the urls it was originally downloaded from.
+ */
+public class Lockfile extends struct {
+	public static final int	VERSION		= 1;
+
+	public int				version		= VERSION;
+	public long				created		= System.currentTimeMillis();
+	public List<CommandData>	commands	= list();
+	public List<ServiceData>	services	= list();
+	public List<Artifact>	artifacts	= list();
+
+	public static class Artifact extends struct {
+		public byte[]	sha;
+		public long		size;
+		@Define(optional = true)
+		public String	name;
+		@Define(optional = true)
+		public String	coordinate;
+		public Set<URI>	urls	= set();
+	}
+}
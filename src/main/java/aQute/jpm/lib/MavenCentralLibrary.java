@@ -1,35 +1,708 @@
 package aQute.jpm.lib;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.bnd.version.MavenVersion;
+import aQute.lib.hex.Hex;
+import aQute.lib.io.IO;
 import aQute.service.library.Coordinate;
+import aQute.service.library.Library.Phase;
 import aQute.service.library.Library.Program;
 import aQute.service.library.Library.Revision;
 import aQute.service.library.Library.RevisionRef;
+import aQute.struct.struct;
 
-import java.util.List;
-
+/**
+ * A library on top of a Maven 2 layout repository, remote or a local
+ * directory through a file: uri. Revisions are found through the
+ * {@code maven-metadata.xml} of an artifact and the {@code .sha1} files next
+ * to the artifacts. The Maven Central search service is used to find an
+ * artifact by its SHA-1 and for queries, other repositories do not support
+ * this.
+ * <p>
+ * All metadata is read through the {@link HttpCache}. Parsed results are kept
+ * in a bounded in memory cache, the files of released artifacts never change
+ * so they are kept forever, the metadata as long as the cache ttl. Lookups
+ * that found nothing are remembered for a short time in a
+ * {@link NegativeCache}.
+ */
 public class MavenCentralLibrary {
+	private final static Logger		logger			= LoggerFactory.getLogger(MavenCentralLibrary.class);
+	public static final String		DEFAULT_URL		= "https://repo1.maven.org/maven2/";
+	static final String				CENTRAL_SEARCH	= "https://search.maven.org/solrsearch/select";
+	static final String				METADATA		= "maven-metadata.xml";
+	static final String				METADATA_LOCAL	= "maven-metadata-local.xml";
+	static final String				SNAPSHOT		= "-SNAPSHOT";
+	static final int				MEMO_SIZE		= 2000;
+	static final int				DEFAULT_ROWS	= 20;
+	// SHA-1s per search query
+	static final int				SHA_BATCH		= 20;
+	static final long				FOREVER			= Long.MAX_VALUE;
+	static final Pattern			SHA1_P			= Pattern.compile("([0-9a-fA-F]{40})");
+	static final XMLInputFactory	xmlFactory		= XMLInputFactory.newInstance();
 
-	public MavenCentralLibrary() {
+	static {
+		xmlFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		xmlFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
 	}
 
-	public Revision getRevisionByCoordinate(Coordinate c) {
-		return null;
+	/**
+	 * The parsed maven-metadata.xml of an artifact, or of a snapshot version
+	 */
+	static class Metadata {
+		String				release;
+		String				latest;
+		final List<String>	versions	= new ArrayList<String>();
+		// classifier:extension -> timestamped version
+		final Map<String,String>	snapshots	= new LinkedHashMap<String,String>();
+		long				lastUpdated;
+		VersionIndex		index;
 	}
 
-	public Revision getRevision(byte[] sha) {
-		return null;
+	public static class SearchResult extends struct {
+		public SearchResponse response;
 	}
 
-	public Iterable<RevisionRef> getClosure(byte[] _id, boolean b) {
-		return null;
+	public static class SearchResponse extends struct {
+		public int			numFound;
+		public int			start;
+		public List<Doc>	docs	= list();
+	}
+
+	public static class Doc extends struct {
+		public String		id;
+		public String		g;
+		public String		a;
+		public String		v;
+		public String		p;
+		public String		latestVersion;
+		public long			timestamp;
+		public List<String>	ec	= list();
+	}
+
+	static class Memo {
+		final Object	value;
+		final long		expires;
+
+		Memo(Object value, long ttl) {
+			this.value = value;
+			long now = System.currentTimeMillis();
+			this.expires = ttl > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + ttl;
+		}
+	}
+
+	final URI						base;
+	final URI						search;
+	final HttpCache					cache;
+	final PomResolver				resolver;
+	final NegativeCache				misses;
+	private final Map<String,Memo>	memo	= Collections.synchronizedMap(new LinkedHashMap<String,Memo>(64, 0.75f,
+			true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,Memo> eldest) {
+			return size() > MEMO_SIZE;
+		}
+	});
+
+	public MavenCentralLibrary(URI base, HttpCache cache) {
+		this(base, cache, new NegativeCache(null, 1000L * NegativeCache.DEFAULT_TTL));
+	}
+
+	MavenCentralLibrary(URI base, HttpCache cache, NegativeCache misses) {
+		this(base, isCentral(base) ? URI.create(CENTRAL_SEARCH) : null, cache, misses);
+	}
+
+	MavenCentralLibrary(URI base, URI search, HttpCache cache) {
+		this(base, search, cache, new NegativeCache(null, 1000L * NegativeCache.DEFAULT_TTL));
+	}
+
+	/**
+	 * @param search the Maven Central search service, or null if not available
+	 */
+	MavenCentralLibrary(URI base, URI search, HttpCache cache, NegativeCache misses) {
+		String s = base.toString();
+		this.base = s.endsWith("/") ? base : URI.create(s + "/");
+		this.search = search;
+		this.cache = cache;
+		this.misses = misses;
+		this.resolver = new PomResolver(this);
+	}
+
+	static boolean isCentral(URI base) {
+		String host = base.getHost();
+		return "repo1.maven.org".equalsIgnoreCase(host) || "repo.maven.apache.org".equalsIgnoreCase(host);
+	}
+
+	/**
+	 * Find the best revision for a coordinate: the highest version that
+	 * matches the version and phases of the coordinate.
+	 */
+	public Revision getRevisionByCoordinate(Coordinate c) throws Exception {
+		switch (c.getGroup()) {
+			case SHA :
+				return getRevision(c.getSha());
+			case OSGI :
+				return null;
+			default :
+				break;
+		}
+
+		String key = base + " coordinate:" + c;
+		if (misses.isMiss(key))
+			return null;
+
+		Revision r = findRevision(c);
+		if (r == null)
+			misses.miss(key);
+		else
+			misses.hit(key);
+		return r;
+	}
+
+	private Revision findRevision(Coordinate c) throws Exception {
+		String groupId = getGroupId(c);
+		if (groupId == null)
+			return null;
+
+		Metadata md = getMetadata(groupId, c.getArtifactId());
+		if (md == null)
+			return null;
+
+		String best = md.index.best(c.getVersion(), c.isExact(), VersionIndex.mask(c.getPhases()));
+		if (best == null)
+			return null;
+		return getRevision(groupId, c.getArtifactId(), c.getClassifier(), best);
+	}
+
+	/**
+	 * Answer all revisions that match the coordinate, highest version first
+	 */
+	public Iterable<Revision> getRevisionsByCoordinate(final Coordinate c) throws Exception {
+		final String groupId = getGroupId(c);
+		if (groupId == null)
+			return Collections.emptyList();
+
+		Metadata md = getMetadata(groupId, c.getArtifactId());
+		if (md == null)
+			return Collections.emptyList();
+
+		List<String> versions = md.index.matching(c.getVersion(), c.isExact(), VersionIndex.mask(c.getPhases()));
+
+		List<Future<Revision>> futures = new ArrayList<Future<Revision>>();
+		for (final String v : versions)
+			futures.add(JustAnotherPackageManager
+					.submitTransfer(() -> getRevision(groupId, c.getArtifactId(), c.getClassifier(), v)));
+
+		List<Revision> result = new ArrayList<Revision>();
+		for (Future<Revision> f : futures) {
+			try {
+				Revision r = f.get();
+				if (r != null)
+					result.add(r);
+			} catch (ExecutionException e) {
+				logger.debug("cannot get revision: {}", e.getCause());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Find a revision by the SHA-1 of its artifact. Only possible when a
+	 * search service is available.
+	 */
+	public Revision getRevision(byte[] sha) throws Exception {
+		return getRevisions(Collections.singleton(sha)).get(ShaKey.of(sha));
+	}
+
+	/**
+	 * Find the revisions for many SHA-1s at once. Duplicates are looked up
+	 * once, known revisions and recent misses are answered locally. The others
+	 * are asked from the search service in batches, with one query per batch,
+	 * and the candidate revisions of a batch are fetched concurrently.
+	 *
+	 * @return the revisions found, in the order of the shas
+	 */
+	public Map<ShaKey,Revision> getRevisions(Collection<byte[]> shas) throws Exception {
+		Map<ShaKey,Revision> result = new LinkedHashMap<ShaKey,Revision>();
+		Set<ShaKey> wanted = new LinkedHashSet<ShaKey>();
+		for (byte[] sha : shas) {
+			if (sha == null)
+				continue;
+			ShaKey key = ShaKey.of(sha);
+			if (result.containsKey(key) || wanted.contains(key))
+				continue;
+
+			Memo m = memo.get(shaKey(key));
+			if (m != null)
+				result.put(key, (Revision) m.value);
+			else if (search != null && !misses.isMiss(missKey(key)))
+				wanted.add(key);
+		}
+
+		List<ShaKey> remote = new ArrayList<ShaKey>(wanted);
+		for (int i = 0; i < remote.size(); i += SHA_BATCH)
+			search(remote.subList(i, Math.min(remote.size(), i + SHA_BATCH)), result);
+
+		// keep the order of the request
+		Map<ShaKey,Revision> ordered = new LinkedHashMap<ShaKey,Revision>();
+		for (byte[] sha : shas) {
+			if (sha == null)
+				continue;
+			ShaKey key = ShaKey.of(sha);
+			Revision r = result.get(key);
+			if (r != null)
+				ordered.put(key, r);
+		}
+		return ordered;
+	}
+
+	private void search(List<ShaKey> batch, Map<ShaKey,Revision> result) throws Exception {
+		StringBuilder query = new StringBuilder();
+		for (ShaKey key : batch) {
+			if (query.length() > 0)
+				query.append(" OR ");
+			query.append("1:\"").append(key.toString().toLowerCase()).append("\"");
+		}
+
+		SearchResult found = search(query.toString(), 0, Math.max(DEFAULT_ROWS, batch.size() * 2));
+		List<Future<Revision>> futures = new ArrayList<Future<Revision>>();
+		if (found != null && found.response != null)
+			for (final Doc doc : found.response.docs) {
+				List<String> classifiers = new ArrayList<String>();
+				classifiers.add(null);
+				for (String ec : doc.ec)
+					if (ec.startsWith("-") && ec.endsWith(".jar"))
+						classifiers.add(ec.substring(1, ec.length() - 4));
+
+				for (final String classifier : classifiers)
+					futures.add(JustAnotherPackageManager
+							.submitTransfer(() -> getRevision(doc.g, doc.a, classifier, doc.v)));
+			}
+
+		Set<ShaKey> missing = new HashSet<ShaKey>(batch);
+		boolean failed = false;
+		for (Future<Revision> f : futures) {
+			try {
+				Revision r = f.get();
+				if (r == null || r._id == null)
+					continue;
+				ShaKey key = ShaKey.of(r._id);
+				if (missing.remove(key)) {
+					memo.put(shaKey(key), new Memo(r, FOREVER));
+					result.put(key, r);
+					misses.hit(missKey(key));
+				}
+			} catch (ExecutionException e) {
+				logger.debug("cannot get revision: {}", e.getCause());
+				failed = true;
+			}
+		}
+
+		// a failed lookup might have been one of the missing, try again later
+		if (failed)
+			return;
+		List<String> keys = new ArrayList<String>();
+		for (ShaKey key : missing)
+			keys.add(missKey(key));
+		misses.miss(keys);
+	}
+
+	private static String shaKey(ShaKey key) {
+		return "sha:" + key.toString().toLowerCase();
+	}
+
+	private String missKey(ShaKey key) {
+		return base + " sha:" + key.toString().toLowerCase();
+	}
+
+	/**
+	 * Answer the revision of a jar in the repository
+	 *
+	 * @return the revision or null if the jar is not in the repository
+	 */
+	public Revision getRevision(String groupId, String artifactId, String classifier, String version)
+			throws Exception {
+		String key = "rev:" + groupId + ":" + artifactId + ":" + (classifier == null ? "" : classifier) + ":"
+				+ version;
+		Memo m = memo.get(key);
+		if (m != null && m.expires > System.currentTimeMillis())
+			return (Revision) m.value;
+
+		boolean snapshot = version.endsWith(SNAPSHOT);
+		String fileVersion = version;
+		if (snapshot) {
+			Metadata md = getSnapshotMetadata(groupId, artifactId, version);
+			if (md != null) {
+				String value = md.snapshots.get((classifier == null ? "" : classifier) + ":jar");
+				if (value != null)
+					fileVersion = value;
+			}
+		}
+
+		String dir = path(groupId, artifactId) + version + "/";
+		String name = artifactId + "-" + fileVersion;
+		URI jar = base.resolve(dir + name + (classifier == null ? "" : "-" + classifier) + ".jar");
+		long ttl = snapshot ? cache.ttl : FOREVER;
+
+		byte[] sha = getSha(jar, ttl);
+		if (sha == null)
+			return null;
+
+		Revision r = new Revision();
+		r._id = sha;
+		r.groupId = groupId;
+		r.artifactId = artifactId;
+		r.classifier = classifier;
+		r.version = version;
+		r.packaging = "jar";
+		r.phase = snapshot ? Phase.STAGING : Phase.MASTER;
+		r.urls.add(jar);
+		r.pomUrl = base.resolve(dir + name + ".pom");
+		MavenVersion mv = MavenVersion.parseMavenString(version);
+		if (mv != null) {
+			r.baseline = mv.getOSGiVersion().getWithoutQualifier().toString();
+			r.qualifier = mv.getOSGiVersion().getQualifier();
+		}
+		if ("file".equalsIgnoreCase(jar.getScheme())) {
+			File f = new File(jar);
+			r.size = f.length();
+			r.modified = r.created = f.lastModified();
+		}
+		readPom(r, ttl);
+		memo.put(key, new Memo(r, ttl));
+		if (!snapshot)
+			memo.put(shaKey(ShaKey.of(sha)), new Memo(r, FOREVER));
+		return r;
+	}
+
+	/**
+	 * Answer the transitive runtime dependencies of a revision, resolved from
+	 * the POMs. Empty if the revision is not known.
+	 *
+	 * @param optionals include the optional direct dependencies
+	 */
+	@SuppressWarnings("unchecked")
+	public Iterable<RevisionRef> getClosure(byte[] _id, boolean optionals) throws Exception {
+		String key = "closure:" + Hex.toHexString(_id).toLowerCase() + ":" + optionals;
+		Memo m = memo.get(key);
+		if (m != null && m.expires > System.currentTimeMillis())
+			return (List<RevisionRef>) m.value;
+
+		Revision revision = getRevision(_id);
+		if (revision == null)
+			return Collections.emptyList();
+
+		List<RevisionRef> closure = resolver.closure(revision, optionals);
+		memo.put(key, new Memo(closure, revision.phase == Phase.STAGING ? cache.ttl : FOREVER));
+		return closure;
+	}
+
+	/**
+	 * Answer the POM file of a revision
+	 */
+	File getPom(String groupId, String artifactId, String version) throws Exception {
+		boolean snapshot = version.endsWith(SNAPSHOT);
+		return cache.get(pomUrl(groupId, artifactId, version), snapshot ? cache.ttl : FOREVER);
+	}
+
+	URI pomUrl(String groupId, String artifactId, String version) throws Exception {
+		String fileVersion = version;
+		if (version.endsWith(SNAPSHOT)) {
+			Metadata md = getSnapshotMetadata(groupId, artifactId, version);
+			if (md != null && md.snapshots.containsKey(":pom"))
+				fileVersion = md.snapshots.get(":pom");
+		}
+		return base.resolve(path(groupId, artifactId) + version + "/" + artifactId + "-" + fileVersion + ".pom");
+	}
+
+	/**
+	 * Query the search service for programs
+	 */
+	public List<Program> getQueryPrograms(String query, int skip, int limit) throws Exception {
+		List<Program> programs = new ArrayList<Program>();
+		SearchResult result = search(query, skip, limit <= 0 ? DEFAULT_ROWS : limit);
+		if (result == null || result.response == null)
+			return programs;
+
+		for (Doc doc : result.response.docs) {
+			Program p = new Program();
+			p.groupId = doc.g;
+			p.artifactId = doc.a;
+			p.modified = doc.timestamp;
+			Revision last = new Revision();
+			last.groupId = doc.g;
+			last.artifactId = doc.a;
+			last.version = doc.latestVersion != null ? doc.latestVersion : doc.v;
+			last.packaging = doc.p;
+			last.modified = doc.timestamp;
+			last.phase = Phase.MASTER;
+			p.last = last;
+			programs.add(p);
+		}
+		return programs;
 	}
 
-	public List<Program> getQueryPrograms(String query, int skip, int limit) {
+	/**
+	 * A coordinate without a group only names the artifact, the search service
+	 * can tell us the group.
+	 */
+	private String getGroupId(Coordinate c) throws Exception {
+		if (!c.getGroupId().isEmpty())
+			return c.getGroupId();
+
+		SearchResult result = search("a:\"" + c.getArtifactId() + "\"", 0, DEFAULT_ROWS);
+		if (result == null || result.response == null)
+			return null;
+		for (Doc doc : result.response.docs)
+			if (c.getArtifactId().equals(doc.a))
+				return doc.g;
 		return null;
 	}
 
-	public Iterable<Revision> getRevisionsByCoordinate(Coordinate c) {
+	/**
+	 * Maven order, versions that Maven cannot parse are lower than those that
+	 * it can
+	 */
+	static int compare(MavenVersion a, String as, MavenVersion b, String bs) {
+		if (a != null && b != null)
+			return a.compareTo(b);
+		if (a != null)
+			return 1;
+		if (b != null)
+			return -1;
+		return as.compareTo(bs);
+	}
+
+	Metadata getMetadata(String groupId, String artifactId) throws Exception {
+		String dir = path(groupId, artifactId);
+		Memo m = memo.get("md:" + dir);
+		if (m != null && m.expires > System.currentTimeMillis())
+			return (Metadata) m.value;
+
+		Metadata md = readMetadata(dir);
+		if (md != null) {
+			md.index = new VersionIndex(md.versions);
+			memo.put("md:" + dir, new Memo(md, cache.ttl));
+		}
+		return md;
+	}
+
+	Metadata getSnapshotMetadata(String groupId, String artifactId, String version) throws Exception {
+		return readMetadata(path(groupId, artifactId) + version + "/");
+	}
+
+	/**
+	 * Read the metadata of a directory. A local repository has a
+	 * maven-metadata-local.xml instead, or no metadata at all when the
+	 * artifacts were copied into it.
+	 */
+	private Metadata readMetadata(String dir) throws Exception {
+		URI uri = base.resolve(dir + METADATA);
+		try {
+			return parseMetadata(cache.get(uri, cache.ttl));
+		} catch (FileNotFoundException e) {
+			if (!"file".equalsIgnoreCase(uri.getScheme()))
+				return null;
+		}
+
+		File local = new File(base.resolve(dir + METADATA_LOCAL));
+		if (local.isFile())
+			return parseMetadata(local);
+
+		File[] sub = new File(base.resolve(dir)).listFiles();
+		if (sub == null)
+			return null;
+
+		Metadata md = new Metadata();
+		for (File f : sub)
+			if (f.isDirectory())
+				md.versions.add(f.getName());
+		return md.versions.isEmpty() ? null : md;
+	}
+
+	static Metadata parseMetadata(File file) throws Exception {
+		Metadata md = new Metadata();
+		try (InputStream in = IO.stream(file)) {
+			XMLStreamReader r = xmlFactory.createXMLStreamReader(in);
+			try {
+				String classifier = "";
+				String extension = null;
+				String value = null;
+				StringBuilder path = new StringBuilder();
+				while (r.hasNext()) {
+					switch (r.next()) {
+						case XMLStreamConstants.START_ELEMENT :
+							path.append('/').append(r.getLocalName());
+							String p = path.toString();
+							switch (p) {
+								case "/metadata/versioning/release" :
+									md.release = r.getElementText().trim();
+									break;
+								case "/metadata/versioning/latest" :
+									md.latest = r.getElementText().trim();
+									break;
+								case "/metadata/versioning/versions/version" :
+									md.versions.add(r.getElementText().trim());
+									break;
+								case "/metadata/versioning/lastUpdated" :
+									md.lastUpdated = parseLong(r.getElementText().trim());
+									break;
+								case "/metadata/versioning/snapshotVersions/snapshotVersion/classifier" :
+									classifier = r.getElementText().trim();
+									break;
+								case "/metadata/versioning/snapshotVersions/snapshotVersion/extension" :
+									extension = r.getElementText().trim();
+									break;
+								case "/metadata/versioning/snapshotVersions/snapshotVersion/value" :
+									value = r.getElementText().trim();
+									break;
+								default :
+									continue;
+							}
+							// getElementText consumed the end element
+							path.setLength(path.lastIndexOf("/"));
+							break;
+
+						case XMLStreamConstants.END_ELEMENT :
+							if (path.toString().equals("/metadata/versioning/snapshotVersions/snapshotVersion")) {
+								if (extension != null && value != null)
+									md.snapshots.put(classifier + ":" + extension, value);
+								classifier = "";
+								extension = value = null;
+							}
+							path.setLength(path.lastIndexOf("/"));
+							break;
+					}
+				}
+			} finally {
+				r.close();
+			}
+		}
+		return md;
+	}
+
+	/**
+	 * Read the SHA-1 of an artifact from its .sha1 file. In a local directory
+	 * the .sha1 file is often missing, then the artifact is digested.
+	 *
+	 * @return the SHA-1 or null if the artifact does not exist
+	 */
+	private byte[] getSha(URI jar, long ttl) throws Exception {
+		URI uri = URI.create(jar + ".sha1");
+		try {
+			Matcher m = SHA1_P.matcher(IO.collect(cache.get(uri, ttl)));
+			if (m.find())
+				return Hex.toByteArray(m.group(1));
+			logger.debug("invalid sha1 file {}", uri);
+		} catch (FileNotFoundException e) {
+			logger.debug("no sha1 file {}", uri);
+		}
+
+		if ("file".equalsIgnoreCase(jar.getScheme())) {
+			File f = new File(jar);
+			if (f.isFile())
+				try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+					return JustAnotherPackageManager.sha1(channel, channel.size());
+				}
+		}
 		return null;
 	}
 
+	/**
+	 * Read the descriptive information of the POM. Only the top level elements
+	 * are of interest.
+	 */
+	private void readPom(Revision r, long ttl) {
+		try (InputStream in = IO.stream(cache.get(r.pomUrl, ttl))) {
+			XMLStreamReader x = xmlFactory.createXMLStreamReader(in);
+			try {
+				int depth = 0;
+				while (x.hasNext()) {
+					switch (x.next()) {
+						case XMLStreamConstants.START_ELEMENT :
+							if (depth == 1) {
+								switch (x.getLocalName()) {
+									case "name" :
+										r.name = x.getElementText().trim();
+										continue;
+									case "description" :
+										r.description = x.getElementText().trim();
+										continue;
+									case "url" :
+										r.docUrl = x.getElementText().trim();
+										continue;
+									case "packaging" :
+										r.packaging = x.getElementText().trim();
+										continue;
+								}
+							}
+							depth++;
+							break;
+						case XMLStreamConstants.END_ELEMENT :
+							depth--;
+							break;
+					}
+				}
+			} finally {
+				x.close();
+			}
+		} catch (Exception e) {
+			logger.debug("cannot read pom {}: {}", r.pomUrl, e);
+		}
+	}
+
+	/**
+	 * Query the search service
+	 *
+	 * @return the result or null if there is no search service
+	 */
+	private SearchResult search(String query, int skip, int rows) throws Exception {
+		if (search == null)
+			return null;
+		URI uri = URI.create(search + "?q=" + URLEncoder.encode(query, "UTF-8") + "&start=" + skip + "&rows="
+				+ rows + "&wt=json");
+		try (InputStream in = IO.stream(cache.get(uri, cache.ttl))) {
+			return JustAnotherPackageManager.codec.dec().from(in).get(SearchResult.class);
+		}
+	}
+
+	static String path(String groupId, String artifactId) {
+		return groupId.replace('.', '/') + "/" + artifactId + "/";
+	}
+
+	private static long parseLong(String s) {
+		try {
+			return Long.parseLong(s);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
 }
@@ -0,0 +1,298 @@
+package aQute.jpm.lib;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.lib.io.IO;
+import aQute.lib.settings.Settings;
+import aQute.struct.struct;
+
+/**
+ * Chooses between the mirrors of an artifact. Per host it keeps an
+ * exponentially weighted moving average of the latency (time until the
+ * response headers arrive), the throughput, and the failure rate. These
+ * statistics are persisted in the repository so they carry over between jpm
+ * invocations.
+ * <p>
+ * The first request of a download is hedged: it goes to the best mirror and,
+ * if that mirror did not answer within the hedge delay, also to the second
+ * best. The first response wins and the other is closed. When a transfer
+ * fails or stalls (read timeout) the download fails over to the next mirror.
+ */
+class MirrorSelector {
+	private final static Logger	logger				= LoggerFactory.getLogger(MirrorSelector.class);
+	static final String			MIRRORS				= ".mirrors";
+	static final String			JPM_HEDGE_DELAY		= "jpm.download.hedge.delay";
+	static final double			ALPHA				= 0.3;
+	static final double			DEFAULT_LATENCY		= 300;
+	// bytes per millisecond
+	static final double			DEFAULT_THROUGHPUT	= 1000;
+	static final double			FAILURE_PENALTY		= 10;
+	static final long			MIN_HEDGE			= 50;
+	static final long			MAX_HEDGE			= 2000;
+
+	public static class HostStats extends struct {
+		public double	latency		= DEFAULT_LATENCY;
+		public double	throughput	= DEFAULT_THROUGHPUT;
+		public double	failures;
+		public int		samples;
+	}
+
+	public static class Stats extends struct {
+		public Map<String,HostStats> hosts = new LinkedHashMap<String,HostStats>();
+	}
+
+	/**
+	 * The winner of a race, the host slot is held until the response is
+	 * consumed.
+	 */
+	static class Winner {
+		URI					uri;
+		Transport.Response	response;
+		boolean				slot;
+	}
+
+	final File			file;
+	final HostLimiter	hostLimiter;
+	final long			hedgeDelay;
+	private Stats		stats;
+	private boolean		dirty;
+
+	MirrorSelector(File repoDir, HostLimiter hostLimiter, long hedgeDelay) {
+		this.file = new File(repoDir, MIRRORS);
+		this.hostLimiter = hostLimiter;
+		this.hedgeDelay = hedgeDelay;
+	}
+
+	MirrorSelector(File repoDir, HostLimiter hostLimiter, Settings settings) {
+		this(repoDir, hostLimiter, JustAnotherPackageManager.getInt(settings, JPM_HEDGE_DELAY, -1));
+	}
+
+	/**
+	 * Order the candidates from best to worst for a download of the given
+	 * size. The order of equally good candidates is kept.
+	 */
+	synchronized List<URI> order(Collection<URI> candidates, final long size) {
+		List<URI> result = new ArrayList<URI>(candidates);
+		if (result.size() > 1)
+			Collections.sort(result, new Comparator<URI>() {
+				@Override
+				public int compare(URI a, URI b) {
+					return Double.compare(score(a, size), score(b, size));
+				}
+			});
+		return result;
+	}
+
+	/**
+	 * The expected time to download, penalized by the failure rate. A failure
+	 * usually costs a timeout, so the penalty is steep.
+	 */
+	double score(URI uri, long size) {
+		HostStats s = getStats(uri);
+		double time = s.latency + Math.max(size, 0) / Math.max(s.throughput, 1);
+		return time * (1 + FAILURE_PENALTY * s.failures);
+	}
+
+	/**
+	 * Open the first response of a download, hedging between the first two
+	 * candidates.
+	 */
+	Winner race(final Transport transport, List<URI> candidates) throws Exception {
+		CompletionService<Winner> cs = new ExecutorCompletionService<Winner>(
+				JustAnotherPackageManager.getTransferExecutor());
+		Race race = new Race();
+		int limit = Math.min(2, candidates.size());
+		int next = 0;
+		int pending = 0;
+		Exception failure = null;
+
+		cs.submit(open(transport, candidates.get(next++), race));
+		pending++;
+		long delay = getHedgeDelay(candidates.get(0));
+
+		while (pending > 0) {
+			Future<Winner> f = next < limit ? cs.poll(delay, TimeUnit.MILLISECONDS) : cs.take();
+			if (f == null) {
+				logger.debug("hedging {} with {}", candidates.get(0), candidates.get(next));
+				cs.submit(open(transport, candidates.get(next++), race));
+				pending++;
+				continue;
+			}
+			pending--;
+			try {
+				Winner winner = f.get();
+				race.decide(winner);
+				return winner;
+			} catch (ExecutionException e) {
+				failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				if (next < limit) {
+					cs.submit(open(transport, candidates.get(next++), race));
+					pending++;
+				}
+			}
+		}
+		throw failure;
+	}
+
+	/**
+	 * Tracks the responses of a race so the losers are closed, also when they
+	 * arrive after the winner was chosen.
+	 */
+	class Race {
+		final List<Winner>	opened	= new ArrayList<Winner>();
+		boolean				decided;
+
+		synchronized boolean add(Winner w) {
+			if (decided)
+				return false;
+			opened.add(w);
+			return true;
+		}
+
+		void decide(Winner winner) {
+			List<Winner> losers = new ArrayList<Winner>();
+			synchronized (this) {
+				decided = true;
+				for (Winner w : opened)
+					if (w != winner)
+						losers.add(w);
+			}
+			for (Winner w : losers)
+				close(w);
+		}
+	}
+
+	private Callable<Winner> open(final Transport transport, final URI uri, final Race race) {
+		return new Callable<Winner>() {
+			@Override
+			public Winner call() throws Exception {
+				Winner w = new Winner();
+				w.uri = uri;
+				w.slot = hostLimiter.acquire(uri);
+				long start = System.nanoTime();
+				try {
+					w.response = transport.request(uri, Collections.<String, String> emptyMap(), false);
+				} catch (Exception e) {
+					if (w.slot)
+						hostLimiter.release(uri);
+					failure(uri);
+					throw e;
+				}
+				latency(uri, (System.nanoTime() - start) / 1000000);
+				if (!race.add(w))
+					close(w);
+				return w;
+			}
+		};
+	}
+
+	private void close(Winner w) {
+		try {
+			w.response.close();
+		} catch (Exception e) {
+			// ignore
+		} finally {
+			if (w.slot)
+				hostLimiter.release(w.uri);
+		}
+	}
+
+	long getHedgeDelay(URI best) {
+		if (hedgeDelay >= 0)
+			return hedgeDelay;
+		double latency;
+		synchronized (this) {
+			latency = getStats(best).latency;
+		}
+		return Math.max(MIN_HEDGE, Math.min(MAX_HEDGE, (long) (2 * latency)));
+	}
+
+	synchronized void latency(URI uri, long millis) {
+		HostStats s = getStats(uri);
+		s.latency = ewma(s.latency, millis, s.samples);
+		s.samples++;
+		dirty = true;
+	}
+
+	/**
+	 * Record a completed transfer
+	 */
+	synchronized void success(URI uri, long bytes, long millis) {
+		HostStats s = getStats(uri);
+		if (bytes > 0)
+			s.throughput = ewma(s.throughput, bytes / (double) Math.max(millis, 1), s.samples);
+		s.failures = ewma(s.failures, 0, s.samples);
+		s.samples++;
+		dirty = true;
+	}
+
+	synchronized void failure(URI uri) {
+		HostStats s = getStats(uri);
+		s.failures = ewma(s.failures, 1, s.samples);
+		s.samples++;
+		dirty = true;
+	}
+
+	private double ewma(double average, double sample, int samples) {
+		return samples == 0 ? sample : average + ALPHA * (sample - average);
+	}
+
+	private HostStats getStats(URI uri) {
+		String host = uri.getHost() == null ? "" : uri.getHost().toLowerCase(Locale.ROOT);
+		Stats stats = load();
+		HostStats s = stats.hosts.get(host);
+		if (s == null) {
+			s = new HostStats();
+			stats.hosts.put(host, s);
+		}
+		return s;
+	}
+
+	private Stats load() {
+		if (stats == null) {
+			if (file.isFile())
+				try {
+					stats = JustAnotherPackageManager.codec.dec().from(file).get(Stats.class);
+				} catch (Exception e) {
+					logger.debug("cannot read mirror statistics {}: {}", file, e);
+				}
+			if (stats == null || stats.hosts == null)
+				stats = new Stats();
+		}
+		return stats;
+	}
+
+	/**
+	 * Persist the statistics if they changed
+	 */
+	synchronized void save() {
+		if (!dirty)
+			return;
+		try {
+			File tmp = IO.createTempFile(file.getParentFile(), "mirrors", ".tmp");
+			JustAnotherPackageManager.codec.enc().to(tmp).put(stats);
+			IO.rename(tmp, file);
+			dirty = false;
+		} catch (Exception e) {
+			logger.debug("cannot save mirror statistics {}: {}", file, e);
+		}
+	}
+}
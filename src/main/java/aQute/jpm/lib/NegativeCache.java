@@ -0,0 +1,167 @@
+package aQute.jpm.lib;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.lib.io.IO;
+import aQute.lib.settings.Settings;
+import aQute.struct.struct;
+
+/**
+ * Remembers library lookups that found nothing, for a short time. Scripts
+ * that retry an install or probe many coordinates then do not hit the server
+ * for every attempt. The misses are persisted in the jpm home when jpm is
+ * closed so they survive the command line invocation, and the number of
+ * misses is bounded; when full the misses that expire first are dropped.
+ * <p>
+ * A cache without a file only lives in memory. In refresh mode the misses are
+ * ignored, new misses are still recorded.
+ */
+class NegativeCache {
+	private final static Logger	logger			= LoggerFactory.getLogger(NegativeCache.class);
+	static final String			JPM_NEGATIVE_TTL	= "jpm.negative.ttl";
+	// seconds
+	static final int			DEFAULT_TTL		= 300;
+	static final int			MAX_MISSES		= 1000;
+
+	public static class Misses extends struct {
+		// key -> expiration time
+		public Map<String,Long> misses = map();
+	}
+
+	final File					file;
+	final long					ttl;
+	private volatile boolean	refresh;
+	private Misses				data;
+	private boolean				dirty;
+
+	/**
+	 * @param ttl the time to live of a miss in milliseconds, 0 disables
+	 */
+	NegativeCache(File file, long ttl) {
+		this.file = file;
+		this.ttl = ttl;
+	}
+
+	NegativeCache(File file, Settings settings) {
+		this(file, 1000L * JustAnotherPackageManager.getInt(settings, JPM_NEGATIVE_TTL, DEFAULT_TTL));
+	}
+
+	void setRefresh(boolean refresh) {
+		this.refresh = refresh;
+	}
+
+	/**
+	 * Answer true if the key was recently a miss
+	 */
+	synchronized boolean isMiss(String key) {
+		if (refresh || ttl <= 0)
+			return false;
+
+		Long expires = load().misses.get(key);
+		if (expires == null)
+			return false;
+		if (expires > System.currentTimeMillis()) {
+			logger.debug("known miss {}", key);
+			return true;
+		}
+		data.misses.remove(key);
+		return false;
+	}
+
+	/**
+	 * Record a miss. It is persisted by {@link #save()}.
+	 */
+	synchronized void miss(String key) {
+		miss(Collections.singleton(key));
+	}
+
+	/**
+	 * Record the misses of a batch
+	 */
+	synchronized void miss(Collection<String> keys) {
+		if (ttl <= 0 || keys.isEmpty())
+			return;
+
+		long now = System.currentTimeMillis();
+		Map<String,Long> misses = load().misses;
+		for (String key : keys)
+			misses.put(key, now + ttl);
+		dirty = true;
+		if (misses.size() > MAX_MISSES)
+			evict(misses, now);
+	}
+
+	/**
+	 * Drop the expired misses and, when still full, the misses that expire
+	 * first. Room is made for a quarter of the bound so that the misses that
+	 * follow do not each evict.
+	 */
+	private static void evict(Map<String,Long> misses, long now) {
+		for (Iterator<Long> i = misses.values().iterator(); i.hasNext();)
+			if (i.next() <= now)
+				i.remove();
+		if (misses.size() <= MAX_MISSES)
+			return;
+
+		List<Map.Entry<String,Long>> entries = new ArrayList<Map.Entry<String,Long>>(misses.entrySet());
+		Collections.sort(entries, (a, b) -> Long.compare(a.getValue(), b.getValue()));
+		int drop = entries.size() - MAX_MISSES * 3 / 4;
+		for (int i = 0; i < drop; i++)
+			misses.remove(entries.get(i).getKey());
+	}
+
+	/**
+	 * Forget a miss, the key was found after all
+	 */
+	synchronized void hit(String key) {
+		if (ttl > 0 && load().misses.remove(key) != null)
+			dirty = true;
+	}
+
+	/**
+	 * Persist the misses when they changed
+	 */
+	synchronized void save() {
+		if (!dirty || file == null)
+			return;
+		dirty = false;
+
+		try {
+			IO.mkdirs(file.getParentFile());
+			File tmp = IO.createTempFile(file.getParentFile(), file.getName(), ".tmp");
+			try {
+				JustAnotherPackageManager.codec.enc().to(tmp).put(data);
+				IO.rename(tmp, file);
+			} finally {
+				IO.delete(tmp);
+			}
+		} catch (Exception e) {
+			logger.debug("cannot persist misses {}: {}", file, e);
+		}
+	}
+
+	private Misses load() {
+		if (data != null)
+			return data;
+
+		if (file != null && file.isFile()) {
+			try {
+				data = JustAnotherPackageManager.codec.dec().from(file).get(Misses.class);
+			} catch (Exception e) {
+				logger.debug("cannot read misses {}: {}", file, e);
+			}
+		}
+		if (data == null || data.misses == null)
+			data = new Misses();
+		return data;
+	}
+}
@@ -0,0 +1,255 @@
+package aQute.jpm.lib;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.lib.io.IO;
+import aQute.struct.Define;
+import aQute.struct.struct;
+
+/**
+ * A download that survives a broken transfer. The bytes are written to
+ * {@code repo/.partial/<key>.part}, next to it the validators (ETag,
+ * Last-Modified) of the response are kept. When a transfer fails the part
+ * file is kept and the next attempt asks for the remaining bytes with a
+ * {@code Range} request. The {@code If-Range} validator makes sure the server
+ * only sends the remainder if the resource did not change, otherwise it sends
+ * the whole resource and we start over. Servers that do not support ranges
+ * simply answer with the full content.
+ * <p>
+ * The key is the key of the {@link RepoLock} of the download, the caller must
+ * hold that lock.
+ */
+class PartialDownload {
+	private final static Logger	logger	= LoggerFactory.getLogger(PartialDownload.class);
+	static final String			PARTIAL	= ".partial";
+	static final long			MAX_AGE	= 7L * 24 * 60 * 60 * 1000;
+
+	public static class Validator extends struct {
+		public URI		url;
+		public String	etag;
+		public String	lastModified;
+		// the progress of a chunked download
+		@Define(optional = true)
+		public long		size;
+		@Define(optional = true)
+		public long[]	chunks;
+
+		/**
+		 * The validator for an If-Range header, weak ETags cannot be used
+		 */
+		String getIfRange() {
+			return etag != null && !etag.startsWith("W/") ? etag : lastModified;
+		}
+	}
+
+	final File	file;
+	final File	meta;
+
+	PartialDownload(File repoDir, String key) {
+		File dir = new File(repoDir, PARTIAL);
+		this.file = new File(dir, key + ".part");
+		this.meta = new File(dir, key + RepoLayout.JSON);
+	}
+
+	/**
+	 * Download the uri into the part file, resuming a previous attempt when
+	 * possible. Transfers that break are resumed up to the number of retries
+	 * of the transport.
+	 *
+	 * @return the verified digest of the complete file
+	 */
+	DigestingInputStream fetch(Transport transport, URI uri, byte[] expectedSha, long expectedSize)
+			throws Exception {
+		return fetch(transport, uri, null, expectedSha, expectedSize);
+	}
+
+	/**
+	 * Download the uri into the part file, starting with an already opened
+	 * response of a complete (non range) request, if not null.
+	 */
+	DigestingInputStream fetch(Transport transport, URI uri, Transport.Response first, byte[] expectedSha,
+			long expectedSize) throws Exception {
+		IO.mkdirs(file.getParentFile());
+		for (int attempt = 0;; attempt++) {
+			long before = file.length();
+			try {
+				Transport.Response response = first;
+				first = null;
+				return fetch0(transport, uri, response, expectedSha, expectedSize);
+			} catch (IOException e) {
+				if (attempt >= transport.retries || !isResumable(uri) || file.length() <= before)
+					throw e;
+				logger.debug("transfer of {} broke at {}, resuming: {}", uri, file.length(), e.getMessage());
+			}
+		}
+	}
+
+	private DigestingInputStream fetch0(Transport transport, URI uri, Transport.Response first, byte[] expectedSha,
+			long expectedSize) throws Exception {
+		long offset = 0;
+		Map<String,String> headers = new LinkedHashMap<String,String>();
+		Validator validator = first == null ? getValidator(uri) : null;
+		if (validator != null && validator.chunks == null && file.isFile()
+			&& (expectedSize <= 0 || file.length() < expectedSize)) {
+			offset = file.length();
+			String ifRange = validator.getIfRange();
+			if (offset > 0 && ifRange != null) {
+				headers.put("Range", "bytes=" + offset + "-");
+				headers.put("If-Range", ifRange);
+			} else
+				offset = 0;
+		}
+
+		Transport.Response response = first != null ? first : transport.request(uri, headers, false);
+		try {
+			if (response.getCode() == 416) {
+				// what we have does not fit the resource, start over
+				logger.debug("range not satisfiable for {}, restarting", uri);
+				response.close();
+				delete();
+				headers.clear();
+				offset = 0;
+				response = transport.request(uri, headers, false);
+			}
+
+			boolean resumed = offset > 0 && response.getCode() == 206 && isRange(response, offset);
+			if (offset > 0 && !resumed)
+				logger.debug("server sent full content for {}, restarting", uri);
+			if (!resumed)
+				setValidator(uri, response);
+
+			DigestingInputStream in = new DigestingInputStream(response.getStream(), expectedSha, expectedSize);
+			if (resumed) {
+				logger.debug("resuming {} at {}", uri, offset);
+				try (InputStream prefix = IO.stream(file)) {
+					in.update(prefix);
+				}
+			}
+
+			try (OutputStream out = new FileOutputStream(file, resumed)) {
+				IO.copy(in, out);
+				in.verify();
+			} catch (IOException e) {
+				// content that does not verify is discarded, a transfer that
+				// broke or ended early can still be resumed
+				if (in.failure != null && (expectedSize <= 0 || in.getCount() >= expectedSize))
+					delete();
+				throw e;
+			}
+			return in;
+		} finally {
+			response.close();
+		}
+	}
+
+	private boolean isRange(Transport.Response response, long offset) {
+		String range = response.getHeader("Content-Range");
+		return range != null && range.trim().startsWith("bytes " + offset + "-");
+	}
+
+	private Validator getValidator(URI uri) {
+		if (!meta.isFile())
+			return null;
+		try {
+			Validator v = JustAnotherPackageManager.codec.dec().from(meta).get(Validator.class);
+			return uri.equals(v.url) ? v : null;
+		} catch (Exception e) {
+			logger.debug("invalid partial metadata {}: {}", meta, e);
+			return null;
+		}
+	}
+
+	private void setValidator(URI uri, Transport.Response response) throws Exception {
+		Validator v = getValidator(uri, response);
+		if (v == null)
+			IO.delete(meta);
+		else
+			JustAnotherPackageManager.codec.enc().to(meta).put(v);
+	}
+
+	/**
+	 * The validator of a response, null if the resource cannot be resumed
+	 */
+	static Validator getValidator(URI uri, Transport.Response response) {
+		Validator v = new Validator();
+		v.url = uri;
+		v.etag = response.getHeader("ETag");
+		v.lastModified = response.getHeader("Last-Modified");
+		if ("none".equalsIgnoreCase(response.getHeader("Accept-Ranges")) || v.getIfRange() == null)
+			return null;
+		return v;
+	}
+
+	/**
+	 * The progress of a chunked download of the uri in n chunks that broke, or
+	 * null
+	 */
+	Validator getChunks(URI uri, long size, int n) {
+		Validator v = getValidator(uri);
+		if (v == null || v.chunks == null || v.chunks.length != n || v.size != size || file.length() != size)
+			return null;
+		return v;
+	}
+
+	void setChunks(Validator v) throws Exception {
+		JustAnotherPackageManager.codec.enc().to(meta).put(v);
+	}
+
+	/**
+	 * The size of a chunked download of the uri that broke, or 0
+	 */
+	long getChunkedSize(URI uri) {
+		Validator v = getValidator(uri);
+		return v == null || v.chunks == null ? 0 : v.size;
+	}
+
+	private boolean isResumable(URI uri) {
+		return getValidator(uri) != null;
+	}
+
+	/**
+	 * The url of a previous attempt that can be resumed, or null
+	 */
+	URI getResumable() {
+		if (!file.isFile() || !meta.isFile())
+			return null;
+		try {
+			return JustAnotherPackageManager.codec.dec().from(meta).get(Validator.class).url;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Remove the part file and its validators, called when the download is
+	 * complete or cannot be resumed.
+	 */
+	void delete() {
+		IO.delete(file);
+		IO.delete(meta);
+	}
+
+	/**
+	 * Remove partial downloads that were not touched for a long time
+	 */
+	static void clean(File repoDir) {
+		File[] files = new File(repoDir, PARTIAL).listFiles();
+		if (files == null)
+			return;
+
+		long limit = System.currentTimeMillis() - MAX_AGE;
+		for (File f : files)
+			if (f.lastModified() < limit)
+				IO.delete(f);
+	}
+}
@@ -0,0 +1,573 @@
+package aQute.jpm.lib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.bnd.version.MavenVersion;
+import aQute.bnd.version.MavenVersionRange;
+import aQute.lib.io.IO;
+import aQute.service.library.Library.Revision;
+import aQute.service.library.Library.RevisionRef;
+
+/**
+ * Resolves the transitive runtime dependencies of an artifact from the POMs
+ * in a Maven repository, the way Maven does it:
+ * <ul>
+ * <li>a POM inherits properties, dependencies and dependency management from
+ * its parents, after which the properties are interpolated;
+ * <li>a dependency management import (a BOM) adds the managed dependencies of
+ * the imported POM;
+ * <li>the dependency management of the root overrides the versions and scopes
+ * of the transitive dependencies;
+ * <li>only compile and runtime dependencies are followed, optional
+ * dependencies only when they are direct dependencies and asked for;
+ * <li>when an artifact is found more than once, the nearest one wins, at the
+ * same depth the first declared.
+ * </ul>
+ * The closure is resolved breadth first, the POMs and revisions of one level
+ * are fetched in parallel. Effective POMs are memoized per coordinate, so the
+ * parents that many artifacts share (Spring, Jackson, Apache) are parsed once.
+ * <p>
+ * The closure of a dependency is not memoized per coordinate. It depends on
+ * where the dependency is found: the dependency management of the root
+ * overrides its transitive versions and scopes, the exclusions of the path
+ * to it apply, and what is already nearer to the root wins. Only the closure
+ * of a root revision is memoized, by the library.
+ */
+class PomResolver {
+	private final static Logger	logger			= LoggerFactory.getLogger(PomResolver.class);
+	static final Pattern		PROPERTY_P		= Pattern.compile("\\$\\{([^}]+)\\}");
+	static final String			PROPERTIES		= "/project/properties/";
+	static final int			MAX_PARENTS		= 32;
+	static final int			MAX_MODELS		= 5000;
+
+	static class Dependency {
+		String		groupId;
+		String		artifactId;
+		String		version;
+		String		type;
+		String		classifier;
+		String		scope;
+		boolean		optional;
+		Set<String>	exclusions	= new LinkedHashSet<String>();
+
+		/**
+		 * The key of dependency management and conflict resolution
+		 */
+		String key() {
+			return groupId + ":" + artifactId + (classifier == null ? "" : ":" + classifier);
+		}
+
+		Dependency copy() {
+			Dependency d = new Dependency();
+			d.groupId = groupId;
+			d.artifactId = artifactId;
+			d.version = version;
+			d.type = type;
+			d.classifier = classifier;
+			d.scope = scope;
+			d.optional = optional;
+			d.exclusions = new LinkedHashSet<String>(exclusions);
+			return d;
+		}
+
+		@Override
+		public String toString() {
+			return key() + "@" + version;
+		}
+	}
+
+	static class Pom {
+		String							groupId;
+		String							artifactId;
+		String							version;
+		String							packaging;
+		String							parentGroupId;
+		String							parentArtifactId;
+		String							parentVersion;
+		final Map<String,String>		properties		= new LinkedHashMap<String,String>();
+		final Map<String,Dependency>	dependencies	= new LinkedHashMap<String,Dependency>();
+		final Map<String,Dependency>	managed			= new LinkedHashMap<String,Dependency>();
+	}
+
+	/**
+	 * A selected artifact in the closure
+	 */
+	static class Node {
+		final Dependency	dependency;
+		final String		scope;
+		final Set<String>	exclusions;
+		Revision			revision;
+		Pom					pom;
+
+		Node(Dependency dependency, String scope, Set<String> exclusions) {
+			this.dependency = dependency;
+			this.scope = scope;
+			this.exclusions = exclusions;
+		}
+	}
+
+	final MavenCentralLibrary				library;
+	private final ConcurrentMap<String,Pom>	inherited	= new ConcurrentHashMap<String,Pom>();
+	private final ConcurrentMap<String,Pom>	effective	= new ConcurrentHashMap<String,Pom>();
+
+	PomResolver(MavenCentralLibrary library) {
+		this.library = library;
+	}
+
+	/**
+	 * Resolve the transitive dependencies of a revision. The revision itself is
+	 * not part of the closure. Called from a task of a bounded transfer pool
+	 * the levels are fetched on the calling thread, see
+	 * {@link JustAnotherPackageManager#submitTransfer(java.util.concurrent.Callable)}.
+	 */
+	List<RevisionRef> closure(Revision root, boolean optionals) throws Exception {
+		Pom pom = getModel(root.groupId, root.artifactId, root.version);
+		Set<String> seen = new HashSet<String>();
+		seen.add(root.groupId + ":" + root.artifactId + (root.classifier == null ? "" : ":" + root.classifier));
+
+		List<Node> level = new ArrayList<Node>();
+		for (Dependency d : pom.dependencies.values())
+			if (accept(d) && (!d.optional || optionals))
+				level.add(new Node(d.copy(), d.scope == null ? "compile" : d.scope, d.exclusions));
+
+		List<RevisionRef> result = new ArrayList<RevisionRef>();
+		for (int depth = 0; !level.isEmpty(); depth++) {
+			List<Node> selected = new ArrayList<Node>();
+			for (Node n : level) {
+				if (!seen.add(n.dependency.key()))
+					continue;
+				if (depth > 0) {
+					Dependency managed = pom.managed.get(n.dependency.key());
+					if (managed != null && managed.version != null)
+						n.dependency.version = managed.version;
+				}
+				selected.add(n);
+			}
+
+			fetch(selected);
+
+			List<Node> next = new ArrayList<Node>();
+			for (Node n : selected) {
+				if (n.revision == null) {
+					logger.debug("dependency {} not found", n.dependency);
+					continue;
+				}
+				result.add(new RevisionRef(n.revision));
+				if (n.pom == null)
+					continue;
+
+				for (Dependency d : n.pom.dependencies.values()) {
+					if (d.optional || !accept(d) || excluded(n.exclusions, d))
+						continue;
+					String scope = mediate(n.scope, d.scope);
+					Dependency managed = pom.managed.get(d.key());
+					if (managed != null && managed.scope != null)
+						scope = mediate(n.scope, managed.scope);
+					if (scope == null)
+						continue;
+					Set<String> exclusions = new LinkedHashSet<String>(n.exclusions);
+					exclusions.addAll(d.exclusions);
+					next.add(new Node(d.copy(), scope, exclusions));
+				}
+			}
+			level = next;
+		}
+		return result;
+	}
+
+	/**
+	 * Fetch the revisions and POMs of a level in parallel
+	 */
+	private void fetch(List<Node> nodes) throws Exception {
+		List<Future< ? >> futures = new ArrayList<Future< ? >>();
+		for (final Node n : nodes)
+			futures.add(JustAnotherPackageManager.submitTransfer(() -> {
+				Dependency d = n.dependency;
+				String version = resolveVersion(d);
+				if (version == null)
+					return null;
+				d.version = version;
+				n.revision = library.getRevision(d.groupId, d.artifactId, d.classifier, version);
+				if (n.revision != null)
+					n.pom = getModel(d.groupId, d.artifactId, version);
+				return null;
+			}));
+
+		for (Future< ? > f : futures) {
+			try {
+				f.get();
+			} catch (ExecutionException e) {
+				logger.debug("cannot resolve dependency: {}", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Exclusions are groupId:artifactId, either can be a wildcard
+	 */
+	static boolean excluded(Set<String> exclusions, Dependency d) {
+		for (String exclusion : exclusions) {
+			String[] ga = exclusion.split(":");
+			if ((ga[0].equals("*") || ga[0].equals(d.groupId))
+				&& (ga.length < 2 || ga[1].equals("*") || ga[1].equals(d.artifactId)))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Only jars that end up on the runtime class path
+	 */
+	static boolean accept(Dependency d) {
+		String type = d.type == null ? "jar" : d.type;
+		if (!type.equals("jar") && !type.equals("bundle"))
+			return false;
+		return d.scope == null || d.scope.equals("compile") || d.scope.equals("runtime");
+	}
+
+	/**
+	 * The scope of a transitive dependency
+	 *
+	 * @return the scope or null if it is not on the runtime class path
+	 */
+	static String mediate(String parent, String child) {
+		if (child == null || child.equals("compile"))
+			return parent;
+		if (child.equals("runtime"))
+			return "runtime";
+		return null;
+	}
+
+	/**
+	 * Resolve a version range to the highest matching version in the
+	 * repository
+	 */
+	private String resolveVersion(Dependency d) throws Exception {
+		if (d.version == null) {
+			logger.debug("no version for {}", d);
+			return null;
+		}
+		if (!MavenVersionRange.isRange(d.version))
+			return d.version;
+
+		MavenVersionRange range = new MavenVersionRange(d.version);
+		MavenCentralLibrary.Metadata md = library.getMetadata(d.groupId, d.artifactId);
+		if (md == null)
+			return null;
+		MavenVersion best = null;
+		String result = null;
+		for (String v : md.versions) {
+			MavenVersion mv = MavenVersion.parseMavenString(v);
+			if (mv != null && range.includes(mv) && (best == null || mv.compareTo(best) > 0)) {
+				best = mv;
+				result = v;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Answer the effective POM: inherited, interpolated, and with its imports
+	 * resolved
+	 */
+	Pom getModel(String groupId, String artifactId, String version) throws Exception {
+		return getModel(groupId, artifactId, version, 0);
+	}
+
+	private Pom getModel(String groupId, String artifactId, String version, int imports) throws Exception {
+		String key = groupId + ":" + artifactId + ":" + version;
+		Pom pom = effective.get(key);
+		if (pom != null)
+			return pom;
+		if (imports > MAX_PARENTS)
+			throw new IOException("Too deeply nested imports in " + key);
+
+		pom = interpolate(getInherited(groupId, artifactId, version, new LinkedHashSet<String>()));
+
+		for (Dependency d : new ArrayList<Dependency>(pom.managed.values())) {
+			if (!"import".equals(d.scope) || !"pom".equals(d.type))
+				continue;
+			pom.managed.remove(d.key());
+			try {
+				Pom bom = getModel(d.groupId, d.artifactId, d.version, imports + 1);
+				for (Dependency m : bom.managed.values())
+					if (!pom.managed.containsKey(m.key()))
+						pom.managed.put(m.key(), m);
+			} catch (IOException e) {
+				logger.debug("cannot import {} in {}: {}", d, key, e);
+			}
+		}
+
+		for (Dependency d : pom.dependencies.values()) {
+			Dependency managed = pom.managed.get(d.key());
+			if (managed == null)
+				continue;
+			if (d.version == null)
+				d.version = managed.version;
+			if (d.scope == null)
+				d.scope = managed.scope;
+			if (d.exclusions.isEmpty())
+				d.exclusions.addAll(managed.exclusions);
+		}
+
+		if (effective.size() > MAX_MODELS)
+			effective.clear();
+		effective.put(key, pom);
+		return pom;
+	}
+
+	/**
+	 * Answer the POM merged with its parents, not yet interpolated since the
+	 * properties of a child apply to what it inherits
+	 */
+	private Pom getInherited(String groupId, String artifactId, String version, Set<String> chain)
+			throws Exception {
+		String key = groupId + ":" + artifactId + ":" + version;
+		Pom pom = inherited.get(key);
+		if (pom != null)
+			return pom;
+
+		if (!chain.add(key) || chain.size() > MAX_PARENTS)
+			throw new IOException("Cyclic or too deep parent chain " + chain);
+
+		try (InputStream in = IO.stream(library.getPom(groupId, artifactId, version))) {
+			pom = parse(in);
+		}
+		if (pom.parentArtifactId != null) {
+			Pom parent = getInherited(pom.parentGroupId, pom.parentArtifactId, pom.parentVersion, chain);
+			pom = merge(parent, pom);
+		}
+		if (pom.groupId == null)
+			pom.groupId = pom.parentGroupId;
+		if (pom.version == null)
+			pom.version = pom.parentVersion;
+
+		if (inherited.size() > MAX_MODELS)
+			inherited.clear();
+		inherited.put(key, pom);
+		return pom;
+	}
+
+	static Pom merge(Pom parent, Pom child) {
+		Pom pom = new Pom();
+		pom.groupId = child.groupId;
+		pom.artifactId = child.artifactId;
+		pom.version = child.version;
+		pom.packaging = child.packaging;
+		pom.parentGroupId = child.parentGroupId;
+		pom.parentArtifactId = child.parentArtifactId;
+		pom.parentVersion = child.parentVersion;
+		pom.properties.putAll(parent.properties);
+		pom.properties.putAll(child.properties);
+		for (Dependency d : parent.managed.values())
+			pom.managed.put(d.key(), d.copy());
+		pom.managed.putAll(child.managed);
+		for (Dependency d : parent.dependencies.values())
+			pom.dependencies.put(d.key(), d.copy());
+		pom.dependencies.putAll(child.dependencies);
+		return pom;
+	}
+
+	/**
+	 * Answer an interpolated copy
+	 */
+	static Pom interpolate(Pom raw) {
+		Map<String,String> properties = new LinkedHashMap<String,String>(raw.properties);
+		for (String prefix : new String[] {
+				"project.", "pom."
+		}) {
+			put(properties, prefix + "groupId", raw.groupId);
+			put(properties, prefix + "artifactId", raw.artifactId);
+			put(properties, prefix + "version", raw.version);
+			put(properties, prefix + "parent.groupId", raw.parentGroupId);
+			put(properties, prefix + "parent.version", raw.parentVersion);
+		}
+		put(properties, "parent.version", raw.parentVersion);
+
+		Pom pom = new Pom();
+		pom.groupId = interpolate(raw.groupId, properties);
+		pom.artifactId = interpolate(raw.artifactId, properties);
+		pom.version = interpolate(raw.version, properties);
+		pom.packaging = raw.packaging;
+		pom.parentGroupId = raw.parentGroupId;
+		pom.parentArtifactId = raw.parentArtifactId;
+		pom.parentVersion = raw.parentVersion;
+		pom.properties.putAll(properties);
+		for (Dependency d : raw.managed.values()) {
+			Dependency i = interpolate(d, properties);
+			pom.managed.put(i.key(), i);
+		}
+		for (Dependency d : raw.dependencies.values()) {
+			Dependency i = interpolate(d, properties);
+			pom.dependencies.put(i.key(), i);
+		}
+		return pom;
+	}
+
+	private static void put(Map<String,String> properties, String key, String value) {
+		if (value != null && !properties.containsKey(key))
+			properties.put(key, value);
+	}
+
+	private static Dependency interpolate(Dependency d, Map<String,String> properties) {
+		Dependency i = d.copy();
+		i.groupId = interpolate(d.groupId, properties);
+		i.artifactId = interpolate(d.artifactId, properties);
+		i.version = interpolate(d.version, properties);
+		i.classifier = interpolate(d.classifier, properties);
+		i.scope = interpolate(d.scope, properties);
+		i.type = interpolate(d.type, properties);
+		return i;
+	}
+
+	static String interpolate(String s, Map<String,String> properties) {
+		if (s == null || s.indexOf("${") < 0)
+			return s;
+		for (int i = 0; i < 10 && s.indexOf("${") >= 0; i++) {
+			Matcher m = PROPERTY_P.matcher(s);
+			StringBuffer sb = new StringBuffer();
+			boolean changed = false;
+			while (m.find()) {
+				String value = properties.get(m.group(1));
+				if (value != null)
+					changed = true;
+				m.appendReplacement(sb, Matcher.quoteReplacement(value != null ? value : m.group()));
+			}
+			m.appendTail(sb);
+			s = sb.toString();
+			if (!changed)
+				break;
+		}
+		return s;
+	}
+
+	/**
+	 * Parse the parts of a POM that matter for dependency resolution
+	 */
+	static Pom parse(InputStream in) throws Exception {
+		Pom pom = new Pom();
+		XMLStreamReader r = MavenCentralLibrary.xmlFactory.createXMLStreamReader(in);
+		try {
+			StringBuilder path = new StringBuilder();
+			Dependency dependency = null;
+			String[] exclusion = null;
+			while (r.hasNext()) {
+				switch (r.next()) {
+					case XMLStreamConstants.START_ELEMENT :
+						path.append('/').append(r.getLocalName());
+						String p = path.toString();
+
+						if (p.equals("/project/dependencies/dependency")
+							|| p.equals("/project/dependencyManagement/dependencies/dependency")) {
+							dependency = new Dependency();
+							continue;
+						}
+						if (dependency != null && p.endsWith("/dependency/exclusions/exclusion")) {
+							exclusion = new String[2];
+							continue;
+						}
+						if (p.startsWith(PROPERTIES) && p.indexOf('/', PROPERTIES.length()) < 0) {
+							pom.properties.put(r.getLocalName(), r.getElementText().trim());
+						} else if (exclusion != null && p.endsWith("/exclusion/groupId")) {
+							exclusion[0] = r.getElementText().trim();
+						} else if (exclusion != null && p.endsWith("/exclusion/artifactId")) {
+							exclusion[1] = r.getElementText().trim();
+						} else if (dependency != null && p.endsWith("/dependency/" + r.getLocalName())
+							&& !r.getLocalName().equals("exclusions")) {
+							String text = r.getElementText().trim();
+							switch (r.getLocalName()) {
+								case "groupId" :
+									dependency.groupId = text;
+									break;
+								case "artifactId" :
+									dependency.artifactId = text;
+									break;
+								case "version" :
+									dependency.version = text;
+									break;
+								case "type" :
+									dependency.type = text;
+									break;
+								case "classifier" :
+									dependency.classifier = text.isEmpty() ? null : text;
+									break;
+								case "scope" :
+									dependency.scope = text;
+									break;
+								case "optional" :
+									dependency.optional = Boolean.parseBoolean(text);
+									break;
+							}
+						} else {
+							switch (p) {
+								case "/project/groupId" :
+									pom.groupId = r.getElementText().trim();
+									break;
+								case "/project/artifactId" :
+									pom.artifactId = r.getElementText().trim();
+									break;
+								case "/project/version" :
+									pom.version = r.getElementText().trim();
+									break;
+								case "/project/packaging" :
+									pom.packaging = r.getElementText().trim();
+									break;
+								case "/project/parent/groupId" :
+									pom.parentGroupId = r.getElementText().trim();
+									break;
+								case "/project/parent/artifactId" :
+									pom.parentArtifactId = r.getElementText().trim();
+									break;
+								case "/project/parent/version" :
+									pom.parentVersion = r.getElementText().trim();
+									break;
+								default :
+									continue;
+							}
+						}
+						// getElementText consumed the end element
+						path.setLength(path.lastIndexOf("/"));
+						break;
+
+					case XMLStreamConstants.END_ELEMENT :
+						String end = path.toString();
+						if (end.equals("/project/dependencies/dependency")) {
+							pom.dependencies.put(dependency.key(), dependency);
+							dependency = null;
+						} else if (end.equals("/project/dependencyManagement/dependencies/dependency")) {
+							pom.managed.put(dependency.key(), dependency);
+							dependency = null;
+						} else if (exclusion != null && end.endsWith("/exclusion")) {
+							dependency.exclusions.add(exclusion[0] + ":" + exclusion[1]);
+							exclusion = null;
+						}
+						path.setLength(path.lastIndexOf("/"));
+						break;
+				}
+			}
+		} finally {
+			r.close();
+		}
+		return pom;
+	}
+}
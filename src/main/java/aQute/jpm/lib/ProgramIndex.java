@@ -0,0 +1,528 @@
+package aQute.jpm.lib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.lib.io.IO;
+import aQute.service.library.Library;
+import aQute.service.library.Library.Program;
+import aQute.service.library.Library.Revision;
+import aQute.struct.struct;
+
+/**
+ * A local inverted index over the programs jpm has seen, so a search does not
+ * need a round trip to the server. The artifactId, groupId, keywords,
+ * categories and description of a program are split in lower case terms,
+ * every term has a posting list of the documents that contain it and in which
+ * fields. A query term matches all terms it is a prefix of, a document must
+ * match all query terms. Hits are ordered by the fields they matched in, then
+ * by the {@link Program#rank} and {@link Program#vote} of the program.
+ * <p>
+ * The programs are stored as JSON, the posting lists in a compact binary file:
+ *
+ * <pre>
+ * file    ::= magic:int version:int documents:int terms:int term*
+ * term    ::= utf count:varint posting*
+ * posting ::= ((document - previous document) << 4 | fields):varint
+ * </pre>
+ *
+ * The posting lists are rebuilt from the programs when they are missing or do
+ * not match.
+ */
+class ProgramIndex {
+	private final static Logger	logger			= LoggerFactory.getLogger(ProgramIndex.class);
+	static final String			PROGRAMS		= "programs.json";
+	static final String			POSTINGS		= "postings.idx";
+	static final int			MAGIC			= 0x4A504D49;
+	static final int			VERSION			= 1;
+	static final int			DEFAULT_LIMIT	= 20;
+
+	static final int			ARTIFACT		= 1;
+	static final int			GROUP			= 2;
+	static final int			KEYWORD			= 4;
+	static final int			DESCRIPTION		= 8;
+	static final int			FIELDS			= 4;
+
+	public static class Programs extends struct {
+		public List<Program> programs = list();
+	}
+
+	static class Postings {
+		int[]	postings	= new int[4];
+		int		size;
+
+		void add(int document, int fields) {
+			int posting = document << FIELDS | fields;
+			int slot = find(document);
+			if (slot >= 0) {
+				postings[slot] |= fields;
+				return;
+			}
+			slot = -slot - 1;
+			if (size == postings.length)
+				postings = Arrays.copyOf(postings, size * 2);
+			System.arraycopy(postings, slot, postings, slot + 1, size - slot);
+			postings[slot] = posting;
+			size++;
+		}
+
+		void remove(int document) {
+			int slot = find(document);
+			if (slot < 0)
+				return;
+			System.arraycopy(postings, slot + 1, postings, slot, size - slot - 1);
+			size--;
+		}
+
+		private int find(int document) {
+			int low = 0;
+			int high = size - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int d = postings[mid] >>> FIELDS;
+				if (d < document)
+					low = mid + 1;
+				else if (d > document)
+					high = mid - 1;
+				else
+					return mid;
+			}
+			return -(low + 1);
+		}
+	}
+
+	final File								dir;
+	private final List<Program>				programs	= new ArrayList<Program>();
+	private final Map<String,Integer>		documents	= new HashMap<String,Integer>();
+	private final TreeMap<String,Postings>	terms		= new TreeMap<String,Postings>();
+	private boolean							loaded;
+	private boolean							dirty;
+
+	ProgramIndex(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Add or replace the programs
+	 */
+	synchronized void addAll(Collection< ? extends Program> list) {
+		for (Program p : list)
+			add(p);
+	}
+
+	/**
+	 * Add or replace a program, the program is keyed by its groupId and
+	 * artifactId
+	 */
+	synchronized void add(Program program) {
+		if (program.groupId == null || program.artifactId == null || program.groupId.equals(Library.SHA_GROUP))
+			return;
+
+		load();
+		Program p = strip(program);
+		String key = p.groupId + ":" + p.artifactId;
+		Integer document = documents.get(key);
+		if (document == null) {
+			document = programs.size();
+			programs.add(p);
+			documents.put(key, document);
+		} else {
+			Program old = programs.get(document);
+			if (p.last == null)
+				p.last = old.last;
+			else if (p.last.description == null && old.last != null)
+				p.last.description = old.last.description;
+			if (p.rank == 0)
+				p.rank = old.rank;
+			if (p.vote == 0)
+				p.vote = old.vote;
+			merge(p.keywords, old.keywords);
+			merge(p.category, old.category);
+			for (String term : terms(old).keySet()) {
+				Postings postings = terms.get(term);
+				if (postings != null) {
+					postings.remove(document);
+					if (postings.size == 0)
+						terms.remove(term);
+				}
+			}
+			programs.set(document, p);
+		}
+		index(document, p);
+		dirty = true;
+	}
+
+	/**
+	 * Add the program of a revision, the revision becomes the last revision
+	 * of the program
+	 */
+	void add(Revision revision) {
+		if (revision == null)
+			return;
+
+		Program p = new Program();
+		p.groupId = revision.groupId;
+		p.artifactId = revision.artifactId;
+		p.last = revision;
+		p.modified = revision.modified;
+		if (revision.category != null)
+			p.category.addAll(revision.category);
+		add(p);
+	}
+
+	/**
+	 * Find the programs that match all terms of the query, ordered by
+	 * relevance.
+	 *
+	 * @param skip the number of hits to skip
+	 * @param limit the maximum number of hits, 0 or less is the default
+	 */
+	synchronized List<Program> find(String query, int skip, int limit) {
+		load();
+		if (skip < 0)
+			skip = 0;
+		if (limit <= 0)
+			limit = DEFAULT_LIMIT;
+
+		int n = programs.size();
+		List<String> tokens = new ArrayList<String>(tokenize(query == null ? "" : query, 0).keySet());
+		int[] score = new int[n];
+		int[] matched = new int[n];
+		int[] best = new int[n];
+		for (int t = 0; t < tokens.size(); t++) {
+			String token = tokens.get(t);
+			Arrays.fill(best, 0);
+			for (Map.Entry<String,Postings> e : prefixed(token).entrySet()) {
+				boolean exact = e.getKey().equals(token);
+				Postings postings = e.getValue();
+				for (int i = 0; i < postings.size; i++) {
+					int document = postings.postings[i] >>> FIELDS;
+					if (matched[document] != t)
+						continue;
+					int weight = weight(postings.postings[i] & ((1 << FIELDS) - 1));
+					if (exact)
+						weight *= 2;
+					if (weight > best[document])
+						best[document] = weight;
+				}
+			}
+			for (int document = 0; document < n; document++)
+				if (best[document] > 0) {
+					matched[document]++;
+					score[document] += best[document];
+				}
+		}
+
+		Comparator<Integer> order = (a, b) -> {
+			if (score[a] != score[b])
+				return score[a] > score[b] ? -1 : 1;
+			Program pa = programs.get(a);
+			Program pb = programs.get(b);
+			if (pa.rank != pb.rank)
+				return pa.rank > pb.rank ? -1 : 1;
+			if (pa.vote != pb.vote)
+				return pa.vote > pb.vote ? -1 : 1;
+			int c = pa.groupId.compareTo(pb.groupId);
+			if (c != 0)
+				return c;
+			return pa.artifactId.compareTo(pb.artifactId);
+		};
+
+		// keep the best skip + limit hits, the worst on top
+		int wanted = (int) Math.min((long) skip + limit, Integer.MAX_VALUE);
+		PriorityQueue<Integer> top = new PriorityQueue<Integer>(Math.min(wanted, 64), order.reversed());
+		for (int document = 0; document < n; document++) {
+			if (matched[document] != tokens.size())
+				continue;
+			if (top.size() < wanted)
+				top.add(document);
+			else if (order.compare(document, top.peek()) < 0) {
+				top.poll();
+				top.add(document);
+			}
+		}
+
+		List<Integer> hits = new ArrayList<Integer>(top);
+		Collections.sort(hits, order);
+		List<Program> result = new ArrayList<Program>();
+		for (int i = skip; i < hits.size(); i++)
+			result.add(programs.get(hits.get(i)));
+		return result;
+	}
+
+	synchronized int size() {
+		load();
+		return programs.size();
+	}
+
+	/**
+	 * Persist the index when it was changed
+	 */
+	synchronized void save() {
+		if (!dirty)
+			return;
+
+		try {
+			IO.mkdirs(dir);
+			Programs data = new Programs();
+			data.programs = programs;
+			File tmp = IO.createTempFile(dir, PROGRAMS, ".tmp");
+			try {
+				JustAnotherPackageManager.codec.enc().to(tmp).put(data);
+				IO.rename(tmp, new File(dir, PROGRAMS));
+			} finally {
+				IO.delete(tmp);
+			}
+
+			tmp = IO.createTempFile(dir, POSTINGS, ".tmp");
+			try {
+				try (DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(new FileOutputStream(tmp)))) {
+					writePostings(out);
+				}
+				IO.rename(tmp, new File(dir, POSTINGS));
+			} finally {
+				IO.delete(tmp);
+			}
+			dirty = false;
+		} catch (Exception e) {
+			logger.debug("cannot persist the program index {}: {}", dir, e);
+		}
+	}
+
+	private void load() {
+		if (loaded)
+			return;
+		loaded = true;
+
+		File file = new File(dir, PROGRAMS);
+		if (!file.isFile())
+			return;
+
+		try {
+			Programs data = JustAnotherPackageManager.codec.dec().from(file).get(Programs.class);
+			if (data != null && data.programs != null)
+				for (Program p : data.programs) {
+					if (p == null || p.groupId == null || p.artifactId == null)
+						continue;
+					documents.put(p.groupId + ":" + p.artifactId, programs.size());
+					programs.add(p);
+				}
+		} catch (Exception e) {
+			logger.debug("cannot read the programs {}: {}", file, e);
+			programs.clear();
+			documents.clear();
+			return;
+		}
+
+		File postings = new File(dir, POSTINGS);
+		if (postings.isFile()) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(postings)))) {
+				if (readPostings(in))
+					return;
+			} catch (Exception e) {
+				logger.debug("cannot read the postings {}: {}", postings, e);
+			}
+		}
+
+		logger.debug("rebuilding the program index {}", dir);
+		terms.clear();
+		for (int document = 0; document < programs.size(); document++)
+			index(document, programs.get(document));
+		dirty = true;
+	}
+
+	private void writePostings(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(programs.size());
+		out.writeInt(terms.size());
+		for (Map.Entry<String,Postings> e : terms.entrySet()) {
+			Postings postings = e.getValue();
+			out.writeUTF(e.getKey());
+			writeVarint(out, postings.size);
+			int previous = 0;
+			for (int i = 0; i < postings.size; i++) {
+				int document = postings.postings[i] >>> FIELDS;
+				writeVarint(out, (document - previous) << FIELDS | (postings.postings[i] & ((1 << FIELDS) - 1)));
+				previous = document;
+			}
+		}
+	}
+
+	private boolean readPostings(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != programs.size())
+			return false;
+
+		int count = in.readInt();
+		for (int t = 0; t < count; t++) {
+			String term = in.readUTF();
+			Postings postings = new Postings();
+			postings.size = readVarint(in);
+			postings.postings = new int[Math.max(postings.size, 1)];
+			int document = 0;
+			for (int i = 0; i < postings.size; i++) {
+				int posting = readVarint(in);
+				document += posting >>> FIELDS;
+				if (document >= programs.size()) {
+					terms.clear();
+					return false;
+				}
+				postings.postings[i] = document << FIELDS | (posting & ((1 << FIELDS) - 1));
+			}
+			terms.put(term, postings);
+		}
+		return true;
+	}
+
+	private static void writeVarint(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarint(DataInputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Invalid varint");
+	}
+
+	private void index(int document, Program p) {
+		for (Map.Entry<String,Integer> e : terms(p).entrySet()) {
+			Postings postings = terms.get(e.getKey());
+			if (postings == null)
+				terms.put(e.getKey(), postings = new Postings());
+			postings.add(document, e.getValue());
+		}
+	}
+
+	private SortedMap<String,Postings> prefixed(String prefix) {
+		return terms.subMap(prefix, prefix + Character.MAX_VALUE);
+	}
+
+	/**
+	 * The terms of a program with the fields they appear in
+	 */
+	static Map<String,Integer> terms(Program p) {
+		Map<String,Integer> terms = new LinkedHashMap<String,Integer>();
+		tokenize(p.artifactId, ARTIFACT, terms);
+		tokenize(p.groupId, GROUP, terms);
+		if (p.keywords != null)
+			for (String keyword : p.keywords)
+				tokenize(keyword, KEYWORD, terms);
+		if (p.category != null)
+			for (String category : p.category)
+				tokenize(category, KEYWORD, terms);
+		if (p.last != null)
+			tokenize(p.last.description, DESCRIPTION, terms);
+		return terms;
+	}
+
+	static Map<String,Integer> tokenize(String s, int field) {
+		Map<String,Integer> terms = new LinkedHashMap<String,Integer>();
+		tokenize(s, field, terms);
+		return terms;
+	}
+
+	private static void tokenize(String s, int field, Map<String,Integer> terms) {
+		if (s == null)
+			return;
+
+		int n = s.length();
+		int start = -1;
+		for (int i = 0; i <= n; i++) {
+			boolean word = i < n && Character.isLetterOrDigit(s.charAt(i));
+			if (word) {
+				if (start < 0)
+					start = i;
+			} else if (start >= 0) {
+				String term = s.substring(start, i).toLowerCase(Locale.ROOT);
+				Integer fields = terms.get(term);
+				terms.put(term, fields == null ? field : fields | field);
+				start = -1;
+			}
+		}
+	}
+
+	static int weight(int fields) {
+		if ((fields & ARTIFACT) != 0)
+			return 8;
+		if ((fields & GROUP) != 0)
+			return 4;
+		if ((fields & KEYWORD) != 0)
+			return 2;
+		return 1;
+	}
+
+	/**
+	 * Only keep what is needed to search and list a program
+	 */
+	private static Program strip(Program program) {
+		Program p = new Program();
+		p._id = program._id;
+		p.groupId = program.groupId;
+		p.artifactId = program.artifactId;
+		p.icon = program.icon;
+		p.wiki = program.wiki;
+		p.modified = program.modified;
+		p.rank = program.rank;
+		p.vote = program.vote;
+		p.home = program.home;
+		p.revisions = null;
+		p.rating = null;
+		p.classifiers = null;
+		p.search = null;
+		merge(p.keywords, program.keywords);
+		merge(p.category, program.category);
+		if (program.last != null) {
+			Revision last = new Revision();
+			last.groupId = program.last.groupId;
+			last.artifactId = program.last.artifactId;
+			last.classifier = program.last.classifier;
+			last.version = program.last.version;
+			last.baseline = program.last.baseline;
+			last.qualifier = program.last.qualifier;
+			last.packaging = program.last.packaging;
+			last.description = program.last.description;
+			last.phase = program.last.phase;
+			last.modified = program.last.modified;
+			last.urls = null;
+			p.last = last;
+		}
+		return p;
+	}
+
+	private static void merge(Collection<String> to, Collection<String> from) {
+		if (to != null && from != null)
+			to.addAll(from);
+	}
+}
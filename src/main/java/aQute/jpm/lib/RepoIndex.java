@@ -0,0 +1,434 @@
+package aQute.jpm.lib;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.lib.hex.Hex;
+import aQute.lib.io.IO;
+
+/**
+ * A persistent index from SHA-1 to the artifact data in the repository. The
+ * index is a file of fixed size records that is memory mapped, a lookup is a
+ * binary search over the sorted part of the file followed by a scan of the
+ * (small) unsorted tail that contains the records added since the last
+ * compaction. This makes it possible to resolve the dependencies of a command
+ * without touching the file system or parsing the JSON metadata.
+ *
+ * <pre>
+ * header  ::= magic:int version:int sorted:int count:int
+ * record  ::= sha:byte[20] flags:byte nameLength:byte size:long time:long name:byte[90]
+ * </pre>
+ *
+ * The index is rebuilt from the repository directory when it is missing or
+ * does not look sane. All changes to the file are made in place under a file
+ * lock, other jpm processes might have it mapped or be appending to it.
+ */
+class RepoIndex {
+	private final static Logger	logger		= LoggerFactory.getLogger(RepoIndex.class);
+	static final String			INDEX		= ".index";
+	static final int			MAGIC		= 0x4A504D58;
+	static final int			VERSION		= 1;
+	static final int			HEADER		= 16;
+	static final int			RECORD		= 128;
+	static final int			SHA			= 20;
+	static final int			NAME		= RECORD - SHA - 2 - 8 - 8;
+	static final int			MAX_TAIL	= 256;
+	static final int			LEGACY		= 1;
+
+	final RepoLayout			layout;
+	final File					file;
+	// a file lock is per VM, the threads of this VM take turns
+	private final static Object	LOCKS		= new Object();
+
+	// kept open for the shared lock of a lookup
+	private RandomAccessFile	raf;
+	private MappedByteBuffer	buffer;
+	private int					sorted;
+	private int					count;
+
+	static class Entry {
+		byte[]	sha;
+		boolean	legacy;
+		long	size;
+		long	time;
+		String	name;
+	}
+
+	RepoIndex(RepoLayout layout) {
+		this.layout = layout;
+		this.file = new File(layout.repoDir, INDEX);
+	}
+
+	/**
+	 * Open the index, rebuilding it when it is missing or corrupt.
+	 */
+	synchronized void open() throws IOException {
+		if (!map()) {
+			logger.debug("rebuilding index {}", file);
+			rebuild();
+			if (buffer == null)
+				throw new IOException("Cannot open repository index " + file);
+		}
+	}
+
+	/**
+	 * Lookup a sha in the index. The index only records the identity of an
+	 * artifact: its file, size, time and name. The url and coordinate it was
+	 * fetched with are only in its metadata.
+	 * <p>
+	 * Other processes append to and compact the index in place under an
+	 * exclusive lock. A lookup holds a shared lock and reads the header again,
+	 * so it never sees records that are being moved.
+	 *
+	 * @return the artifact data or null if not in the index
+	 */
+	synchronized ArtifactData get(byte[] sha) {
+		if (buffer == null || sha == null || sha.length != SHA)
+			return null;
+
+		try {
+			synchronized (LOCKS) {
+				FileLock lock = raf.getChannel().lock(0, Long.MAX_VALUE, true);
+				try {
+					if (!refresh())
+						return null;
+					int slot = search(sha);
+					return slot < 0 ? null : read(slot, sha);
+				} finally {
+					lock.release();
+				}
+			}
+		} catch (IOException e) {
+			logger.debug("cannot read index {}: {}", file, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Read the header from the mapping again, the mapping is extended when the
+	 * index has grown
+	 */
+	private boolean refresh() throws IOException {
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+			return false;
+
+		int sorted = buffer.getInt(8);
+		int count = buffer.getInt(12);
+		if (sorted < 0 || count < sorted)
+			return false;
+		if (HEADER + (long) count * RECORD > buffer.capacity())
+			return map();
+
+		this.sorted = sorted;
+		this.count = count;
+		return true;
+	}
+
+	private ArtifactData read(int slot, byte[] sha) {
+		int offset = HEADER + slot * RECORD;
+		ArtifactData data = new ArtifactData();
+		data.sha = sha;
+		boolean legacy = (buffer.get(offset + SHA) & LEGACY) != 0;
+		int nameLength = buffer.get(offset + SHA + 1) & 0xFF;
+		data.size = buffer.getLong(offset + SHA + 2);
+		data.time = buffer.getLong(offset + SHA + 10);
+		if (nameLength > 0) {
+			byte[] name = new byte[nameLength];
+			for (int i = 0; i < nameLength; i++)
+				name[i] = buffer.get(offset + SHA + 18 + i);
+			data.name = new String(name, UTF_8);
+		}
+		String hex = Hex.toHexString(sha);
+		data.file = (legacy ? layout.getLegacyFile(hex) : layout.getFile(hex)).getAbsolutePath();
+		return data;
+	}
+
+	private int search(byte[] sha) {
+		int low = 0;
+		int high = sorted - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = compare(HEADER + mid * RECORD, sha);
+			if (cmp < 0)
+				low = mid + 1;
+			else if (cmp > 0)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		for (int slot = sorted; slot < count; slot++)
+			if (compare(HEADER + slot * RECORD, sha) == 0)
+				return slot;
+		return -1;
+	}
+
+	private int compare(int offset, byte[] sha) {
+		for (int i = 0; i < SHA; i++) {
+			int a = buffer.get(offset + i) & 0xFF;
+			int b = sha[i] & 0xFF;
+			if (a != b)
+				return a - b;
+		}
+		return 0;
+	}
+
+	/**
+	 * Add an artifact to the index. The record is appended to the unsorted
+	 * tail unless another process already added it, when the tail becomes too
+	 * large the index is compacted.
+	 */
+	synchronized void add(ArtifactData data, boolean legacy) throws IOException {
+		if (data.sha == null || data.sha.length != SHA)
+			return;
+
+		Entry entry = new Entry();
+		entry.sha = data.sha;
+		entry.legacy = legacy;
+		entry.size = data.size;
+		entry.time = data.time;
+		entry.name = data.name;
+
+		synchronized (LOCKS) {
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+				// released when the channel is closed
+				channel.lock();
+
+				ByteBuffer header = ByteBuffer.allocate(HEADER);
+				channel.read(header, 0);
+				if (!valid(header, channel.size())) {
+					logger.debug("index {} not valid during add, rebuilding", file);
+					write(channel, scan());
+				} else {
+					int sorted = header.getInt(8);
+					int count = header.getInt(12);
+					if (find(channel, sorted, count, entry.sha) < 0) {
+						ByteBuffer record = ByteBuffer.allocate(RECORD);
+						write(record, entry);
+						record.flip();
+						channel.write(record, HEADER + (long) count * RECORD);
+
+						header.putInt(12, count + 1);
+						header.position(0);
+						channel.write(header, 0);
+
+						if (count + 1 - sorted > MAX_TAIL)
+							write(channel, read(channel, count + 1));
+					}
+				}
+			}
+		}
+		map();
+	}
+
+	/**
+	 * Recreate the index from the binaries in the repository directory.
+	 */
+	synchronized void rebuild() throws IOException {
+		synchronized (LOCKS) {
+			IO.mkdirs(layout.repoDir);
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+				// released when the channel is closed
+				channel.lock();
+				write(channel, scan());
+			}
+		}
+		map();
+	}
+
+	private List<Entry> scan() {
+		List<Entry> entries = new ArrayList<Entry>();
+		for (File bin : layout.list()) {
+			Entry entry = new Entry();
+			String hex = bin.getName();
+			entry.sha = Hex.toByteArray(hex);
+			entry.legacy = bin.getParentFile().equals(layout.repoDir);
+			entry.size = bin.length();
+			entry.time = bin.lastModified();
+
+			File meta = new File(bin.getParentFile(), hex + RepoLayout.JSON);
+			if (meta.isFile()) {
+				try {
+					ArtifactData data = JustAnotherPackageManager.codec.dec().from(meta).get(ArtifactData.class);
+					entry.name = data.name;
+					entry.time = data.time;
+				} catch (Exception e) {
+					logger.debug("cannot read metadata {}: {}", meta, e);
+				}
+			}
+			entries.add(entry);
+		}
+		return entries;
+	}
+
+	private static boolean valid(ByteBuffer header, long length) {
+		if (header.position() < HEADER || header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+			return false;
+		int sorted = header.getInt(8);
+		int count = header.getInt(12);
+		return sorted >= 0 && count >= sorted && HEADER + (long) count * RECORD <= length;
+	}
+
+	/**
+	 * Search a sha in the file, for the records that are not mapped yet
+	 */
+	private static int find(FileChannel channel, int sorted, int count, byte[] sha) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(SHA);
+		int low = 0;
+		int high = sorted - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = compare(channel, bb, mid, sha);
+			if (cmp < 0)
+				low = mid + 1;
+			else if (cmp > 0)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		for (int slot = sorted; slot < count; slot++)
+			if (compare(channel, bb, slot, sha) == 0)
+				return slot;
+		return -1;
+	}
+
+	private static int compare(FileChannel channel, ByteBuffer bb, int slot, byte[] sha) throws IOException {
+		bb.clear();
+		channel.read(bb, HEADER + (long) slot * RECORD);
+		for (int i = 0; i < SHA; i++) {
+			int a = bb.get(i) & 0xFF;
+			int b = sha[i] & 0xFF;
+			if (a != b)
+				return a - b;
+		}
+		return 0;
+	}
+
+	private boolean map() throws IOException {
+		buffer = null;
+		sorted = count = 0;
+
+		if (raf == null) {
+			if (!file.isFile())
+				return false;
+			raf = new RandomAccessFile(file, "r");
+		}
+
+		FileChannel channel = raf.getChannel();
+		long length = channel.size();
+		if (length < HEADER)
+			return false;
+
+		MappedByteBuffer map = channel.map(MapMode.READ_ONLY, 0, length);
+		if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION)
+			return false;
+
+		int sorted = map.getInt(8);
+		int count = map.getInt(12);
+		if (sorted < 0 || count < sorted || HEADER + (long) count * RECORD > length)
+			return false;
+
+		this.buffer = map;
+		this.sorted = sorted;
+		this.count = count;
+		return true;
+	}
+
+	synchronized void close() {
+		buffer = null;
+		IO.close(raf);
+		raf = null;
+	}
+
+	private List<Entry> read(FileChannel channel, int count) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>(count);
+		ByteBuffer bb = ByteBuffer.allocate(RECORD);
+		for (int i = 0; i < count; i++) {
+			bb.clear();
+			channel.read(bb, HEADER + (long) i * RECORD);
+			bb.flip();
+			Entry entry = new Entry();
+			entry.sha = new byte[SHA];
+			bb.get(entry.sha);
+			entry.legacy = (bb.get() & LEGACY) != 0;
+			int nameLength = bb.get() & 0xFF;
+			entry.size = bb.getLong();
+			entry.time = bb.getLong();
+			if (nameLength > 0) {
+				byte[] name = new byte[nameLength];
+				bb.get(name);
+				entry.name = new String(name, UTF_8);
+			}
+			entries.add(entry);
+		}
+		return entries;
+	}
+
+	/**
+	 * Write the entries sorted, of duplicates the last one is kept
+	 */
+	private void write(FileChannel channel, List<Entry> entries) throws IOException {
+		Collections.sort(entries, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				for (int i = 0; i < SHA; i++) {
+					int n = (a.sha[i] & 0xFF) - (b.sha[i] & 0xFF);
+					if (n != 0)
+						return n;
+				}
+				return 0;
+			}
+		});
+		List<Entry> unique = new ArrayList<Entry>(entries.size());
+		for (Entry entry : entries) {
+			int last = unique.size() - 1;
+			if (last >= 0 && Arrays.equals(unique.get(last).sha, entry.sha))
+				unique.set(last, entry);
+			else
+				unique.add(entry);
+		}
+
+		ByteBuffer bb = ByteBuffer.allocate(HEADER + unique.size() * RECORD);
+		bb.putInt(MAGIC);
+		bb.putInt(VERSION);
+		bb.putInt(unique.size());
+		bb.putInt(unique.size());
+		for (Entry entry : unique)
+			write(bb, entry);
+		bb.flip();
+		// never truncate, other processes might have the index mapped
+		while (bb.hasRemaining())
+			channel.write(bb, bb.position());
+	}
+
+	private void write(ByteBuffer bb, Entry entry) {
+		int start = bb.position();
+		bb.put(entry.sha);
+		bb.put((byte) (entry.legacy ? LEGACY : 0));
+		byte[] name = entry.name == null ? new byte[0] : entry.name.getBytes(UTF_8);
+		int nameLength = Math.min(name.length, NAME);
+		// do not cut a multi byte character in half
+		while (nameLength < name.length && nameLength > 0 && (name[nameLength] & 0xC0) == 0x80)
+			nameLength--;
+		bb.put((byte) nameLength);
+		bb.putLong(entry.size);
+		bb.putLong(entry.time);
+		bb.put(name, 0, nameLength);
+		bb.position(start + RECORD);
+	}
+}
@@ -0,0 +1,289 @@
+package aQute.jpm.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.lib.hex.Hex;
+import aQute.lib.io.IO;
+
+/**
+ * Maps SHA-1 identities to files in the repository directory. Artifacts are
+ * stored in a two level fan-out, {@code repo/ab/cd/abcd...}, with the JSON
+ * metadata next to it as {@code abcd....json}. Older jpm versions stored all
+ * artifacts flat in the repository directory, these are still found by
+ * {@link #find(String)} and can be moved into the fan-out with
+ * {@link #migrate(Set)}.
+ */
+class RepoLayout {
+	private final static Logger	logger	= LoggerFactory.getLogger(RepoLayout.class);
+	static final String			JSON	= ".json";
+	static final String			MARKER	= ".layout";
+	static final String			VERSION	= "sharded-2";
+
+	final File					repoDir;
+
+	RepoLayout(File repoDir) {
+		this.repoDir = repoDir;
+	}
+
+	/**
+	 * The location of a binary in the sharded layout, it might not exist.
+	 */
+	File getFile(String hex) {
+		return new File(getShard(hex), hex);
+	}
+
+	File getFile(byte[] sha) {
+		return getFile(Hex.toHexString(sha));
+	}
+
+	/**
+	 * The location of the metadata of a binary in the sharded layout, it
+	 * might not exist.
+	 */
+	File getMeta(String hex) {
+		return new File(getShard(hex), hex + JSON);
+	}
+
+	File getShard(String hex) {
+		return new File(new File(repoDir, hex.substring(0, 2)), hex.substring(2, 4));
+	}
+
+	File getLegacyFile(String hex) {
+		return new File(repoDir, hex);
+	}
+
+	File getLegacyMeta(String hex) {
+		return new File(repoDir, hex + JSON);
+	}
+
+	/**
+	 * Find the binary for a sha, first in the sharded layout and then in the
+	 * legacy flat layout.
+	 *
+	 * @return the binary file or null if neither layout has it
+	 */
+	File find(String hex) {
+		File f = getFile(hex);
+		if (f.isFile())
+			return f;
+		f = getLegacyFile(hex);
+		if (f.isFile())
+			return f;
+		return null;
+	}
+
+	/**
+	 * Find the metadata for a sha in either layout
+	 *
+	 * @return the metadata file or null if neither layout has it
+	 */
+	File findMeta(String hex) {
+		File f = getMeta(hex);
+		if (f.isFile())
+			return f;
+		f = getLegacyMeta(hex);
+		if (f.isFile())
+			return f;
+		return null;
+	}
+
+	/**
+	 * Prepare the shard directory for a new binary and return the target file
+	 */
+	File prepare(String hex) throws IOException {
+		File shard = getShard(hex);
+		IO.mkdirs(shard);
+		return new File(shard, hex);
+	}
+
+	boolean isMigrated() {
+		File marker = new File(repoDir, MARKER);
+		try {
+			return marker.isFile() && VERSION.equals(IO.collect(marker).trim());
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Move the binaries (and their metadata) of a flat repository into the
+	 * sharded layout. Binaries that are in use are left in place because the
+	 * launchers of the installed commands and services refer to them by
+	 * absolute path. They are still found through the legacy read path and
+	 * disappear with the next gc once they are no longer used.
+	 *
+	 * @param inUse the hex shas referred to by installed commands and services
+	 * @return the number of binaries moved
+	 */
+	int migrate(Set<String> inUse) throws IOException {
+		int count = 0;
+		File[] files = repoDir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				String name = f.getName();
+				if (!f.isFile())
+					continue;
+
+				if (!isSha(name)) {
+					migrateMeta(f, inUse);
+					continue;
+				}
+				if (inUse.contains(name))
+					continue;
+
+				File meta = getLegacyMeta(name);
+				String hex = name.toUpperCase(Locale.ROOT);
+				File target = prepare(hex);
+				if (target.isFile())
+					IO.delete(f);
+				else
+					IO.rename(f, target);
+
+				if (meta.isFile()) {
+					File targetMeta = getMeta(hex);
+					if (targetMeta.isFile())
+						IO.delete(meta);
+					else
+						IO.rename(meta, targetMeta);
+				}
+				count++;
+			}
+		}
+		IO.store(VERSION, new File(repoDir, MARKER));
+		logger.debug("migrated {} binaries to the sharded layout", count);
+		return count;
+	}
+
+	/**
+	 * Move metadata that an interrupted migration left behind after its
+	 * binary was moved, it would otherwise be found before the binary.
+	 */
+	private void migrateMeta(File meta, Set<String> inUse) throws IOException {
+		String name = meta.getName();
+		if (!name.endsWith(JSON))
+			return;
+
+		String hex = name.substring(0, name.length() - JSON.length());
+		if (!isSha(hex) || inUse.contains(hex) || getLegacyFile(hex).isFile())
+			return;
+
+		hex = hex.toUpperCase(Locale.ROOT);
+		File target = getMeta(hex);
+		if (target.isFile() || !getFile(hex).isFile())
+			IO.delete(meta);
+		else
+			IO.rename(meta, target);
+	}
+
+	/**
+	 * Remove all binaries and their metadata that are not in the keep set.
+	 * Both the sharded and the legacy layout are cleaned. Files that are not
+	 * named after a sha, like the service jar, are never touched.
+	 *
+	 * @return the number of files removed
+	 */
+	int gc(Set<String> keep) {
+		int count = 0;
+		File[] top = repoDir.listFiles();
+		if (top == null)
+			return 0;
+
+		for (File f : top) {
+			String name = f.getName();
+			if (f.isDirectory() && isShard(name)) {
+				File[] second = f.listFiles();
+				if (second == null)
+					continue;
+				for (File shard : second) {
+					if (!shard.isDirectory() || !isShard(shard.getName()))
+						continue;
+					count += gc(shard, keep);
+					String[] rest = shard.list();
+					if (rest != null && rest.length == 0)
+						IO.delete(shard);
+				}
+				String[] rest = f.list();
+				if (rest != null && rest.length == 0)
+					IO.delete(f);
+			} else if (f.isFile()) {
+				count += gc(f, name, keep);
+			}
+		}
+		return count;
+	}
+
+	private int gc(File dir, Set<String> keep) {
+		int count = 0;
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File f : files)
+				count += gc(f, f.getName(), keep);
+		return count;
+	}
+
+	private int gc(File f, String name, Set<String> keep) {
+		String hex = name.endsWith(JSON) ? name.substring(0, name.length() - JSON.length()) : name;
+		if (!isSha(hex) || keep.contains(hex))
+			return 0;
+		IO.delete(f);
+		return 1;
+	}
+
+	/**
+	 * List all binaries in both layouts
+	 */
+	List<File> list() {
+		List<File> result = new ArrayList<File>();
+		File[] top = repoDir.listFiles();
+		if (top == null)
+			return result;
+
+		for (File f : top) {
+			String name = f.getName();
+			if (f.isDirectory() && isShard(name)) {
+				File[] second = f.listFiles();
+				if (second == null)
+					continue;
+				for (File shard : second) {
+					File[] files = shard.listFiles();
+					if (files == null)
+						continue;
+					for (File bin : files)
+						if (bin.isFile() && isSha(bin.getName()))
+							result.add(bin);
+				}
+			} else if (f.isFile() && isSha(name))
+				result.add(f);
+		}
+		return result;
+	}
+
+	static boolean isSha(String name) {
+		if (name.length() != 40)
+			return false;
+		for (int i = 0; i < 40; i++)
+			if (!isHex(name.charAt(i)))
+				return false;
+		return true;
+	}
+
+	private static boolean isShard(String name) {
+		return name.length() == 2 && isHex(name.charAt(0)) && isHex(name.charAt(1));
+	}
+
+	/**
+	 * Only ASCII, {@link Character#digit(char, int)} also accepts other
+	 * digits
+	 */
+	private static boolean isHex(char c) {
+		return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+	}
+}
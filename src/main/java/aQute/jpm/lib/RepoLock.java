@@ -0,0 +1,112 @@
+package aQute.jpm.lib;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.lib.hex.Hex;
+import aQute.lib.io.IO;
+import aQute.libg.cryptography.SHA1;
+
+/**
+ * An advisory lock between jpm processes that download the same artifact. The
+ * lock file is named after the expected sha, or after the SHA-1 of the url if
+ * the sha is not known up front. When a download finishes, its sha is written
+ * in the lock file so a process that was waiting for the lock can pick up the
+ * result instead of downloading it again.
+ */
+class RepoLock implements Closeable {
+	private final static Logger	logger	= LoggerFactory.getLogger(RepoLock.class);
+	static final String			LOCKS	= ".locks";
+
+	final String				key;
+	final File					file;
+	private RandomAccessFile	raf;
+	private FileLock			lock;
+
+	private RepoLock(String key, File file) {
+		this.key = key;
+		this.file = file;
+	}
+
+	/**
+	 * Wait until we own the lock for the given download
+	 */
+	static RepoLock lock(File repoDir, String url, byte[] expectedSha) throws Exception {
+		String key = expectedSha != null ? Hex.toHexString(expectedSha)
+				: SHA1.digest(url.getBytes(UTF_8)).asHex();
+		File dir = new File(repoDir, LOCKS);
+		IO.mkdirs(dir);
+		RepoLock repoLock = new RepoLock(key, new File(dir, key));
+		repoLock.raf = new RandomAccessFile(repoLock.file, "rw");
+		try {
+			repoLock.lock = repoLock.raf.getChannel().lock();
+		} catch (OverlappingFileLockException e) {
+			// this VM already holds it, the in-flight registry serializes
+			// within a VM so just proceed
+			logger.debug("lock {} already held in this VM", repoLock.file);
+		}
+		return repoLock;
+	}
+
+	/**
+	 * Answer the sha of a download that finished while we were waiting, or
+	 * null. Older results are ignored because the content behind a url can
+	 * change.
+	 *
+	 * @param since the time we started waiting
+	 */
+	byte[] getResult(long since) throws IOException {
+		FileChannel channel = raf.getChannel();
+		if (channel.size() != 40 || file.lastModified() < since)
+			return null;
+		ByteBuffer bb = ByteBuffer.allocate(40);
+		channel.read(bb, 0);
+		String hex = new String(bb.array(), UTF_8);
+		return RepoLayout.isSha(hex) ? Hex.toByteArray(hex) : null;
+	}
+
+	void setResult(byte[] sha) throws IOException {
+		FileChannel channel = raf.getChannel();
+		channel.truncate(0);
+		channel.write(ByteBuffer.wrap(Hex.toHexString(sha).getBytes(UTF_8)), 0);
+	}
+
+	/**
+	 * Remove the lock files that are not in use
+	 */
+	static void clean(File repoDir) {
+		File[] files = new File(repoDir, LOCKS).listFiles();
+		if (files == null)
+			return;
+
+		for (File f : files) {
+			try (RandomAccessFile raf = new RandomAccessFile(f, "rw"); FileLock lock = raf.getChannel().tryLock()) {
+				if (lock != null)
+					IO.delete(f);
+			} catch (Exception e) {
+				logger.debug("lock {} in use {}", f, e);
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (lock != null)
+				lock.release();
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,681 @@
+package aQute.jpm.lib;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.lib.hex.Hex;
+import aQute.lib.io.IO;
+import aQute.service.library.Callback;
+import aQute.service.library.Library;
+import aQute.service.library.Library.Capability;
+import aQute.service.library.Library.Phase;
+import aQute.service.library.Library.Revision;
+import aQute.struct.struct;
+
+/**
+ * A local store of the revisions jpm has seen, queried with
+ * {@link Library.Find}. Next to the primary index on the SHA-1 there are
+ * secondary indexes on the bsn, the program ({@code groupId:artifactId}), the
+ * phase and the created and modified times. A query starts from the smallest
+ * index that applies and only checks the remaining criteria on those
+ * revisions. Sorting on created or modified walks the time index, so results
+ * can be streamed without collecting them first.
+ * <p>
+ * The store is persisted as JSON in the jpm home.
+ */
+class RevisionStore {
+	private final static Logger						logger		= LoggerFactory.getLogger(RevisionStore.class);
+	static final String								SHA			= "_id";
+	static final String								BSN			= "bsn";
+	static final String								PROGRAM		= "program";
+	static final String								PHASE		= "phase";
+	static final String								CREATED		= "created";
+	static final String								MODIFIED	= "modified";
+
+	public static class Revisions extends struct {
+		public List<Revision> revisions = list();
+	}
+
+	final File										file;
+	private final List<Revision>					revisions	= new ArrayList<Revision>();
+	private final Map<String,Integer>				shas		= new HashMap<String,Integer>();
+	private final Map<String,Set<Integer>>			bsns		= new HashMap<String,Set<Integer>>();
+	private final Map<String,Set<Integer>>			programs	= new HashMap<String,Set<Integer>>();
+	private final Map<Phase,Set<Integer>>			phases		= new EnumMap<Phase,Set<Integer>>(Phase.class);
+	private final TreeMap<Long,Set<Integer>>		created		= new TreeMap<Long,Set<Integer>>();
+	private final TreeMap<Long,Set<Integer>>		modified	= new TreeMap<Long,Set<Integer>>();
+	private boolean									loaded;
+	private boolean									dirty;
+
+	/**
+	 * @param file the JSON file, null keeps the store in memory
+	 */
+	RevisionStore(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Add or replace a revision, revisions without a SHA-1 are ignored
+	 */
+	synchronized void add(Revision revision) {
+		if (revision == null || revision._id == null)
+			return;
+
+		load();
+		String sha = Hex.toHexString(revision._id);
+		Integer id = shas.get(sha);
+		if (id == null) {
+			id = revisions.size();
+			revisions.add(revision);
+			shas.put(sha, id);
+		} else {
+			unindex(id, revisions.get(id));
+			revisions.set(id, revision);
+		}
+		index(id, revision);
+		dirty = true;
+	}
+
+	synchronized Revision get(byte[] sha) {
+		if (sha == null)
+			return null;
+
+		load();
+		Integer id = shas.get(Hex.toHexString(sha));
+		return id == null ? null : revisions.get(id);
+	}
+
+	synchronized int size() {
+		load();
+		return revisions.size();
+	}
+
+	/**
+	 * Start a query. The results are streamed while the store is locked, a
+	 * callback must not add revisions.
+	 */
+	Library.Find<Revision> find() {
+		return new Query();
+	}
+
+	/**
+	 * Persist the store when it was changed
+	 */
+	synchronized void save() {
+		if (!dirty || file == null)
+			return;
+
+		try {
+			IO.mkdirs(file.getParentFile());
+			Revisions data = new Revisions();
+			data.revisions = revisions;
+			File tmp = IO.createTempFile(file.getParentFile(), file.getName(), ".tmp");
+			try {
+				JustAnotherPackageManager.codec.enc().to(tmp).put(data);
+				IO.rename(tmp, file);
+			} finally {
+				IO.delete(tmp);
+			}
+			dirty = false;
+		} catch (Exception e) {
+			logger.debug("cannot persist the revisions {}: {}", file, e);
+		}
+	}
+
+	private void load() {
+		if (loaded)
+			return;
+		loaded = true;
+
+		if (file == null || !file.isFile())
+			return;
+
+		try {
+			Revisions data = JustAnotherPackageManager.codec.dec().from(file).get(Revisions.class);
+			if (data != null && data.revisions != null)
+				for (Revision r : data.revisions) {
+					if (r == null || r._id == null || shas.containsKey(Hex.toHexString(r._id)))
+						continue;
+					int id = revisions.size();
+					revisions.add(r);
+					shas.put(Hex.toHexString(r._id), id);
+					index(id, r);
+				}
+		} catch (Exception e) {
+			logger.debug("cannot read the revisions {}: {}", file, e);
+			revisions.clear();
+			shas.clear();
+			bsns.clear();
+			programs.clear();
+			phases.clear();
+			created.clear();
+			modified.clear();
+		}
+	}
+
+	private void index(int id, Revision r) {
+		if (r.bsn != null)
+			put(bsns, r.bsn, id);
+		if (r.groupId != null && r.artifactId != null)
+			put(programs, program(r), id);
+		if (r.phase != null)
+			put(phases, r.phase, id);
+		put(created, r.created, id);
+		put(modified, r.modified, id);
+	}
+
+	private void unindex(int id, Revision r) {
+		remove(bsns, r.bsn, id);
+		remove(programs, program(r), id);
+		remove(phases, r.phase, id);
+		remove(created, r.created, id);
+		remove(modified, r.modified, id);
+	}
+
+	private static <K> void put(Map<K,Set<Integer>> index, K key, int id) {
+		Set<Integer> ids = index.get(key);
+		if (ids == null)
+			index.put(key, ids = new TreeSet<Integer>());
+		ids.add(id);
+	}
+
+	private static <K> void remove(Map<K,Set<Integer>> index, K key, int id) {
+		if (key == null)
+			return;
+		Set<Integer> ids = index.get(key);
+		if (ids != null && ids.remove(id) && ids.isEmpty())
+			index.remove(key);
+	}
+
+	static String program(Revision r) {
+		return r.groupId + ":" + r.artifactId;
+	}
+
+	/**
+	 * The value of a field as used for matching and sorting
+	 */
+	static Object value(Revision r, String field) throws Exception {
+		switch (field) {
+			case SHA :
+				return r._id == null ? null : Hex.toHexString(r._id);
+			case PROGRAM :
+				return program(r);
+			default :
+				Object value = field(field).get(r);
+				return value instanceof Enum ? ((Enum< ? >) value).name() : value;
+		}
+	}
+
+	static Field field(String field) {
+		try {
+			return Revision.class.getField(field);
+		} catch (NoSuchFieldException e) {
+			throw new IllegalArgumentException("No such revision field " + field);
+		}
+	}
+
+	/**
+	 * Values are compared as strings so that an enum, a number or a string
+	 * can be used as argument
+	 */
+	static String normalize(String field, Object value) {
+		if (value == null)
+			return null;
+		if (value instanceof byte[])
+			return Hex.toHexString((byte[]) value);
+		if (field.equals(SHA))
+			return value.toString().toUpperCase(Locale.ROOT);
+		if (value instanceof Enum)
+			return ((Enum< ? >) value).name();
+		return value.toString();
+	}
+
+	class Query implements Library.Find<Revision> {
+		final Map<String,Set<String>>	in				= new HashMap<String,Set<String>>();
+		final List<Object[]>			capabilities	= new ArrayList<Object[]>();
+		final List<String>				words			= new ArrayList<String>();
+		long							createdFrom		= Long.MIN_VALUE;
+		long							createdUntil	= Long.MAX_VALUE;
+		long							modifiedFrom	= Long.MIN_VALUE;
+		long							modifiedUntil	= Long.MAX_VALUE;
+		int								skip;
+		int								limit			= -1;
+		String							order;
+		boolean							ascending		= true;
+
+		@Override
+		public Library.Find<Revision> bsn(String bsn) throws Exception {
+			return where(BSN, bsn);
+		}
+
+		@Override
+		public Library.Find<Revision> baseline(String baseline) throws Exception {
+			return where("baseline", baseline);
+		}
+
+		@Override
+		public Library.Find<Revision> version(String version) throws Exception {
+			return where("version", version);
+		}
+
+		@Override
+		public Library.Find<Revision> qualifier(String qualifier) throws Exception {
+			return where("qualifier", qualifier);
+		}
+
+		@Override
+		public Library.Find<Revision> from(long date) throws Exception {
+			createdFrom = Math.max(createdFrom, date);
+			return this;
+		}
+
+		@Override
+		public Library.Find<Revision> until(long date) throws Exception {
+			createdUntil = Math.min(createdUntil, date);
+			return this;
+		}
+
+		@Override
+		public Library.Find<Revision> skip(int n) throws Exception {
+			skip = Math.max(n, 0);
+			return this;
+		}
+
+		@Override
+		public Library.Find<Revision> limit(int n) throws Exception {
+			limit = n;
+			return this;
+		}
+
+		@Override
+		public Library.Find<Revision> ascending(String field) throws Exception {
+			return order(field, true);
+		}
+
+		@Override
+		public Library.Find<Revision> descending(String field) throws Exception {
+			return order(field, false);
+		}
+
+		private Library.Find<Revision> order(String field, boolean ascending) {
+			if (!field.equals(PROGRAM) && !field.equals(SHA))
+				field(field);
+			this.order = field;
+			this.ascending = ascending;
+			return this;
+		}
+
+		/**
+		 * Restrict a field to one of the given values. For {@code created}
+		 * and {@code modified} the arguments are an inclusive range
+		 * {@code from [until]}, a null bound is open. Besides the revision
+		 * fields {@code program} ({@code groupId:artifactId}) can be used.
+		 * Restricting the same field twice answers the intersection.
+		 */
+		@Override
+		public Library.Find<Revision> where(String field, Object... args) throws Exception {
+			if (field.equals(CREATED) || field.equals(MODIFIED)) {
+				long from = args.length > 0 && args[0] != null ? ((Number) args[0]).longValue() : Long.MIN_VALUE;
+				long until = args.length > 1 && args[1] != null ? ((Number) args[1]).longValue() : Long.MAX_VALUE;
+				if (field.equals(CREATED)) {
+					createdFrom = Math.max(createdFrom, from);
+					createdUntil = Math.min(createdUntil, until);
+				} else {
+					modifiedFrom = Math.max(modifiedFrom, from);
+					modifiedUntil = Math.min(modifiedUntil, until);
+				}
+				return this;
+			}
+
+			if (!field.equals(PROGRAM) && !field.equals(SHA))
+				field(field);
+
+			Set<String> values = new HashSet<String>();
+			for (Object arg : args)
+				values.add(normalize(field, arg));
+
+			Set<String> previous = in.get(field);
+			if (previous != null)
+				values.retainAll(previous);
+			in.put(field, values);
+			return this;
+		}
+
+		@Override
+		public Library.Find<Revision> template(Revision rev) throws Exception {
+			if (rev._id != null)
+				where(SHA, rev._id);
+			if (rev.groupId != null)
+				where("groupId", rev.groupId);
+			if (rev.artifactId != null)
+				where("artifactId", rev.artifactId);
+			if (rev.classifier != null)
+				where("classifier", rev.classifier);
+			if (rev.bsn != null)
+				where(BSN, rev.bsn);
+			if (rev.version != null)
+				where("version", rev.version);
+			if (rev.baseline != null)
+				where("baseline", rev.baseline);
+			if (rev.qualifier != null)
+				where("qualifier", rev.qualifier);
+			return this;
+		}
+
+		/**
+		 * Answer the only match, null if there is none
+		 */
+		@Override
+		public Revision one() throws Exception {
+			List<Revision> result = new ArrayList<Revision>(2);
+			stream(r -> {
+				result.add(r);
+				return result.size() < 2;
+			}, 0, 2);
+			if (result.size() > 1)
+				throw new IllegalStateException("More than one revision matches");
+			return result.isEmpty() ? null : result.get(0);
+		}
+
+		@Override
+		public Revision first() throws Exception {
+			Revision[] result = new Revision[1];
+			stream(r -> {
+				result[0] = r;
+				return false;
+			}, skip, 1);
+			return result[0];
+		}
+
+		/**
+		 * The number of matches, skip and limit are ignored
+		 */
+		@Override
+		public int count() throws Exception {
+			int[] count = new int[1];
+			stream(r -> {
+				count[0]++;
+				return true;
+			}, 0, -1);
+			return count[0];
+		}
+
+		/**
+		 * All words must appear, case insensitive, in the bsn, groupId,
+		 * artifactId, title or description
+		 */
+		@Override
+		public Library.Find<Revision> query(String query) throws Exception {
+			for (String word : query.toLowerCase(Locale.ROOT).split("\\s+"))
+				if (!word.isEmpty())
+					words.add(word);
+			return this;
+		}
+
+		/**
+		 * There must be a capability in the namespace, with the given
+		 * property value when key is not null
+		 */
+		@Override
+		public Library.Find<Revision> capability(String ns, String key, Object value) throws Exception {
+			capabilities.add(new Object[] {
+					ns, key, value == null ? null : value.toString()
+			});
+			return this;
+		}
+
+		/**
+		 * Stream the matches to the visitor, no list of the results is
+		 * built unless sorting on a field without an index.
+		 *
+		 * @return false if the visitor stopped the stream
+		 */
+		@Override
+		public boolean callback(Callback<Revision> visitor) throws Exception {
+			return stream(visitor, skip, limit);
+		}
+
+		@Override
+		public Iterator<Revision> iterator() {
+			List<Revision> result = new ArrayList<Revision>();
+			try {
+				callback(r -> result.add(r));
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+			return result.iterator();
+		}
+
+		private boolean stream(Callback<Revision> visitor, int skip, int limit) throws Exception {
+			synchronized (RevisionStore.this) {
+				load();
+				Iterator<Integer> ids = source();
+				int skipped = 0;
+				int count = 0;
+				while (ids.hasNext()) {
+					if (limit >= 0 && count >= limit)
+						return true;
+					Revision r = revisions.get(ids.next());
+					if (!matches(r))
+						continue;
+					if (skipped < skip) {
+						skipped++;
+						continue;
+					}
+					count++;
+					if (!visitor.callback(r))
+						return false;
+				}
+				return true;
+			}
+		}
+
+		/**
+		 * The candidate ids, in order when ordering is requested
+		 */
+		private Iterator<Integer> source() throws Exception {
+			Collection<Integer> candidates = null;
+			candidates = smallest(candidates, SHA, null);
+			candidates = smallest(candidates, BSN, bsns);
+			candidates = smallest(candidates, PROGRAM, programs);
+			candidates = smallest(candidates, PHASE, null);
+
+			boolean timeOrder = CREATED.equals(order) || MODIFIED.equals(order);
+			if (candidates == null) {
+				if (timeOrder)
+					return ordered(order.equals(CREATED) ? created : modified, order.equals(CREATED) ? createdFrom
+							: modifiedFrom, order.equals(CREATED) ? createdUntil : modifiedUntil);
+				if (createdFrom != Long.MIN_VALUE || createdUntil != Long.MAX_VALUE)
+					candidates = range(created, createdFrom, createdUntil);
+				else if (modifiedFrom != Long.MIN_VALUE || modifiedUntil != Long.MAX_VALUE)
+					candidates = range(modified, modifiedFrom, modifiedUntil);
+			}
+
+			if (order == null) {
+				if (candidates != null)
+					return candidates.iterator();
+				return new Iterator<Integer>() {
+					int id;
+
+					@Override
+					public boolean hasNext() {
+						return id < revisions.size();
+					}
+
+					@Override
+					public Integer next() {
+						return id++;
+					}
+				};
+			}
+
+			List<Integer> sorted = new ArrayList<Integer>();
+			if (candidates != null)
+				sorted.addAll(candidates);
+			else
+				for (int id = 0; id < revisions.size(); id++)
+					sorted.add(id);
+
+			Map<Integer,Comparable<Object>> keys = new HashMap<Integer,Comparable<Object>>();
+			for (Integer id : sorted)
+				keys.put(id, key(revisions.get(id)));
+			Comparator<Integer> comparator = (a, b) -> {
+				Comparable<Object> ka = keys.get(a);
+				Comparable<Object> kb = keys.get(b);
+				if (ka == null)
+					return kb == null ? 0 : 1;
+				if (kb == null)
+					return -1;
+				return ascending ? ka.compareTo(kb) : kb.compareTo(ka);
+			};
+			Collections.sort(sorted, comparator);
+			return sorted.iterator();
+		}
+
+		@SuppressWarnings("unchecked")
+		private Comparable<Object> key(Revision r) throws Exception {
+			Object value = value(r, order);
+			if (value == null)
+				return null;
+			if (value instanceof Comparable)
+				return (Comparable<Object>) value;
+			return (Comparable<Object>) (Object) value.toString();
+		}
+
+		/**
+		 * Answer the smallest of the current candidates and the ids in the
+		 * index for the restricted values of field
+		 */
+		private Collection<Integer> smallest(Collection<Integer> candidates, String field,
+				Map<String,Set<Integer>> index) {
+			Set<String> values = in.get(field);
+			if (values == null)
+				return candidates;
+
+			Collection<Integer> ids = new TreeSet<Integer>();
+			for (String value : values) {
+				Collection<Integer> found;
+				if (field.equals(SHA)) {
+					Integer id = shas.get(value);
+					found = id == null ? null : Collections.singleton(id);
+				} else if (field.equals(PHASE)) {
+					found = phase(value);
+				} else
+					found = index.get(value);
+				if (found != null)
+					ids.addAll(found);
+			}
+			if (candidates == null || ids.size() < candidates.size())
+				return ids;
+			return candidates;
+		}
+
+		private Collection<Integer> phase(String value) {
+			for (Phase p : Phase.values())
+				if (p.name().equals(value))
+					return phases.get(p);
+			return null;
+		}
+
+		private Collection<Integer> range(TreeMap<Long,Set<Integer>> index, long from, long until) {
+			if (from > until)
+				return Collections.emptySet();
+			Collection<Integer> ids = new TreeSet<Integer>();
+			for (Set<Integer> s : index.subMap(from, true, until, true).values())
+				ids.addAll(s);
+			return ids;
+		}
+
+		private Iterator<Integer> ordered(TreeMap<Long,Set<Integer>> index, long from, long until) {
+			if (from > until)
+				return Collections.<Integer> emptyIterator();
+			NavigableMap<Long,Set<Integer>> range = index.subMap(from, true, until, true);
+			if (!ascending)
+				range = range.descendingMap();
+			Iterator<Set<Integer>> sets = range.values().iterator();
+			return new Iterator<Integer>() {
+				Iterator<Integer> current = Collections.<Integer> emptyIterator();
+
+				@Override
+				public boolean hasNext() {
+					while (!current.hasNext() && sets.hasNext())
+						current = sets.next().iterator();
+					return current.hasNext();
+				}
+
+				@Override
+				public Integer next() {
+					hasNext();
+					return current.next();
+				}
+			};
+		}
+
+		private boolean matches(Revision r) throws Exception {
+			if (r.created < createdFrom || r.created > createdUntil)
+				return false;
+			if (r.modified < modifiedFrom || r.modified > modifiedUntil)
+				return false;
+
+			for (Map.Entry<String,Set<String>> e : in.entrySet()) {
+				String field = e.getKey();
+				if (!e.getValue().contains(normalize(field, value(r, field))))
+					return false;
+			}
+
+			if (!words.isEmpty()) {
+				String text = (r.bsn + " " + r.groupId + " " + r.artifactId + " " + r.title + " " + r.description)
+						.toLowerCase(Locale.ROOT);
+				for (String word : words)
+					if (!text.contains(word))
+						return false;
+			}
+
+			for (Object[] c : capabilities)
+				if (!hasCapability(r, (String) c[0], (String) c[1], (String) c[2]))
+					return false;
+			return true;
+		}
+
+		private boolean hasCapability(Revision r, String ns, String key, String value) {
+			if (r.capabilities == null)
+				return false;
+			for (Capability c : r.capabilities) {
+				if (c == null || !ns.equals(c.ns))
+					continue;
+				if (key == null)
+					return true;
+				Object v = c.ps == null ? null : c.ps.get(key);
+				if (value == null ? v == null : v != null && value.equals(v.toString()))
+					return true;
+			}
+			return false;
+		}
+
+		@Override
+		public String toString() {
+			return "Find[in=" + in + ", created=" + createdFrom + ".." + createdUntil + ", modified=" + modifiedFrom
+					+ ".." + modifiedUntil + ", words=" + words + ", capabilities="
+					+ Arrays.deepToString(capabilities.toArray()) + ", order=" + order + "]";
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package aQute.jpm.lib;
+
+import java.util.Arrays;
+
+import aQute.lib.hex.Hex;
+
+/**
+ * An immutable SHA-1 digest that can be used as a key in a map. A byte array
+ * has identity equality, two arrays with the same digest are different keys.
+ */
+public final class ShaKey implements Comparable<ShaKey> {
+	private final byte[]	sha;
+	private final int		hash;
+
+	private ShaKey(byte[] sha) {
+		this.sha = sha;
+		this.hash = Arrays.hashCode(sha);
+	}
+
+	public static ShaKey of(byte[] sha) {
+		if (sha == null)
+			throw new IllegalArgumentException("No SHA-1");
+		return new ShaKey(sha.clone());
+	}
+
+	/**
+	 * @param hex the digest in hexadecimal, case is ignored
+	 */
+	public static ShaKey parse(String hex) {
+		return new ShaKey(Hex.toByteArray(hex));
+	}
+
+	public byte[] toByteArray() {
+		return sha.clone();
+	}
+
+	public boolean matches(byte[] other) {
+		return Arrays.equals(sha, other);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof ShaKey && hash == ((ShaKey) o).hash && Arrays.equals(sha, ((ShaKey) o).sha);
+	}
+
+	@Override
+	public int compareTo(ShaKey o) {
+		int n = Math.min(sha.length, o.sha.length);
+		for (int i = 0; i < n; i++) {
+			int a = sha[i] & 0xFF;
+			int b = o.sha[i] & 0xFF;
+			if (a != b)
+				return a - b;
+		}
+		return sha.length - o.sha.length;
+	}
+
+	/**
+	 * The digest in upper case hexadecimal
+	 */
+	@Override
+	public String toString() {
+		return Hex.toHexString(sha);
+	}
+}
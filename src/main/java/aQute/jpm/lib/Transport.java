@@ -0,0 +1,255 @@
+package aQute.jpm.lib;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URI;
+import java.net.URLConnection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.lib.io.IO;
+import aQute.lib.settings.Settings;
+
+/**
+ * The shared transport for all network access of jpm. Connections are made
+ * with timeouts and the JDK keep-alive cache so that connections to the same
+ * host are reused, as long as every response is closed. Opening a connection
+ * is retried a bounded number of times on connection errors and on server
+ * errors. Compression can be requested for metadata, artifacts are always
+ * transferred as is since their bytes are digested.
+ */
+public class Transport {
+	private final static Logger	logger					= LoggerFactory.getLogger(Transport.class);
+	static final String			JPM_HTTP_CONNECT		= "jpm.http.connect.timeout";
+	static final String			JPM_HTTP_READ			= "jpm.http.read.timeout";
+	static final String			JPM_HTTP_RETRIES		= "jpm.http.retries";
+	static final int			DEFAULT_CONNECT_TIMEOUT	= 15000;
+	static final int			DEFAULT_READ_TIMEOUT	= 60000;
+	static final int			DEFAULT_RETRIES			= 3;
+	static final int			MAX_REDIRECTS			= 5;
+	static final long			BACKOFF					= 250;
+
+	final int					connectTimeout;
+	final int					readTimeout;
+	final int					retries;
+	private volatile boolean	offline;
+
+	static {
+		// the keep-alive cache is per host, the default of 5 is low when
+		// downloads run in parallel
+		if (System.getProperty("http.maxConnections") == null)
+			System.setProperty("http.maxConnections", "" + JustAnotherPackageManager.DEFAULT_HOST_LIMIT);
+	}
+
+	/**
+	 * A response of the server. Must be closed so the connection can be
+	 * reused.
+	 */
+	public static class Response implements Closeable {
+		final URLConnection	connection;
+		final int			code;
+		final InputStream	in;
+
+		Response(URLConnection connection, int code, InputStream in) {
+			this.connection = connection;
+			this.code = code;
+			this.in = in;
+		}
+
+		public int getCode() {
+			return code;
+		}
+
+		public String getHeader(String name) {
+			return connection.getHeaderField(name);
+		}
+
+		/**
+		 * The content length or -1 if not known. Not valid when the content
+		 * was compressed.
+		 */
+		public long getLength() {
+			return connection.getContentLengthLong();
+		}
+
+		public InputStream getStream() {
+			return in;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	public Transport(int connectTimeout, int readTimeout, int retries) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.retries = retries;
+	}
+
+	Transport(Settings settings) {
+		this(JustAnotherPackageManager.getInt(settings, JPM_HTTP_CONNECT, DEFAULT_CONNECT_TIMEOUT),
+				JustAnotherPackageManager.getInt(settings, JPM_HTTP_READ, DEFAULT_READ_TIMEOUT),
+				JustAnotherPackageManager.getInt(settings, JPM_HTTP_RETRIES, DEFAULT_RETRIES));
+	}
+
+	/**
+	 * When offline, every request for a network resource fails immediately.
+	 */
+	public void setOffline(boolean offline) {
+		this.offline = offline;
+	}
+
+	public boolean isOffline() {
+		return offline;
+	}
+
+	/**
+	 * Open a stream to the given uri.
+	 */
+	public InputStream open(URI uri) throws Exception {
+		return request(uri, Collections.<String, String> emptyMap(), false).getStream();
+	}
+
+	/**
+	 * Open a stream to the given uri, asking for a compressed transfer.
+	 * Intended for metadata, the stream is decompressed.
+	 */
+	public InputStream openCompressed(URI uri) throws Exception {
+		return request(uri, Collections.<String, String> emptyMap(), true).getStream();
+	}
+
+	/**
+	 * Make a request to the given uri. For http(s) the response code is a
+	 * success code, 304 (Not Modified) or 416 (Range Not Satisfiable), other
+	 * codes throw an exception. A 404 is reported as a
+	 * {@link FileNotFoundException}.
+	 *
+	 * @param headers additional request headers
+	 * @param compress if a compressed transfer should be negotiated
+	 */
+	public Response request(URI uri, Map<String,String> headers, boolean compress) throws Exception {
+		String scheme = uri.getScheme();
+		if (!"http".equalsIgnoreCase(scheme) && !"https".equalsIgnoreCase(scheme)) {
+			URLConnection connection = uri.toURL().openConnection();
+			return new Response(connection, 200, connection.getInputStream());
+		}
+
+		if (offline)
+			throw new IOException("Offline, cannot access " + uri);
+
+		IOException failure = null;
+		for (int attempt = 0; attempt <= retries; attempt++) {
+			if (attempt > 0) {
+				logger.debug("retry {} for {}: {}", attempt, uri, failure.getMessage());
+				Thread.sleep(BACKOFF << (attempt - 1));
+			}
+			try {
+				Response response = connect(uri, headers, compress);
+				if (response != null)
+					return response;
+				failure = new IOException("Server error for " + uri);
+			} catch (FileNotFoundException | ProtocolException e) {
+				throw e;
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		throw failure;
+	}
+
+	/**
+	 * @return the response or null if the request should be retried
+	 */
+	private Response connect(URI uri, Map<String,String> headers, boolean compress) throws IOException {
+		URI current = uri;
+		for (int redirects = 0; redirects < MAX_REDIRECTS; redirects++) {
+			HttpURLConnection connection = (HttpURLConnection) current.toURL().openConnection();
+			connection.setConnectTimeout(connectTimeout);
+			connection.setReadTimeout(readTimeout);
+			// we follow redirects ourselves since the JDK does not follow
+			// them from http to https
+			connection.setInstanceFollowRedirects(false);
+			connection.setRequestProperty("Accept-Encoding", compress ? "gzip" : "identity");
+			for (Map.Entry<String,String> e : headers.entrySet())
+				connection.setRequestProperty(e.getKey(), e.getValue());
+
+			int code = connection.getResponseCode();
+			if (code >= 200 && code < 300) {
+				InputStream in = connection.getInputStream();
+				if ("gzip".equalsIgnoreCase(connection.getContentEncoding()))
+					in = new GZIPInputStream(in);
+				return new Response(connection, code, in);
+			}
+
+			drain(connection);
+
+			switch (code) {
+				case HttpURLConnection.HTTP_NOT_MODIFIED :
+				case 416 : // Range Not Satisfiable
+					return new Response(connection, code, IO.stream(new byte[0]));
+
+				case HttpURLConnection.HTTP_MOVED_PERM :
+				case HttpURLConnection.HTTP_MOVED_TEMP :
+				case HttpURLConnection.HTTP_SEE_OTHER :
+				case 307 :
+				case 308 :
+					String location = connection.getHeaderField("Location");
+					if (location == null)
+						throw new IOException("Redirect without location for " + current);
+					URI next = current.resolve(location);
+					if (!isSafeRedirect(current, next))
+						throw new ProtocolException("Refused redirect from " + current + " to " + next);
+					current = next;
+					continue;
+
+				case HttpURLConnection.HTTP_NOT_FOUND :
+				case HttpURLConnection.HTTP_GONE :
+					throw new FileNotFoundException("Not found " + current);
+
+				case 429 :
+					return null;
+
+				default :
+					if (code >= 500)
+						return null;
+					throw new IOException("Failed to fetch " + current + " : " + code + " "
+							+ connection.getResponseMessage());
+			}
+		}
+		throw new IOException("Too many redirects for " + uri);
+	}
+
+	/**
+	 * A redirect may keep the scheme or upgrade from http to https. A
+	 * downgrade from https would let anybody on the path change the
+	 * checksums, POMs and metadata we read.
+	 */
+	static boolean isSafeRedirect(URI from, URI to) {
+		String scheme = to.getScheme();
+		if ("https".equalsIgnoreCase(scheme))
+			return true;
+		return "http".equalsIgnoreCase(scheme) && "http".equalsIgnoreCase(from.getScheme());
+	}
+
+	/**
+	 * Read the error stream so the connection can be reused
+	 */
+	private void drain(HttpURLConnection connection) {
+		try (InputStream err = connection.getErrorStream()) {
+			if (err != null)
+				IO.drain(err);
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+}
@@ -0,0 +1,297 @@
+package aQute.jpm.lib;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import aQute.bnd.version.MavenVersion;
+import aQute.jpm.lib.JustAnotherPackageManager.UpdateMemo;
+import aQute.lib.io.IO;
+import aQute.lib.settings.Settings;
+import aQute.service.library.Coordinate;
+import aQute.service.library.Library.Group;
+import aQute.service.library.Library.Revision;
+import aQute.service.library.Library.RevisionRef;
+import aQute.struct.struct;
+
+/**
+ * Checks the installed commands and services for updates. The revisions of
+ * the installed artifacts are looked up in one batch, the latest revisions of
+ * their programs are looked up concurrently. The results are persisted in the
+ * jpm home, a result is reused while it is younger than twice the refresh
+ * interval and the command was not reinstalled since. The daemon refreshes
+ * the results every interval so {@code jpm update} can answer without going
+ * to the library.
+ */
+class UpdateChecker {
+	private final static Logger	logger				= LoggerFactory.getLogger(UpdateChecker.class);
+	static final String			JPM_UPDATE_INTERVAL	= "jpm.update.interval";
+	// seconds
+	static final int			DEFAULT_INTERVAL	= 6 * 60 * 60;
+
+	public static class Update extends struct {
+		public String		name;
+		public boolean		service;
+		public byte[]		sha;
+		public long			checked;
+		// the version of the installed artifact, null if unknown
+		public String		current;
+		// the latest released revision
+		public RevisionRef	master;
+		// the latest revision including staging
+		public RevisionRef	staged;
+	}
+
+	public static class Updates extends struct {
+		public Map<String,Update> updates = map();
+	}
+
+	final JustAnotherPackageManager	jpm;
+	final File						file;
+	final long						interval;
+	private Updates					data;
+	private Thread					refreshing;
+
+	/**
+	 * @param interval the refresh interval in milliseconds
+	 */
+	UpdateChecker(JustAnotherPackageManager jpm, File file, long interval) {
+		this.jpm = jpm;
+		this.file = file;
+		this.interval = interval;
+	}
+
+	UpdateChecker(JustAnotherPackageManager jpm, File file, Settings settings) {
+		this(jpm, file, 1000L * JustAnotherPackageManager.getInt(settings, JPM_UPDATE_INTERVAL, DEFAULT_INTERVAL));
+	}
+
+	/**
+	 * Sort the commands in not found, up to date and to update
+	 *
+	 * @param refresh ignore the persisted results
+	 */
+	void listUpdates(List<UpdateMemo> notFound, List<UpdateMemo> upToDate, List<UpdateMemo> toUpdate,
+			Collection< ? extends CommandData> datas, boolean staged, boolean refresh) throws Exception {
+		Map<String,Update> updates = check(datas, refresh);
+		for (CommandData data : datas) {
+			UpdateMemo memo = jpm.new UpdateMemo();
+			memo.current = data;
+
+			Update u = updates.get(key(data));
+			RevisionRef best = u == null ? null : staged ? u.staged : u.master;
+			if (best == null || u.current == null)
+				notFound.add(memo);
+			else if (compare(best.version, u.current) > 0) {
+				memo.best = best;
+				toUpdate.add(memo);
+			} else
+				upToDate.add(memo);
+		}
+	}
+
+	/**
+	 * Answer the update information for the commands, only the commands
+	 * without a fresh result are checked
+	 */
+	Map<String,Update> check(Collection< ? extends CommandData> datas, boolean refresh) throws Exception {
+		long now = System.currentTimeMillis();
+		Map<String,Update> result = new LinkedHashMap<String,Update>();
+		List<CommandData> stale = new ArrayList<CommandData>();
+		synchronized (this) {
+			Map<String,Update> known = load().updates;
+			for (CommandData d : datas) {
+				Update u = known.get(key(d));
+				if (!refresh && u != null && u.checked + 2 * interval > now && u.sha != null
+						&& Arrays.equals(u.sha, d.sha))
+					result.put(key(d), u);
+				else
+					stale.add(d);
+			}
+		}
+		if (stale.isEmpty())
+			return result;
+
+		Map<String,Update> computed = compute(stale);
+		result.putAll(computed);
+		synchronized (this) {
+			load().updates.putAll(computed);
+			save();
+		}
+		return result;
+	}
+
+	/**
+	 * Check all installed commands and services, used by the daemon
+	 */
+	void refresh() throws Exception {
+		List<CommandData> datas = new ArrayList<CommandData>();
+		datas.addAll(jpm.getCommands());
+		datas.addAll(jpm.getServices());
+		check(datas, true);
+
+		// forget the commands that are no longer installed
+		synchronized (this) {
+			List<String> keys = new ArrayList<String>();
+			for (CommandData d : datas)
+				keys.add(key(d));
+			if (load().updates.keySet().retainAll(keys))
+				save();
+		}
+	}
+
+	/**
+	 * Refresh in a background thread unless a refresh is still running
+	 */
+	synchronized void refreshInBackground() {
+		if (refreshing != null && refreshing.isAlive())
+			return;
+
+		refreshing = new Thread(() -> {
+			try {
+				refresh();
+			} catch (Exception e) {
+				logger.warn("cannot check for updates: {}", e.toString());
+			}
+		}, "jpm update check");
+		refreshing.setDaemon(true);
+		refreshing.start();
+	}
+
+	private Map<String,Update> compute(List<CommandData> datas) throws Exception {
+		List<byte[]> shas = new ArrayList<byte[]>();
+		for (CommandData d : datas)
+			if (d.sha != null)
+				shas.add(d.sha);
+
+		Map<ShaKey,Revision> revisions = Collections.emptyMap();
+		try {
+			revisions = jpm.getRevisions(shas);
+		} catch (Exception e) {
+			logger.debug("cannot look up the installed revisions: {}", e);
+		}
+
+		long now = System.currentTimeMillis();
+		Map<String,Update> result = new LinkedHashMap<String,Update>();
+		// program -> lookup of the latest master and staged revision
+		Map<String,Future<RevisionRef[]>> latest = new LinkedHashMap<String,Future<RevisionRef[]>>();
+		Map<String,String> programs = new LinkedHashMap<String,String>();
+		for (CommandData d : datas) {
+			Update u = new Update();
+			u.name = d.name;
+			u.service = d instanceof ServiceData;
+			u.sha = d.sha;
+			u.checked = now;
+			result.put(key(d), u);
+
+			String program = null;
+			Revision revision = d.sha == null ? null : revisions.get(ShaKey.of(d.sha));
+			if (revision != null) {
+				u.current = revision.version;
+				program = revision.groupId + ":" + revision.artifactId
+						+ (revision.classifier == null ? "" : ":" + revision.classifier);
+			} else {
+				Coordinate c = coordinate(d);
+				if (c != null && c.getGroup() == Group.MAVEN) {
+					if (c.isExact())
+						u.current = c.getVersion();
+					program = c.getGroupId() + ":" + c.getArtifactId()
+							+ (c.getClassifier() == null ? "" : ":" + c.getClassifier());
+				}
+			}
+			if (program == null)
+				continue;
+
+			programs.put(key(d), program);
+			if (!latest.containsKey(program)) {
+				final String p = program;
+				latest.put(program, JustAnotherPackageManager.getLookupExecutor().submit(() -> {
+					Revision master = jpm.getLibrary().getRevisionByCoordinate(Coordinate.parse(p));
+					Revision staged = jpm.getLibrary().getRevisionByCoordinate(Coordinate.parse(p + "@*"));
+					return new RevisionRef[] {
+						master == null ? null : new RevisionRef(master),
+						staged == null ? null : new RevisionRef(staged)
+					};
+				}));
+			}
+		}
+
+		for (Map.Entry<String,String> e : programs.entrySet()) {
+			try {
+				RevisionRef[] refs = latest.get(e.getValue()).get();
+				Update u = result.get(e.getKey());
+				u.master = refs[0];
+				u.staged = refs[1];
+			} catch (ExecutionException ee) {
+				logger.debug("cannot check {} for updates: {}", e.getValue(), ee.getCause());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The coordinate the command was installed with, if it is known. Older
+	 * commands do not record it, then the metadata of the artifact might.
+	 */
+	private Coordinate coordinate(CommandData d) {
+		try {
+			if (d.coordinate != null)
+				return Coordinate.parse(d.coordinate);
+			if (d.sha == null)
+				return null;
+			ArtifactData artifact = jpm.getMetadata(d.sha);
+			return artifact == null ? null : artifact.coordinate;
+		} catch (Exception e) {
+			logger.debug("cannot read the coordinate of {}: {}", d.name, e);
+			return null;
+		}
+	}
+
+	static String key(CommandData d) {
+		return (d instanceof ServiceData ? "service:" : "command:") + d.name;
+	}
+
+	static int compare(String a, String b) {
+		return MavenCentralLibrary.compare(MavenVersion.parseMavenString(a), a, MavenVersion.parseMavenString(b), b);
+	}
+
+	private Updates load() {
+		if (data != null)
+			return data;
+
+		if (file.isFile()) {
+			try {
+				data = JustAnotherPackageManager.codec.dec().from(file).get(Updates.class);
+			} catch (Exception e) {
+				logger.debug("cannot read updates {}: {}", file, e);
+			}
+		}
+		if (data == null || data.updates == null)
+			data = new Updates();
+		return data;
+	}
+
+	private void save() {
+		try {
+			IO.mkdirs(file.getParentFile());
+			File tmp = IO.createTempFile(file.getParentFile(), file.getName(), ".tmp");
+			try {
+				JustAnotherPackageManager.codec.enc().to(tmp).put(data);
+				IO.rename(tmp, file);
+			} finally {
+				IO.delete(tmp);
+			}
+		} catch (Exception e) {
+			logger.debug("cannot persist updates {}: {}", file, e);
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package aQute.jpm.lib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import aQute.bnd.version.MavenVersion;
+import aQute.service.library.Library.Phase;
+
+/**
+ * The versions of a program, sorted on a packed numeric key of their major,
+ * minor and micro parts, and with the phase of each version as a bit mask. A
+ * version prefix like {@code 2.3} selects a contiguous range of keys, so the
+ * highest matching version is found with a binary search and a short walk
+ * down that range instead of comparing all versions.
+ * <p>
+ * A prefix matches on part boundaries, {@code 2.3} matches {@code 2.3},
+ * {@code 2.3.1} and {@code 2.3-SNAPSHOT} but not {@code 2.30}. Versions with
+ * the same key are in Maven order, then in string order. A part that is too
+ * large for its bits is clamped, prefixes with such a part fall back to a
+ * scan.
+ */
+final class VersionIndex {
+	static final int	MAJOR_BITS	= 28;
+	static final int	MINOR_BITS	= 18;
+	static final int	MICRO_BITS	= 17;
+	static final int[]	BITS		= {
+		MAJOR_BITS, MINOR_BITS, MICRO_BITS
+	};
+	static final int[]	SHIFT		= {
+		MINOR_BITS + MICRO_BITS, MICRO_BITS, 0
+	};
+
+	final long[]		keys;
+	final int[]			phases;
+	final String[]		versions;
+
+	VersionIndex(Collection<String> list) {
+		int n = list.size();
+		Entry[] entries = new Entry[n];
+		int i = 0;
+		for (String v : list)
+			entries[i++] = new Entry(v);
+		Arrays.sort(entries);
+
+		keys = new long[n];
+		phases = new int[n];
+		versions = new String[n];
+		for (i = 0; i < n; i++) {
+			keys[i] = entries[i].key;
+			phases[i] = mask(phase(entries[i].version));
+			versions[i] = entries[i].version;
+		}
+	}
+
+	private static final class Entry implements Comparable<Entry> {
+		final String		version;
+		final long			key;
+		final MavenVersion	maven;
+
+		Entry(String version) {
+			this.version = version;
+			this.key = key(version);
+			this.maven = MavenVersion.parseMavenString(version);
+		}
+
+		@Override
+		public int compareTo(Entry o) {
+			if (key != o.key)
+				return key < o.key ? -1 : 1;
+			int n = MavenCentralLibrary.compare(maven, version, o.maven, o.version);
+			return n != 0 ? n : version.compareTo(o.version);
+		}
+	}
+
+	/**
+	 * Answer the highest version that matches, null if none does
+	 *
+	 * @param prefix the version or version prefix, null matches all
+	 * @param exact the version must be equal to the prefix
+	 * @param mask the phases, see {@link #mask(Set)}
+	 */
+	String best(String prefix, boolean exact, int mask) {
+		long[] range = range(prefix);
+		int low = lower(range[0]);
+		for (int i = lower(range[1]) - 1; i >= low; i--)
+			if (matches(i, prefix, exact, mask))
+				return versions[i];
+		return null;
+	}
+
+	/**
+	 * Answer all versions that match, highest first
+	 */
+	List<String> matching(String prefix, boolean exact, int mask) {
+		long[] range = range(prefix);
+		int low = lower(range[0]);
+		List<String> result = new ArrayList<String>();
+		for (int i = lower(range[1]) - 1; i >= low; i--)
+			if (matches(i, prefix, exact, mask))
+				result.add(versions[i]);
+		return result;
+	}
+
+	private boolean matches(int i, String prefix, boolean exact, int mask) {
+		if ((phases[i] & mask) == 0)
+			return false;
+		if (prefix == null)
+			return true;
+
+		String v = versions[i];
+		if (exact)
+			return v.equals(prefix);
+		if (!v.startsWith(prefix))
+			return false;
+		int n = prefix.length();
+		// do not match 2.3 to 2.30
+		return n == 0 || v.length() == n || !isDigit(prefix.charAt(n - 1)) || !isDigit(v.charAt(n));
+	}
+
+	/**
+	 * The index of the first key that is not less than key
+	 */
+	private int lower(long key) {
+		int low = 0;
+		int high = keys.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (keys[mid] < key)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * The range of keys [from, until) that can match the prefix
+	 */
+	static long[] range(String prefix) {
+		long[] all = {
+			0, Long.MAX_VALUE
+		};
+		if (prefix == null)
+			return all;
+
+		long from = 0;
+		int part = 0;
+		int i = 0;
+		int n = prefix.length();
+		while (part < 3 && i < n && isDigit(prefix.charAt(i))) {
+			long value = 0;
+			while (i < n && isDigit(prefix.charAt(i))) {
+				value = value * 10 + prefix.charAt(i++) - '0';
+				if (value >= max(part))
+					return all;
+			}
+			from |= value << SHIFT[part];
+			part++;
+			if (i < n && prefix.charAt(i) == '.')
+				i++;
+			else
+				break;
+		}
+		if (part == 0)
+			return all;
+
+		return new long[] {
+			from, from + (1L << SHIFT[part - 1])
+		};
+	}
+
+	/**
+	 * The packed key of a version, parts that do not fit are clamped
+	 */
+	static long key(String version) {
+		long key = 0;
+		int i = 0;
+		int n = version.length();
+		for (int part = 0; part < 3 && i < n && isDigit(version.charAt(i)); part++) {
+			long value = 0;
+			while (i < n && isDigit(version.charAt(i)))
+				value = Math.min(value * 10 + version.charAt(i++) - '0', max(part));
+			key |= value << SHIFT[part];
+			if (i < n && version.charAt(i) == '.')
+				i++;
+			else
+				break;
+		}
+		return key;
+	}
+
+	private static long max(int part) {
+		return (1L << BITS[part]) - 1;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	static Phase phase(String version) {
+		return version.endsWith(MavenCentralLibrary.SNAPSHOT) ? Phase.STAGING : Phase.MASTER;
+	}
+
+	static int mask(Phase phase) {
+		return 1 << phase.ordinal();
+	}
+
+	static int mask(Set<Phase> phases) {
+		int mask = 0;
+		for (Phase p : phases)
+			mask |= mask(p);
+		return mask;
+	}
+}
@@ -0,0 +1,114 @@
+package aQute.jpm.lib;
+
+import aQute.service.library.Library.Revision;
+
+/**
+ * A compact version of a revision that is ordered as the OSGi version
+ * {@code baseline.qualifier}. It is computed once per revision, comparing two
+ * keys does not allocate. When major, minor and micro fit in 21 bits they are
+ * packed in a single long, the common case is then one comparison of the
+ * numbers and an identity check of the interned qualifiers.
+ * <p>
+ * Parsing is lenient, a part that is not a number counts as 0.
+ */
+final class VersionKey implements Comparable<VersionKey> {
+	static final int	BITS	= 21;
+	static final int	LIMIT	= 1 << BITS;
+
+	final int			major;
+	final int			minor;
+	final int			micro;
+	final String		qualifier;
+	// -1 when a part does not fit
+	final long			packed;
+
+	VersionKey(int major, int minor, int micro, String qualifier) {
+		this.major = major;
+		this.minor = minor;
+		this.micro = micro;
+		this.qualifier = qualifier == null ? "" : qualifier.intern();
+		if (major < LIMIT && minor < LIMIT && micro < LIMIT)
+			packed = ((long) major << (2 * BITS)) | ((long) minor << BITS) | micro;
+		else
+			packed = -1;
+	}
+
+	static VersionKey of(Revision r) {
+		return of(r.baseline, r.qualifier);
+	}
+
+	/**
+	 * @param baseline major.minor.micro, a fourth part is the qualifier when
+	 *            there is no qualifier
+	 */
+	static VersionKey of(String baseline, String qualifier) {
+		long major = 0, minor = 0, micro = 0;
+		int part = 0;
+		if (baseline != null) {
+			int n = baseline.length();
+			for (int i = 0; i < n; i++) {
+				char c = baseline.charAt(i);
+				if (c == '.') {
+					if (++part == 3) {
+						if (qualifier == null)
+							qualifier = baseline.substring(i + 1);
+						break;
+					}
+				} else if (c >= '0' && c <= '9') {
+					int d = c - '0';
+					switch (part) {
+						case 0 :
+							major = Math.min(major * 10 + d, Integer.MAX_VALUE);
+							break;
+						case 1 :
+							minor = Math.min(minor * 10 + d, Integer.MAX_VALUE);
+							break;
+						default :
+							micro = Math.min(micro * 10 + d, Integer.MAX_VALUE);
+							break;
+					}
+				}
+			}
+		}
+		return new VersionKey((int) major, (int) minor, (int) micro, qualifier);
+	}
+
+	@Override
+	public int compareTo(VersionKey o) {
+		if (packed >= 0 && o.packed >= 0) {
+			if (packed != o.packed)
+				return packed < o.packed ? -1 : 1;
+		} else {
+			if (major != o.major)
+				return major < o.major ? -1 : 1;
+			if (minor != o.minor)
+				return minor < o.minor ? -1 : 1;
+			if (micro != o.micro)
+				return micro < o.micro ? -1 : 1;
+		}
+		if (qualifier == o.qualifier)
+			return 0;
+		return qualifier.compareTo(o.qualifier);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof VersionKey))
+			return false;
+		VersionKey k = (VersionKey) o;
+		return major == k.major && minor == k.minor && micro == k.micro && qualifier == k.qualifier;
+	}
+
+	@Override
+	public int hashCode() {
+		return (major * 31 + minor) * 31 + micro + qualifier.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder().append(major).append('.').append(minor).append('.').append(micro);
+		if (!qualifier.isEmpty())
+			sb.append('.').append(qualifier);
+		return sb.toString();
+	}
+}
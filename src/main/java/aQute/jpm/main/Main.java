@@ -9,6 +9,7 @@ import aQute.jpm.lib.CommandData;
 import aQute.jpm.lib.JVM;
 import aQute.jpm.lib.JustAnotherPackageManager;
 import aQute.jpm.lib.JustAnotherPackageManager.UpdateMemo;
+import aQute.jpm.lib.Lockfile;
 import aQute.jpm.lib.Service;
 import aQute.jpm.lib.ServiceData;
 import aQute.jpm.platform.Platform;
@@ -21,6 +22,7 @@ import aQute.lib.getopt.Description;
 import aQute.lib.getopt.Options;
 import aQute.lib.hex.Hex;
 import aQute.lib.io.IO;
+import aQute.lib.json.JSONCodec;
 import aQute.lib.justif.Justif;
 import aQute.lib.settings.Settings;
 import aQute.lib.strings.Strings;
@@ -92,6 +94,7 @@ public class Main extends ReporterAdapter {
 	private String				url;
 	private JpmOptions			options;
 	static String				encoding		= System.getProperty("file.encoding");
+	static JSONCodec			codec			= new JSONCodec();
 	int							width			= 120;																// characters
 	int							tabs[]			= {
 														40, 48, 56, 64, 72, 80, 88, 96, 104, 112
@@ -283,6 +286,12 @@ public class Main extends ReporterAdapter {
 		@Description("Specify executables directory (one-shot)")
 		String bindir();
 
+		@Description("Do not access the network, only use the local cache and repository")
+		boolean offline();
+
+		@Description("Do not trust cached lookups that found nothing and revalidate the cached library metadata")
+		boolean refresh();
+
 		@Description("Specify the platform (this is mainly for testing purposes). Is either WINDOWS, MACOS, or LINUX")
 		Platform.Type os();
 
@@ -364,6 +373,8 @@ public class Main extends ReporterAdapter {
 			}
 
 			platform.setJpm(jpm);
+			jpm.setOffline(opts.offline());
+			jpm.setRefresh(opts.refresh());
 			jpm.setLibrary(url == null ? null : new URI(url));
 
 			try {
@@ -465,6 +476,12 @@ public class Main extends ReporterAdapter {
 		 */
 		@Description("Install jar but do not look for a command in the jar")
 		boolean ignore();
+
+		/**
+		 * Install from a lockfile
+		 */
+		@Description("Install the commands and services of a lockfile created with 'jpm lock', without resolving")
+		String lock();
 	}
 
 	/**
@@ -479,6 +496,17 @@ public class Main extends ReporterAdapter {
 			return;
 		}
 
+		if (opts.lock() != null) {
+			File file = IO.getFile(base, opts.lock());
+			if (!file.isFile()) {
+				error("No such lockfile %s", file);
+				return;
+			}
+			Lockfile lock = codec.dec().from(file).get(Lockfile.class);
+			jpm.install(lock, opts.force());
+			return;
+		}
+
 		for (String coordinate : opts._arguments()) {
 			logger.debug("install {}", coordinate);
 			File file = IO.getFile(base, coordinate);
@@ -557,6 +585,21 @@ public class Main extends ReporterAdapter {
 		}
 	}
 
+	@Arguments(arg = "[file]")
+	@Description("Write a lockfile of the installed commands and services, to the file or the console")
+	public interface LockOptions extends Options {}
+
+	@Description("Write a lockfile with the exact artifacts of the installed commands and services. Install it on another machine with 'jpm install --lock <file>'")
+	public void _lock(LockOptions opts) throws Exception {
+		Lockfile lock = jpm.lock();
+		if (opts._arguments().isEmpty()) {
+			out.println(codec.enc().indent("  ").put(lock).toString());
+		} else {
+			File file = IO.getFile(base, opts._arguments().get(0));
+			codec.enc().indent("  ").to(file).put(lock);
+		}
+	}
+
 	@Description("Manage the jpm services")
 	public void _service(ServiceOptions opts) throws Exception {
 		if (opts._arguments().isEmpty()) {
@@ -829,9 +872,7 @@ public class Main extends ReporterAdapter {
 			error("No write acces, might require administrator or root privileges (sudo in *nix)");
 			return;
 		}
-		error("Not supported right now");
-
-		// jpm.gc();
+		jpm.gc();
 	}
 
 	@Description("Remove jpm from the system by deleting all artifacts and metadata")
@@ -1809,10 +1850,11 @@ public class Main extends ReporterAdapter {
 	public void _get(GetOptions options) throws Exception {
 		String coord = options._arguments().get(0);
 		String f = options.output();
+		URI uri = new URI(coord);
 		if (f == null)
-			IO.copy(new URL(coord).openStream(), System.out);
+			IO.copy(jpm.getTransport().open(uri), System.out);
 		else {
-			IO.copy(new URL(coord).openStream(), IO.getFile(f));
+			IO.copy(jpm.getTransport().open(uri), IO.getFile(f));
 		}
 	}
 
@@ -1845,12 +1887,11 @@ public class Main extends ReporterAdapter {
 			}
 		} else {
 			ArrayList<String> fails = new ArrayList<String>();
-			for (String key : opts._arguments()) {
-				res = jpm.what(key, !opts.longinfo());
-				if (res != null) {
-					out.println(res);
+			for (Map.Entry<String,String> e : jpm.what(opts._arguments(), !opts.longinfo()).entrySet()) {
+				if (e.getValue() != null) {
+					out.println(e.getValue());
 				} else {
-					fails.add(key);
+					fails.add(e.getKey());
 				}
 			}
 
@@ -1921,9 +1962,7 @@ public class Main extends ReporterAdapter {
 			}
 		}
 
-		for (CommandData data : datas) {
-			jpm.listUpdates(notFound, upToDate, toUpdate, data, opts.staged());
-		}
+		jpm.listUpdates(notFound, upToDate, toUpdate, datas, opts.staged());
 
 		if (opts.all() || opts._arguments().size() > 0) {
 			for (UpdateMemo memo : toUpdate) {
@@ -2012,7 +2051,7 @@ public class Main extends ReporterAdapter {
 			return;
 		}
 
-		printRevisions(jpm.getCandidates(new Coordinate(c)), options);
+		printRevisions(jpm.getCandidates(Coordinate.parse(c)), options);
 	}
 
 	/**
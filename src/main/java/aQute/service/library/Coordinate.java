@@ -42,6 +42,15 @@ public class Coordinate {
 	// @formatter:on
 	public static Pattern	COORDINATE_P			= Pattern.compile($coordinate, Pattern.CASE_INSENSITIVE);
 	public static Pattern	COORDINATE_VERSION_P	= Pattern.compile($version, Pattern.CASE_INSENSITIVE);
+	static final int		CACHE_SIZE				= 256;
+	@SuppressWarnings("serial")
+	private static final Map<String,Coordinate>	cache	= Collections
+			.synchronizedMap(new LinkedHashMap<String,Coordinate>(64, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String,Coordinate> eldest) {
+					return size() > CACHE_SIZE;
+				}
+			});
 	final Group				group;
 	final String			groupId;
 	final String			artifactId;
@@ -54,32 +63,187 @@ public class Coordinate {
 	private boolean			exact;
 
 	public boolean isValid(String coordinate) {
-		return COORDINATE_P.matcher(coordinate.replaceAll("__", ":")).matches();
+		return groups(coordinate) != null;
+	}
+
+	/**
+	 * Answer the coordinate for a string. Coordinates are immutable, recently
+	 * parsed coordinates are shared.
+	 */
+	public static Coordinate parse(String coordinate) {
+		Coordinate c = cache.get(coordinate);
+		if (c == null) {
+			c = new Coordinate(coordinate);
+			cache.put(coordinate, c);
+		}
+		return c;
 	}
 
 	public Coordinate(String coordinate) {
-		this(COORDINATE_P.matcher(coordinate.replaceAll("__", ":")));
+		this(coordinate, groups(coordinate));
 	}
 
 	public Coordinate(Matcher matcher) {
+		this(null, groups(matcher));
+	}
+
+	private static String[] groups(Matcher matcher) {
 		if (!matcher.matches())
 			throw new IllegalArgumentException(matcher.group() + " does not match coordinate pattern: "
 					+ matcher.pattern().pattern());
-		this.coordinate = matcher.group(0);
-		String groupId = matcher.group(1);
-		String artifactId = matcher.group(2);
-		String classifier = matcher.group(3);
-		String version = matcher.group(4);
-		String baseline = matcher.group(5);
-		String qualifier = matcher.group(6);
-		String modifier = matcher.group(7);
+		String[] groups = new String[8];
+		for (int i = 0; i < groups.length; i++)
+			groups[i] = matcher.group(i);
+		return groups;
+	}
+
+	/**
+	 * Parse a coordinate in a single pass, without regular expressions. The
+	 * groups are the groups of {@link #COORDINATE_P} after replacing
+	 * {@code __} with {@code :}.
+	 *
+	 * @return the groups or null if the coordinate is not valid
+	 */
+	static String[] groups(String coordinate) {
+		String s = coordinate;
+		int dunder = s.indexOf("__");
+		if (dunder >= 0) {
+			StringBuilder sb = new StringBuilder(s.length()).append(s, 0, dunder);
+			for (int i = dunder; i < s.length(); i++) {
+				if (s.charAt(i) == '_' && i + 1 < s.length() && s.charAt(i + 1) == '_') {
+					sb.append(':');
+					i++;
+				} else
+					sb.append(s.charAt(i));
+			}
+			s = sb.toString();
+		}
+
+		int n = s.length();
+		String[] groups = new String[8];
+		groups[0] = s;
+
+		int i = name(s, 0);
+		if (i == 0)
+			return null;
+		groups[1] = s.substring(0, i);
+
+		if (i < n && s.charAt(i) == ':') {
+			int end = name(s, i + 1);
+			if (end == i + 1)
+				return null;
+			groups[2] = s.substring(i + 1, end);
+			i = end;
+			if (i < n && s.charAt(i) == ':') {
+				end = name(s, i + 1);
+				if (end > i + 1)
+					groups[3] = s.substring(i + 1, end);
+				i = end;
+			}
+		}
+		if (i == n)
+			return groups;
+		if (s.charAt(i++) != '@')
+			return null;
+
+		int end = n;
+		if (end > i && "*=~!".indexOf(s.charAt(end - 1)) >= 0) {
+			groups[7] = s.substring(end - 1, end);
+			end--;
+		}
+		if (i == end)
+			return groups;
+
+		// The baseline is as long as possible but the rest must be a qualifier
+		int b1 = digits(s, i, end);
+		if (b1 == i)
+			return null;
+		int b2 = minor(s, b1, end);
+		int b3 = b2 < 0 ? -1 : minor(s, b2, end);
+
+		int b;
+		if (b3 >= 0 && qualifier(s, b3, end))
+			b = b3;
+		else if (b2 >= 0 && qualifier(s, b2, end))
+			b = b2;
+		else if (qualifier(s, b1, end))
+			b = b1;
+		else
+			return null;
+
+		groups[4] = s.substring(i, end);
+		groups[5] = s.substring(i, b);
+		if (b < end)
+			groups[6] = s.substring(b, end);
+		return groups;
+	}
+
+	/**
+	 * The end of the name ({@link Library#SIMPLE_NAME}) that starts at i
+	 */
+	private static int name(String s, int i) {
+		int n = s.length();
+		while (i < n) {
+			int c = s.codePointAt(i);
+			if (!(c == '-' || c == '_' || c == '.' || (c >= '0' && c <= '9') || Character.isLetter(c)))
+				break;
+			i += Character.charCount(c);
+		}
+		return i;
+	}
+
+	/**
+	 * The end of a dot followed by digits at i, or -1
+	 */
+	private static int minor(String s, int i, int end) {
+		if (i + 1 >= end || s.charAt(i) != '.')
+			return -1;
+		int e = digits(s, i + 1, end);
+		return e == i + 1 ? -1 : e;
+	}
+
+	private static int digits(String s, int i, int end) {
+		while (i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9')
+			i++;
+		return i;
+	}
+
+	/**
+	 * True if the range is empty or a dot followed by qualifier characters
+	 */
+	private static boolean qualifier(String s, int i, int end) {
+		if (i == end)
+			return true;
+		if (s.charAt(i) != '.')
+			return false;
+		for (i++; i < end; i++) {
+			char c = s.charAt(i);
+			if (!(c == '-' || c == '_' || c == '.' || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z')
+					|| (c >= 'A' && c <= 'Z')))
+				return false;
+		}
+		return true;
+	}
+
+	private Coordinate(String coordinate, String[] groups) {
+		if (groups == null)
+			throw new IllegalArgumentException(coordinate + " does not match coordinate pattern: "
+					+ COORDINATE_P.pattern());
+		this.coordinate = groups[0];
+		String groupId = groups[1];
+		String artifactId = groups[2];
+		String classifier = groups[3];
+		String version = groups[4];
+		String baseline = groups[5];
+		String qualifier = groups[6];
+		String modifier = groups[7];
 		
 		// We accept single SHAs and single names as valid
 		// identifiers. Rewrite the coordinate in that case
 
 		if (artifactId == null && classifier == null) {
 			artifactId = groupId;
-			if (Library.SHA_P.matcher(groupId).matches()) {
+			if (isSha(groupId)) {
 				groupId = Library.SHA_GROUP;
 				version = "0.0.0";
 				baseline = "0.0.0";
@@ -99,14 +263,14 @@ public class Coordinate {
 		}
 
 		if (this.group == Group.SHA) {
-			Matcher m = Patterns.SHA_1_P.matcher(artifactId);
-			if (!m.matches())
+			if (!isSha1(artifactId))
 				throw new IllegalArgumentException("Not a valid SHA-1 " + artifactId);
 		}
 
 		if ( modifier == null)
 			modifier = "=";
 		
+		Set<Phase> phases;
 		switch( modifier.charAt(0)) {
 			default:
 			case '=':
@@ -128,6 +292,7 @@ public class Coordinate {
 		}
 		
 		
+		this.phases = Collections.unmodifiableSet(phases);
 		this.exact = "=".equals(modifier);
 		this.groupId = groupId;
 		this.artifactId = artifactId;
@@ -146,10 +311,19 @@ public class Coordinate {
 		}
 
 		if (version != null) {
-			String parts[] = baseline.split("\\.");
 			long[] nrs = new long[3];
-			for (int i = 0; i < parts.length; i++)
-				nrs[i] = Long.parseLong(parts[i]);
+			int part = 0;
+			int start = 0;
+			for (int i = 0; i <= baseline.length(); i++) {
+				if (i == baseline.length() || baseline.charAt(i) == '.') {
+					// long numbers overflow, the same as Long.parseLong
+					if (i - start > 18)
+						nrs[part] = Long.parseLong(baseline.substring(start, i));
+					part++;
+					start = i + 1;
+				} else
+					nrs[part] = nrs[part] * 10 + (baseline.charAt(i) - '0');
+			}
 
 			this.baseline = nrs[0] + "." + nrs[1] + "." + nrs[2];
 		} else
@@ -158,6 +332,36 @@ public class Coordinate {
 		this.version = version;
 	}
 
+	/**
+	 * Same as {@link Library#SHA_P}, there is no white space in a name
+	 */
+	private static boolean isSha(String s) {
+		if (s.length() != 40)
+			return false;
+		for (int i = 0; i < 40; i++) {
+			char c = s.charAt(i);
+			if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F')))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Same as {@link Patterns#SHA_1_P}
+	 */
+	private static boolean isSha1(String s) {
+		int n = s.length();
+		if (n < 40 || (n & 1) != 0)
+			return false;
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			boolean hex = (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+			if (!hex && !((i & 1) == 1 && c >= 'A' && c <= 'Z'))
+				return false;
+		}
+		return true;
+	}
+
 	public Coordinate(String groupId, String artifactId, String classifier, String version) {
 		this(construct(groupId, artifactId, classifier, version, true, false));
 	}
@@ -0,0 +1,180 @@
+package aQute.jpm.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import aQute.lib.io.IO;
+import aQute.libg.cryptography.SHA1;
+import junit.framework.TestCase;
+
+/**
+ * Runs against a local server that throttles every connection, like a high
+ * latency link does.
+ */
+public class ChunkedDownloadTest extends TestCase {
+	static final byte[]		CONTENT			= new byte[2 * 1024 * 1024];
+	static final int		BYTES_PER_TICK	= 64 * 1024;
+	static {
+		new Random(42).nextBytes(CONTENT);
+	}
+
+	HttpServer				server;
+	URI						uri;
+	File					dir;
+	boolean					supportsRanges	= true;
+	// break every transfer in the quarter that starts here
+	volatile int			breakAt			= -1;
+	final List<String>		ranges			= Collections.synchronizedList(new ArrayList<String>());
+	final AtomicInteger		active			= new AtomicInteger();
+	final AtomicInteger		maxActive		= new AtomicInteger();
+	final Transport			transport		= new Transport(5000, 5000, 2);
+	final HostLimiter		limiter			= new HostLimiter(6);
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = new File(System.getProperty("java.io.tmpdir"), "jpm-chunked-test");
+		IO.delete(dir);
+		IO.mkdirs(dir);
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/big.jar", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				int n = active.incrementAndGet();
+				synchronized (maxActive) {
+					if (n > maxActive.get())
+						maxActive.set(n);
+				}
+				try {
+					int from = 0;
+					int to = CONTENT.length;
+					String range = exchange.getRequestHeaders().getFirst("Range");
+					if (range != null)
+						ranges.add(range);
+					exchange.getResponseHeaders().set("ETag", "\"v1\"");
+					exchange.getResponseHeaders().set("Accept-Ranges", supportsRanges ? "bytes" : "none");
+					if (supportsRanges && range != null) {
+						String[] parts = range.substring("bytes=".length()).split("-");
+						from = Integer.parseInt(parts[0]);
+						to = Integer.parseInt(parts[1]) + 1;
+						exchange.getResponseHeaders().set("Content-Range",
+								"bytes " + from + "-" + (to - 1) + "/" + CONTENT.length);
+						exchange.sendResponseHeaders(206, to - from);
+					} else
+						exchange.sendResponseHeaders(200, CONTENT.length);
+
+					try (OutputStream out = exchange.getResponseBody()) {
+						for (int i = from; i < to; i += BYTES_PER_TICK) {
+							out.write(CONTENT, i, Math.min(BYTES_PER_TICK, to - i));
+							out.flush();
+							if (breakAt >= 0 && from >= breakAt && from < breakAt + CONTENT.length / 4)
+								throw new IOException("broken");
+							Thread.sleep(10);
+						}
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					active.decrementAndGet();
+				}
+			}
+		});
+		server.start();
+		uri = new URI("http://127.0.0.1:" + server.getAddress().getPort() + "/big.jar");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop(0);
+		IO.delete(dir);
+	}
+
+	public void testChunked() throws Exception {
+		ChunkedDownload chunked = new ChunkedDownload(transport, limiter, 1024, 4);
+		assertTrue(chunked.accepts(uri, CONTENT.length));
+		PartialDownload partial = new PartialDownload(dir, "big");
+
+		byte[] sha = chunked.fetch(uri, partial, CONTENT.length);
+		assertTrue(Arrays.equals(SHA1.digest(CONTENT).digest(), sha));
+		assertTrue(Arrays.equals(CONTENT, IO.read(partial.file)));
+		assertEquals(4, ranges.size());
+		assertTrue(maxActive.get() > 1);
+	}
+
+	/**
+	 * When the size was not known, the response of a complete request
+	 * supplies the first chunk
+	 */
+	public void testFirstResponse() throws Exception {
+		ChunkedDownload chunked = new ChunkedDownload(transport, limiter, 1024, 4);
+		PartialDownload partial = new PartialDownload(dir, "big");
+		Transport.Response first = transport.request(uri, Collections.<String,String> emptyMap(), false);
+		assertEquals(CONTENT.length, first.getLength());
+
+		byte[] sha = chunked.fetch(uri, partial, first.getLength(), first, false);
+		assertTrue(Arrays.equals(SHA1.digest(CONTENT).digest(), sha));
+		assertEquals(3, ranges.size());
+		assertFalse(ranges.contains("bytes=0-" + (CONTENT.length / 4 - 1)));
+	}
+
+	/**
+	 * A chunk that keeps breaking fails the download, the next attempt only
+	 * fetches what is missing
+	 */
+	public void testResume() throws Exception {
+		ChunkedDownload chunked = new ChunkedDownload(transport, limiter, 1024, 4);
+		PartialDownload partial = new PartialDownload(dir, "big");
+		int quarter = CONTENT.length / 4;
+		breakAt = 2 * quarter;
+		try {
+			chunked.fetch(uri, partial, CONTENT.length);
+			fail("expected the broken chunk to fail the download");
+		} catch (IOException e) {
+			// expected
+		}
+		assertTrue(partial.file.isFile());
+		assertEquals(CONTENT.length, partial.getChunkedSize(uri));
+
+		ranges.clear();
+		breakAt = -1;
+		byte[] sha = chunked.fetch(uri, partial, CONTENT.length);
+		assertTrue(Arrays.equals(SHA1.digest(CONTENT).digest(), sha));
+		assertTrue(Arrays.equals(CONTENT, IO.read(partial.file)));
+		// the first chunks were complete, the broken chunk continues where it
+		// stopped, the last one was complete or cancelled
+		assertTrue(ranges.size() <= 2);
+		Collections.sort(ranges);
+		String range = ranges.get(0);
+		int from = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+		assertTrue(from > 2 * quarter);
+		assertEquals("bytes=" + from + "-" + (3 * quarter - 1), range);
+	}
+
+	public void testNoRangeSupport() throws Exception {
+		supportsRanges = false;
+		ChunkedDownload chunked = new ChunkedDownload(transport, limiter, 1024, 4);
+		PartialDownload partial = new PartialDownload(dir, "big");
+		assertNull(chunked.fetch(uri, partial, CONTENT.length));
+		assertFalse(partial.file.exists());
+	}
+
+	public void testThreshold() throws Exception {
+		ChunkedDownload chunked = new ChunkedDownload(transport, limiter, CONTENT.length + 1, 4);
+		assertFalse(chunked.accepts(uri, CONTENT.length));
+		assertFalse(chunked.accepts(new URI("file:/tmp/big.jar"), Long.MAX_VALUE));
+	}
+}
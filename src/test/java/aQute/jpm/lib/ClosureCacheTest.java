@@ -0,0 +1,104 @@
+package aQute.jpm.lib;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+
+import aQute.lib.io.IO;
+import aQute.service.library.Library.Phase;
+import aQute.service.library.Library.RevisionRef;
+import junit.framework.TestCase;
+
+public class ClosureCacheTest extends TestCase {
+	static final byte[]	ROOT	= new byte[] {
+		1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20
+	};
+
+	File				dir;
+	ClosureCache		cache;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = new File(System.getProperty("java.io.tmpdir"), "jpm-closure-test");
+		IO.delete(dir);
+		cache = new ClosureCache(dir);
+		cache.setFingerprint("https://repo1.maven.org/maven2/");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		IO.delete(dir);
+	}
+
+	static RevisionRef ref(String artifactId, int sha, Phase phase) throws Exception {
+		RevisionRef ref = new RevisionRef();
+		ref.revision = new byte[20];
+		Arrays.fill(ref.revision, (byte) sha);
+		ref.groupId = "org.example";
+		ref.artifactId = artifactId;
+		ref.version = "1.0";
+		ref.phase = phase;
+		ref.size = 1000 + sha;
+		ref.urls.add(new URI("https://repo1.maven.org/maven2/org/example/" + artifactId + "/1.0/" + artifactId
+				+ "-1.0.jar"));
+		return ref;
+	}
+
+	public void testRoundTrip() throws Exception {
+		assertNull(cache.get(ROOT, false));
+		cache.put(ROOT, false, Arrays.asList(ref("a", 1, Phase.MASTER), ref("b", 2, Phase.MASTER)));
+
+		// a new instance, as on the next run
+		ClosureCache other = new ClosureCache(dir);
+		other.setFingerprint("https://repo1.maven.org/maven2/");
+		List<RevisionRef> closure = other.get(ROOT, false);
+		assertNotNull(closure);
+		assertEquals(2, closure.size());
+		assertEquals("a", closure.get(0).artifactId);
+		assertEquals("b", closure.get(1).artifactId);
+		assertTrue(Arrays.equals(ref("b", 2, Phase.MASTER).revision, closure.get(1).revision));
+		assertEquals(1002, closure.get(1).size);
+		assertEquals(ref("a", 1, Phase.MASTER).urls, closure.get(0).urls);
+
+		assertNull("options are part of the key", other.get(ROOT, true));
+	}
+
+	public void testEmptyClosure() throws Exception {
+		cache.put(ROOT, true, Arrays.<RevisionRef> asList());
+		assertEquals(0, cache.get(ROOT, true).size());
+	}
+
+	public void testLibraryChanged() throws Exception {
+		cache.put(ROOT, false, Arrays.asList(ref("a", 1, Phase.MASTER)));
+		assertNotNull(cache.get(ROOT, false));
+
+		cache.setFingerprint("https://example.com/maven2/");
+		assertNull(cache.get(ROOT, false));
+		assertEquals(0, dir.list().length);
+
+		cache.setFingerprint("https://repo1.maven.org/maven2/");
+		assertNull(cache.get(ROOT, false));
+	}
+
+	public void testSnapshotsNotPersisted() throws Exception {
+		cache.put(ROOT, false, Arrays.asList(ref("a", 1, Phase.MASTER), ref("b", 2, Phase.STAGING)));
+		assertNull(cache.get(ROOT, false));
+	}
+
+	public void testCorruptEntry() throws Exception {
+		cache.put(ROOT, false, Arrays.asList(ref("a", 1, Phase.MASTER)));
+		File[] files = dir.listFiles();
+		assertEquals(1, files.length);
+		IO.store("{ not json", files[0]);
+		assertNull(cache.get(ROOT, false));
+		assertFalse(files[0].exists());
+	}
+
+	public void testNoLibrary() throws Exception {
+		ClosureCache none = new ClosureCache(dir);
+		none.put(ROOT, false, Arrays.asList(ref("a", 1, Phase.MASTER)));
+		assertNull(none.get(ROOT, false));
+		assertFalse(dir.exists());
+	}
+}
@@ -0,0 +1,176 @@
+package aQute.jpm.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import aQute.lib.io.IO;
+import aQute.libg.cryptography.SHA1;
+import aQute.libg.reporter.ReporterAdapter;
+import junit.framework.TestCase;
+
+public class DependencyCollectorTest extends TestCase {
+	HttpServer					server;
+	File						dir;
+	JustAnotherPackageManager	jpm;
+	ReporterAdapter				reporter;
+	final Map<String,byte[]>	jars		= new HashMap<String,byte[]>();
+	final AtomicInteger			active		= new AtomicInteger();
+	final AtomicInteger			maxActive	= new AtomicInteger();
+	volatile long				delay;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = new File(System.getProperty("java.io.tmpdir"), "jpm-collector-test");
+		IO.delete(dir);
+		IO.mkdirs(dir);
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				int n = active.incrementAndGet();
+				synchronized (maxActive) {
+					if (n > maxActive.get())
+						maxActive.set(n);
+				}
+				try {
+					Thread.sleep(delay);
+					byte[] content = jars.get(exchange.getRequestURI().getPath());
+					if (content == null) {
+						exchange.sendResponseHeaders(404, -1);
+						exchange.close();
+						return;
+					}
+					exchange.sendResponseHeaders(200, content.length);
+					try (OutputStream out = exchange.getResponseBody()) {
+						out.write(content);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					active.decrementAndGet();
+				}
+			}
+		});
+		server.start();
+
+		System.setProperty("jpm.intest", "true");
+		reporter = new ReporterAdapter();
+		jpm = new JustAnotherPackageManager(reporter, null, new File(dir, "home"), new File(dir, "bin"));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		jpm.close();
+		server.stop(0);
+		IO.delete(dir);
+	}
+
+	String url(String path) {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+	}
+
+	static byte[] jar(String bsn, String header, String value) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().putValue("Manifest-Version", "1.0");
+		manifest.getMainAttributes().putValue("Bundle-SymbolicName", bsn);
+		if (header != null)
+			manifest.getMainAttributes().putValue(header, value);
+		new JarOutputStream(bout, manifest).close();
+		return bout.toByteArray();
+	}
+
+	byte[] serve(String path, String classpath) throws IOException {
+		byte[] content = jar(path, classpath == null ? null : "JPM-Classpath", classpath);
+		jars.put(path, content);
+		return content;
+	}
+
+	static List<String> hex(List<byte[]> digests) {
+		List<String> result = new ArrayList<String>();
+		for (byte[] d : digests)
+			result.add(aQute.lib.hex.Hex.toHexString(d));
+		return result;
+	}
+
+	static String sha(byte[] content) throws Exception {
+		return aQute.lib.hex.Hex.toHexString(SHA1.digest(content).digest());
+	}
+
+	public void testTransitiveBreadthFirst() throws Exception {
+		byte[] a = serve("/a.jar", url("/b.jar") + "," + url("/c.jar"));
+		byte[] b = serve("/b.jar", url("/d.jar") + "," + url("/a.jar"));
+		byte[] c = serve("/c.jar", url("/e.jar"));
+		byte[] d = serve("/d.jar", null);
+		jars.put("/e.jar", d);
+
+		DependencyCollector collector = new DependencyCollector(jpm, true, 4);
+		collector.add(url("/a.jar"), null);
+		assertEquals(Arrays.asList(sha(a), sha(b), sha(c), sha(d)), hex(collector.getDigests()));
+		assertTrue(reporter.getErrors().toString(), reporter.isOk());
+	}
+
+	public void testNotTransitive() throws Exception {
+		byte[] a = serve("/a.jar", url("/b.jar"));
+		serve("/b.jar", null);
+
+		DependencyCollector collector = new DependencyCollector(jpm, false, 4);
+		collector.add(url("/a.jar"), null);
+		assertEquals(Arrays.asList(sha(a)), hex(collector.getDigests()));
+	}
+
+	public void testMissingDependency() throws Exception {
+		byte[] a = serve("/a.jar", url("/missing.jar") + "," + url("/b.jar"));
+		byte[] b = serve("/b.jar", null);
+
+		DependencyCollector collector = new DependencyCollector(jpm, true, 4);
+		collector.add(url("/a.jar"), null);
+		assertEquals(Arrays.asList(sha(a), sha(b)), hex(collector.getDigests()));
+		assertEquals(1, reporter.getErrors().size());
+	}
+
+	public void testBoundedInflight() throws Exception {
+		delay = 100;
+		List<String> expected = new ArrayList<String>();
+		DependencyCollector collector = new DependencyCollector(jpm, true, 2);
+		for (int i = 0; i < 6; i++) {
+			expected.add(sha(serve("/f" + i + ".jar", null)));
+			collector.add(url("/f" + i + ".jar"), null);
+		}
+		assertEquals(expected, hex(collector.getDigests()));
+		assertTrue(maxActive.get() <= 2);
+	}
+
+	public void testLocalClassPath() throws Exception {
+		File lib = new File(dir, "local/lib");
+		IO.mkdirs(lib);
+		byte[] x = jar("x", null, null);
+		IO.copy(x, new File(lib, "x.jar"));
+		byte[] root = jar("root", "Class-Path", "lib/x.jar lib/absent.jar");
+		File rootFile = new File(dir, "local/root.jar");
+		IO.copy(root, rootFile);
+
+		DependencyCollector collector = new DependencyCollector(jpm, true, 4);
+		collector.addAsync(jpm.putAsync(rootFile.toURI()));
+		assertEquals(Arrays.asList(sha(root), sha(x)), hex(collector.getDigests()));
+		assertTrue(reporter.isOk());
+	}
+}
@@ -0,0 +1,155 @@
+package aQute.jpm.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import aQute.lib.io.IO;
+import aQute.libg.reporter.ReporterAdapter;
+import junit.framework.TestCase;
+
+public class FetchTest extends TestCase {
+	HttpServer					server;
+	File						dir;
+	JustAnotherPackageManager	jpm;
+	final CountDownLatch		release	= new CountDownLatch(1);
+	byte[]						content;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = new File(System.getProperty("java.io.tmpdir"), "jpm-fetch-test");
+		IO.delete(dir);
+		IO.mkdirs(dir);
+
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().putValue("Manifest-Version", "1.0");
+		manifest.getMainAttributes().putValue("Bundle-SymbolicName", "fetch.test");
+		new JarOutputStream(bout, manifest).close();
+		content = bout.toByteArray();
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					if (exchange.getRequestURI().getPath().startsWith("/slow"))
+						release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				if (exchange.getRequestURI().getPath().endsWith("missing.jar")) {
+					exchange.sendResponseHeaders(404, -1);
+					exchange.close();
+					return;
+				}
+				exchange.sendResponseHeaders(200, content.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(content);
+				}
+			}
+		});
+		server.start();
+
+		System.setProperty("jpm.intest", "true");
+		jpm = new JustAnotherPackageManager(new ReporterAdapter(), null, new File(dir, "home"), new File(dir, "bin"));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		release.countDown();
+		jpm.close();
+		server.stop(0);
+		IO.delete(dir);
+	}
+
+	List<URI> uri(String path) throws Exception {
+		return Collections.singletonList(new URI("http://127.0.0.1:" + server.getAddress().getPort() + path));
+	}
+
+	public void testFetch() throws Exception {
+		ArtifactData data = jpm.fetch(uri("/a.jar"), null, 0, 0, null).get(10, TimeUnit.SECONDS);
+		assertTrue(new File(data.file).isFile());
+		assertNull(data.error);
+	}
+
+	public void testFailureCompletesExceptionally() throws Exception {
+		try {
+			jpm.fetch(uri("/missing.jar"), null, 0, 0, null).get(10, TimeUnit.SECONDS);
+			fail("expected failure");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+
+	public void testTimeout() throws Exception {
+		CompletableFuture<ArtifactData> f = jpm.fetch(uri("/slow/a.jar"), null, 0, 100, TimeUnit.MILLISECONDS);
+		try {
+			f.get(10, TimeUnit.SECONDS);
+			fail("expected timeout");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+	}
+
+	public void testCancelSharedDownload() throws Exception {
+		CompletableFuture<ArtifactData> a = jpm.fetch(uri("/slow/b.jar"), null, 0, 0, null);
+		CompletableFuture<ArtifactData> b = jpm.fetch(uri("/slow/b.jar"), null, 0, 0, null);
+		a.cancel(true);
+		release.countDown();
+		ArtifactData data = b.get(10, TimeUnit.SECONDS);
+		assertTrue(new File(data.file).isFile());
+	}
+
+	public void testCancelStopsDownload() throws Exception {
+		ArtifactData data = jpm.putAsync(uri("/slow/c.jar"), null, 0);
+		CompletableFuture<ArtifactData> a = data.subscribe();
+		a.cancel(true);
+		data.sync();
+		assertNotNull(data.error);
+	}
+
+	/**
+	 * A download that does not check the sha we expect is not joined
+	 */
+	public void testJoinOnlyWhenExpectationsMatch() throws Exception {
+		ArtifactData a = jpm.putAsync(uri("/slow/d.jar"), null, 0);
+		ArtifactData b = jpm.putAsync(uri("/slow/d.jar"), new byte[20], 0);
+		assertTrue(a != b);
+		assertSame(a, jpm.putAsync(uri("/slow/d.jar"), null, 0));
+		release.countDown();
+		a.sync();
+		b.sync();
+		assertNull(a.error);
+		assertNotNull(b.error);
+
+		ArtifactData c = jpm.putAsync(uri("/slow/d.jar"), MavenCentralLibraryTest.sha(new File(a.file)), content.length);
+		c.sync();
+		assertNull(c.error);
+		assertEquals(a.file, c.file);
+	}
+
+	public void testNoMirrors() throws Exception {
+		ArtifactData data = jpm.putAsync(Collections.<URI> emptyList(), null, 0);
+		assertTrue(data.isDone());
+		assertNotNull(data.error);
+	}
+}
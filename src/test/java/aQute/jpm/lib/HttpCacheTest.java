@@ -0,0 +1,146 @@
+package aQute.jpm.lib;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import aQute.lib.io.IO;
+import junit.framework.TestCase;
+
+public class HttpCacheTest extends TestCase {
+	HttpServer				server;
+	File					dir;
+	volatile String			content		= "<metadata>1</metadata>";
+	final AtomicInteger		requests	= new AtomicInteger();
+	final AtomicInteger		notModified	= new AtomicInteger();
+	final Transport			transport	= new Transport(2000, 2000, 0);
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = new File(System.getProperty("java.io.tmpdir"), "jpm-httpcache-test");
+		IO.delete(dir);
+		IO.mkdirs(dir);
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				requests.incrementAndGet();
+				if (exchange.getRequestURI().getPath().endsWith("missing.xml")) {
+					exchange.sendResponseHeaders(404, -1);
+					exchange.close();
+					return;
+				}
+				String etag = "\"" + content.hashCode() + "\"";
+				exchange.getResponseHeaders().set("ETag", etag);
+				if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+					notModified.incrementAndGet();
+					exchange.sendResponseHeaders(304, -1);
+					exchange.close();
+					return;
+				}
+				byte[] body = content.getBytes("UTF-8");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			}
+		});
+		server.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop(0);
+		IO.delete(dir);
+	}
+
+	URI uri(String path) throws Exception {
+		return new URI("http://127.0.0.1:" + server.getAddress().getPort() + path);
+	}
+
+	public void testFreshEntryIsServedFromCache() throws Exception {
+		HttpCache cache = new HttpCache(dir, transport, 60000, 1024 * 1024);
+		assertEquals("<metadata>1</metadata>", IO.collect(cache.open(uri("/a.xml"))));
+		assertEquals("<metadata>1</metadata>", IO.collect(cache.open(uri("/a.xml"))));
+		assertEquals(1, requests.get());
+	}
+
+	public void testRevalidation() throws Exception {
+		HttpCache cache = new HttpCache(dir, transport, 0, 1024 * 1024);
+		IO.collect(cache.open(uri("/a.xml")));
+		assertEquals("<metadata>1</metadata>", IO.collect(cache.open(uri("/a.xml"))));
+		assertEquals(2, requests.get());
+		assertEquals(1, notModified.get());
+
+		content = "<metadata>2</metadata>";
+		assertEquals("<metadata>2</metadata>", IO.collect(cache.open(uri("/a.xml"))));
+		assertEquals(1, notModified.get());
+	}
+
+	public void testRefresh() throws Exception {
+		HttpCache cache = new HttpCache(dir, transport, 60000, 1024 * 1024);
+		IO.collect(cache.open(uri("/a.xml")));
+		content = "<metadata>2</metadata>";
+		cache.setRefresh(true);
+		assertEquals("<metadata>2</metadata>", IO.collect(cache.open(uri("/a.xml"))));
+		assertEquals(2, requests.get());
+
+		// entries that never expire are not revalidated
+		cache.get(uri("/a.xml"), Long.MAX_VALUE);
+		assertEquals(2, requests.get());
+	}
+
+	public void testOffline() throws Exception {
+		HttpCache cache = new HttpCache(dir, transport, 0, 1024 * 1024);
+		IO.collect(cache.open(uri("/a.xml")));
+		transport.setOffline(true);
+		assertEquals("<metadata>1</metadata>", IO.collect(cache.open(uri("/a.xml"))));
+		assertEquals(1, requests.get());
+		try {
+			cache.open(uri("/b.xml"));
+			fail("offline and not cached");
+		} catch (IOException e) {
+			assertEquals(1, requests.get());
+		}
+	}
+
+	public void testStaleWhenUnreachable() throws Exception {
+		HttpCache cache = new HttpCache(dir, transport, 0, 1024 * 1024);
+		URI uri = uri("/a.xml");
+		IO.collect(cache.open(uri));
+		server.stop(0);
+		assertEquals("<metadata>1</metadata>", IO.collect(cache.open(uri)));
+	}
+
+	public void testNotFoundRemovesEntry() throws Exception {
+		HttpCache cache = new HttpCache(dir, transport, 0, 1024 * 1024);
+		try {
+			cache.open(uri("/missing.xml"));
+			fail("not found");
+		} catch (FileNotFoundException e) {
+			// expected
+		}
+	}
+
+	public void testEviction() throws Exception {
+		content = new String(new char[1000]).replace('\0', 'x');
+		HttpCache cache = new HttpCache(dir, transport, 60000, 2500);
+		File a = cache.get(uri("/a.xml"), 60000);
+		assertTrue(a.setLastModified(System.currentTimeMillis() - 10000));
+		File b = cache.get(uri("/b.xml"), 60000);
+		File c = cache.get(uri("/c.xml"), 60000);
+		assertFalse(a.isFile());
+		assertTrue(b.isFile());
+		assertTrue(c.isFile());
+	}
+}
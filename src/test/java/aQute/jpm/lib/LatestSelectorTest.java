@@ -0,0 +1,72 @@
+package aQute.jpm.lib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import aQute.service.library.Library;
+import aQute.service.library.Library.Revision;
+import junit.framework.TestCase;
+
+public class LatestSelectorTest extends TestCase {
+
+	static Revision revision(String groupId, String artifactId, String classifier, String baseline, String qualifier,
+			long created, int sha) {
+		Revision r = new Revision();
+		r.groupId = groupId;
+		r.artifactId = artifactId;
+		r.classifier = classifier;
+		r.baseline = baseline;
+		r.qualifier = qualifier;
+		r.version = baseline;
+		r.created = created;
+		r._id = new byte[20];
+		Arrays.fill(r._id, (byte) sha);
+		return r;
+	}
+
+	public void testLatest() throws Exception {
+		Revision a1 = revision("g", "a", null, "1.0.0", null, 0, 1);
+		Revision a2 = revision("g", "a", null, "1.10.0", null, 0, 2);
+		Revision a3 = revision("g", "a", null, "1.9.0", null, 0, 3);
+		Revision ajdk = revision("g", "a", "jdk8", "1.0.0", null, 0, 4);
+		Revision b1 = revision("g", "b", null, "2.0.0", "SNAPSHOT", 10, 5);
+		Revision b2 = revision("g", "b", null, "2.0.0", "SNAPSHOT", 20, 6);
+		Revision sha = revision(Library.SHA_GROUP, "x", null, "9.0.0", null, 0, 7);
+
+		List<Revision> list = new ArrayList<Revision>(Arrays.asList(a1, a2, a3, ajdk, b1, b2, sha));
+		for (int i = 0; i < 10; i++) {
+			Collections.shuffle(list);
+			Map<String,Revision> latest = LatestSelector.latest(list);
+			assertEquals(3, latest.size());
+			assertSame(a2, latest.get("g:a"));
+			assertSame(ajdk, latest.get("g:a:jdk8"));
+			// created later
+			assertSame(b2, latest.get("g:b"));
+		}
+	}
+
+	public void testTieOnShaAndLastWins() throws Exception {
+		Revision low = revision("g", "a", null, "1.0.0", null, 0, 1);
+		Revision high = revision("g", "a", null, "1.0.0", null, 0, 2);
+		assertSame(high, LatestSelector.latest(Arrays.asList(high, low)).get("g:a"));
+		assertSame(high, LatestSelector.latest(Arrays.asList(low, high)).get("g:a"));
+
+		Revision same = revision("g", "a", null, "1.0.0", null, 0, 1);
+		assertSame(same, LatestSelector.latest(Arrays.asList(low, same)).get("g:a"));
+	}
+
+	public void testMany() throws Exception {
+		List<Revision> list = new ArrayList<Revision>();
+		for (int p = 0; p < 100; p++)
+			for (int v = 0; v < 100; v++)
+				list.add(revision("g", "a" + p, null, "1." + v + ".0", null, 0, v));
+		Collections.shuffle(list);
+		Map<String,Revision> latest = LatestSelector.latest(list);
+		assertEquals(100, latest.size());
+		for (Revision r : latest.values())
+			assertEquals("1.99.0", r.baseline);
+	}
+}
@@ -0,0 +1,147 @@
+package aQute.jpm.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import aQute.lib.io.IO;
+import aQute.libg.reporter.ReporterAdapter;
+import junit.framework.TestCase;
+
+public class LockfileTest extends TestCase {
+	HttpServer					server;
+	File						dir;
+	JustAnotherPackageManager	source;
+	JustAnotherPackageManager	target;
+	ReporterAdapter				reporter;
+	final Map<String,byte[]>	jars		= new HashMap<String,byte[]>();
+	final AtomicInteger			requests	= new AtomicInteger();
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = new File(System.getProperty("java.io.tmpdir"), "jpm-lockfile-test");
+		IO.delete(dir);
+		IO.mkdirs(dir);
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				requests.incrementAndGet();
+				byte[] content = jars.get(exchange.getRequestURI().getPath());
+				if (content == null) {
+					exchange.sendResponseHeaders(404, -1);
+					exchange.close();
+					return;
+				}
+				exchange.sendResponseHeaders(200, content.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(content);
+				}
+			}
+		});
+		server.start();
+
+		System.setProperty("jpm.intest", "true");
+		reporter = new ReporterAdapter();
+		source = new JustAnotherPackageManager(reporter, null, new File(dir, "source"), new File(dir, "source-bin"));
+		target = new JustAnotherPackageManager(reporter, null, new File(dir, "target"), new File(dir, "target-bin"));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		source.close();
+		target.close();
+		server.stop(0);
+		IO.delete(dir);
+	}
+
+	URI url(String path) throws Exception {
+		return new URI("http://127.0.0.1:" + server.getAddress().getPort() + path);
+	}
+
+	ArtifactData serve(String path) throws Exception {
+		jars.put(path, DependencyCollectorTest.jar(path, null, null));
+		return source.fetch(url(path).toString(), 10, TimeUnit.SECONDS).get();
+	}
+
+	CommandData install() throws Exception {
+		ArtifactData tool = serve("/tool.jar");
+		ArtifactData dep = serve("/dep.jar");
+
+		CommandData cmd = new CommandData();
+		cmd.name = "tool";
+		cmd.main = "tool.Main";
+		cmd.sha = tool.sha;
+		cmd.dependencies.add(tool.sha);
+		cmd.dependencies.add(dep.sha);
+		source.getPlatform().setJpm(source);
+		assertNull(source.createCommand(cmd, false));
+		target.getPlatform().setJpm(target);
+		return cmd;
+	}
+
+	public void testLockAndInstall() throws Exception {
+		CommandData cmd = install();
+
+		Lockfile lock = source.lock();
+		assertEquals(1, lock.commands.size());
+		assertEquals(2, lock.artifacts.size());
+		assertNull("machine specific", lock.commands.get(0).bin);
+		for (Lockfile.Artifact artifact : lock.artifacts) {
+			assertEquals(1, artifact.urls.size());
+			assertTrue(artifact.size > 0);
+		}
+
+		// through the file format
+		File file = new File(dir, "jpm.lock");
+		JustAnotherPackageManager.codec.enc().to(file).put(lock);
+		lock = JustAnotherPackageManager.codec.dec().from(file).get(Lockfile.class);
+
+		requests.set(0);
+		assertTrue(target.install(lock, false));
+		assertTrue(reporter.getErrors().toString(), reporter.isOk());
+		assertEquals("no resolution, only the blobs", 2, requests.get());
+
+		CommandData installed = target.getCommand("tool");
+		assertNotNull(installed);
+		assertEquals("tool.Main", installed.main);
+		assertTrue(Arrays.equals(cmd.sha, installed.sha));
+		assertEquals(new File(dir, "target/repo").getCanonicalPath(), installed.jpmRepoDir);
+		for (byte[] sha : installed.dependencies)
+			assertNotNull(target.get(sha));
+	}
+
+	public void testInvalidSha() throws Exception {
+		install();
+		Lockfile lock = source.lock();
+
+		// the server now has another jar
+		jars.put("/dep.jar", DependencyCollectorTest.jar("other", null, null));
+		assertFalse(target.install(lock, false));
+		assertFalse(reporter.isOk());
+		assertNull(target.getCommand("tool"));
+	}
+
+	public void testMissingArtifact() throws Exception {
+		install();
+		Lockfile lock = source.lock();
+		jars.clear();
+		lock.artifacts.remove(1);
+		assertFalse(target.install(lock, false));
+		assertNull(target.getCommand("tool"));
+	}
+}
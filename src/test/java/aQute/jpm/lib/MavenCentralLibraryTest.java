@@ -0,0 +1,364 @@
+package aQute.jpm.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import aQute.lib.hex.Hex;
+import aQute.lib.io.IO;
+import aQute.libg.cryptography.SHA1;
+import aQute.service.library.Coordinate;
+import aQute.service.library.Library.Phase;
+import aQute.service.library.Library.Program;
+import aQute.service.library.Library.Revision;
+import junit.framework.TestCase;
+
+public class MavenCentralLibraryTest extends TestCase {
+	File				dir;
+	File				repo;
+	MavenCentralLibrary	library;
+	HttpCache			cache;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = new File(System.getProperty("java.io.tmpdir"), "jpm-maven-test");
+		IO.delete(dir);
+		repo = new File(dir, "repo");
+		IO.mkdirs(repo);
+
+		File tool = new File(repo, "org/example/tool");
+		IO.mkdirs(tool);
+		IO.store("<?xml version='1.0'?>\n<metadata><groupId>org.example</groupId><artifactId>tool</artifactId>"
+				+ "<versioning><latest>2.0-SNAPSHOT</latest><release>1.10</release><versions>"
+				+ "<version>1.0</version><version>1.1</version><version>1.10</version>"
+				+ "<version>2.0-SNAPSHOT</version></versions><lastUpdated>20200101120000</lastUpdated>"
+				+ "</versioning></metadata>", new File(tool, "maven-metadata.xml"));
+
+		release("1.0", true);
+		release("1.1", true);
+		release("1.10", false);
+		IO.store("<project><modelVersion>4.0.0</modelVersion><name>Tool</name>"
+				+ "<description>A tool</description><dependencies><dependency><name>not me</name>"
+				+ "</dependency></dependencies></project>", new File(tool, "1.10/tool-1.10.pom"));
+
+		File snapshot = new File(tool, "2.0-SNAPSHOT");
+		IO.mkdirs(snapshot);
+		IO.store("<metadata><versioning><snapshotVersions><snapshotVersion><extension>pom</extension>"
+				+ "<value>2.0-20200101.120000-1</value></snapshotVersion><snapshotVersion>"
+				+ "<extension>jar</extension><value>2.0-20200101.120000-1</value></snapshotVersion>"
+				+ "</snapshotVersions></versioning></metadata>", new File(snapshot, "maven-metadata.xml"));
+		IO.copy(jar("tool-2.0-SNAPSHOT"), new File(snapshot, "tool-2.0-20200101.120000-1.jar"));
+
+		cache = new HttpCache(new File(dir, "cache"), new Transport(2000, 2000, 0), 60000, 1024 * 1024);
+		library = new MavenCentralLibrary(repo.toURI(), cache);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		IO.delete(dir);
+	}
+
+	byte[] release(String version, boolean sha1) throws Exception {
+		File vdir = new File(repo, "org/example/tool/" + version);
+		IO.mkdirs(vdir);
+		byte[] content = jar("tool-" + version);
+		IO.copy(content, new File(vdir, "tool-" + version + ".jar"));
+		if (sha1)
+			IO.store(Hex.toHexString(SHA1.digest(content).digest()).toLowerCase() + "  tool-" + version + ".jar",
+					new File(vdir, "tool-" + version + ".jar.sha1"));
+		return content;
+	}
+
+	static byte[] jar(String bsn) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().putValue("Manifest-Version", "1.0");
+		manifest.getMainAttributes().putValue("Bundle-SymbolicName", bsn);
+		new JarOutputStream(bout, manifest).close();
+		return bout.toByteArray();
+	}
+
+	static byte[] sha(File f) throws Exception {
+		return SHA1.digest(IO.read(f)).digest();
+	}
+
+	public void testLatestRelease() throws Exception {
+		Revision r = library.getRevisionByCoordinate(new Coordinate("org.example:tool"));
+		assertNotNull(r);
+		assertEquals("1.10", r.version);
+		assertEquals(Phase.MASTER, r.phase);
+		assertEquals("Tool", r.name);
+		assertEquals("A tool", r.description);
+		File jar = new File(repo, "org/example/tool/1.10/tool-1.10.jar");
+		assertEquals(jar.toURI(), r.urls.iterator().next());
+		// no .sha1 file, digested
+		assertTrue(Arrays.equals(sha(jar), r._id));
+	}
+
+	public void testExactAndPrefix() throws Exception {
+		Revision r = library.getRevisionByCoordinate(new Coordinate("org.example:tool@1.1"));
+		assertEquals("1.1", r.version);
+		assertTrue(Arrays.equals(sha(new File(repo, "org/example/tool/1.1/tool-1.1.jar")), r._id));
+
+		r = library.getRevisionByCoordinate(new Coordinate("org.example:tool@1*"));
+		assertEquals("1.10", r.version);
+
+		assertNull(library.getRevisionByCoordinate(new Coordinate("org.example:tool@3.0")));
+		assertNull(library.getRevisionByCoordinate(new Coordinate("org.example:missing")));
+	}
+
+	public void testSnapshot() throws Exception {
+		Revision r = library.getRevisionByCoordinate(new Coordinate("org.example:tool@2.0*"));
+		assertEquals("2.0-SNAPSHOT", r.version);
+		assertEquals(Phase.STAGING, r.phase);
+		File jar = new File(repo, "org/example/tool/2.0-SNAPSHOT/tool-2.0-20200101.120000-1.jar");
+		assertEquals(jar.toURI(), r.urls.iterator().next());
+		assertTrue(Arrays.equals(sha(jar), r._id));
+	}
+
+	public void testAllRevisions() throws Exception {
+		List<String> versions = new ArrayList<String>();
+		for (Revision r : library.getRevisionsByCoordinate(new Coordinate("org.example:tool")))
+			versions.add(r.version);
+		assertEquals(Arrays.asList("1.10", "1.1", "1.0"), versions);
+	}
+
+	public void testMemoized() throws Exception {
+		Revision r = library.getRevisionByCoordinate(new Coordinate("org.example:tool@1.0"));
+		IO.delete(new File(repo, "org/example/tool/maven-metadata.xml"));
+		IO.delete(new File(repo, "org/example/tool/1.0/tool-1.0.jar.sha1"));
+		assertSame(r, library.getRevisionByCoordinate(new Coordinate("org.example:tool@1.0")));
+		assertSame(r, library.getRevision(r._id));
+	}
+
+	public void testMissesAreRemembered() throws Exception {
+		File file = new File(dir, "misses.json");
+		NegativeCache first = new NegativeCache(file, 60000);
+		library = new MavenCentralLibrary(repo.toURI(), null, cache, first);
+		assertNull(library.getRevisionByCoordinate(new Coordinate("org.example:tool@3.0")));
+		first.save();
+		release("3.0", true);
+		IO.delete(new File(repo, "org/example/tool/maven-metadata.xml"));
+
+		// also in the next invocation
+		NegativeCache misses = new NegativeCache(file, 60000);
+		library = new MavenCentralLibrary(repo.toURI(), null, cache, misses);
+		assertNull(library.getRevisionByCoordinate(new Coordinate("org.example:tool@3.0")));
+
+		misses.setRefresh(true);
+		assertEquals("3.0", library.getRevisionByCoordinate(new Coordinate("org.example:tool@3.0")).version);
+	}
+
+	public void testLocalRepositoryWithoutMetadata() throws Exception {
+		IO.delete(new File(repo, "org/example/tool/maven-metadata.xml"));
+		Revision r = library.getRevisionByCoordinate(new Coordinate("org.example:tool@1.0"));
+		assertEquals("1.0", r.version);
+	}
+
+	public void testSearch() throws Exception {
+		final byte[] content = IO.read(new File(repo, "org/example/tool/1.0/tool-1.0.jar"));
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/search", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = ("{\"responseHeader\":{\"status\":0},\"response\":{\"numFound\":1,\"start\":0,"
+						+ "\"docs\":[{\"id\":\"org.example:tool\",\"g\":\"org.example\",\"a\":\"tool\",\"v\":\"1.0\","
+						+ "\"latestVersion\":\"1.10\",\"p\":\"jar\",\"timestamp\":1577880000000,"
+						+ "\"ec\":[\".jar\",\".pom\"]}]}}").getBytes("UTF-8");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			}
+		});
+		server.start();
+		try {
+			URI search = new URI("http://127.0.0.1:" + server.getAddress().getPort() + "/search");
+			MavenCentralLibrary central = new MavenCentralLibrary(repo.toURI(), search, cache);
+
+			List<Program> programs = central.getQueryPrograms("tool", 0, 10);
+			assertEquals(1, programs.size());
+			assertEquals("org.example", programs.get(0).groupId);
+			assertEquals("1.10", programs.get(0).last.version);
+
+			Revision r = central.getRevision(SHA1.digest(content).digest());
+			assertNotNull(r);
+			assertEquals("1.0", r.version);
+
+			r = central.getRevisionByCoordinate(new Coordinate("tool@1.1"));
+			assertEquals("org.example", r.groupId);
+			assertEquals("1.1", r.version);
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	public void testBatchSearch() throws Exception {
+		final List<String> queries = new ArrayList<String>();
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/search", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				synchronized (queries) {
+					queries.add(exchange.getRequestURI().getQuery());
+				}
+				byte[] body = ("{\"response\":{\"numFound\":2,\"start\":0,\"docs\":["
+						+ "{\"id\":\"org.example:tool:1.0\",\"g\":\"org.example\",\"a\":\"tool\",\"v\":\"1.0\",\"ec\":[\".jar\"]},"
+						+ "{\"id\":\"org.example:tool:1.1\",\"g\":\"org.example\",\"a\":\"tool\",\"v\":\"1.1\",\"ec\":[\".jar\"]}"
+						+ "]}}").getBytes("UTF-8");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			}
+		});
+		server.start();
+		try {
+			URI search = new URI("http://127.0.0.1:" + server.getAddress().getPort() + "/search");
+			MavenCentralLibrary central = new MavenCentralLibrary(repo.toURI(), search, cache,
+					new NegativeCache(null, 60000));
+
+			byte[] v10 = sha(new File(repo, "org/example/tool/1.0/tool-1.0.jar"));
+			byte[] v11 = sha(new File(repo, "org/example/tool/1.1/tool-1.1.jar"));
+			byte[] unknown = new byte[20];
+			Map<ShaKey,Revision> revisions = central.getRevisions(Arrays.asList(v11, unknown, v10, v11.clone()));
+			assertEquals(1, queries.size());
+			assertEquals(Arrays.asList(ShaKey.of(v11), ShaKey.of(v10)), new ArrayList<ShaKey>(revisions.keySet()));
+			assertEquals("1.1", revisions.get(ShaKey.of(v11)).version);
+			assertEquals("1.0", revisions.get(ShaKey.of(v10)).version);
+
+			// known revisions and misses are answered locally
+			revisions = central.getRevisions(Arrays.asList(v10, unknown));
+			assertEquals(1, queries.size());
+			assertEquals(1, revisions.size());
+			assertEquals("1.0", central.getRevision(v10).version);
+			assertNull(central.getRevision(unknown));
+			assertEquals(1, queries.size());
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	/**
+	 * When the revision of a search result cannot be read, the shas that were
+	 * not found are not remembered as misses
+	 */
+	public void testFailedLookupIsNotAMiss() throws Exception {
+		File broken = new File(repo, "org/example/tool/9.0-SNAPSHOT");
+		IO.mkdirs(broken);
+		IO.store("this is not xml", new File(broken, "maven-metadata.xml"));
+
+		final List<String> queries = new ArrayList<String>();
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/search", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				synchronized (queries) {
+					queries.add(exchange.getRequestURI().getQuery());
+				}
+				byte[] body = ("{\"response\":{\"numFound\":2,\"start\":0,\"docs\":["
+						+ "{\"id\":\"org.example:tool:1.0\",\"g\":\"org.example\",\"a\":\"tool\",\"v\":\"1.0\",\"ec\":[\".jar\"]},"
+						+ "{\"id\":\"org.example:tool:9.0-SNAPSHOT\",\"g\":\"org.example\",\"a\":\"tool\",\"v\":\"9.0-SNAPSHOT\",\"ec\":[\".jar\"]}"
+						+ "]}}").getBytes("UTF-8");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			}
+		});
+		server.start();
+		try {
+			URI search = new URI("http://127.0.0.1:" + server.getAddress().getPort() + "/search");
+			MavenCentralLibrary central = new MavenCentralLibrary(repo.toURI(), search, cache,
+					new NegativeCache(null, 60000));
+
+			byte[] v10 = sha(new File(repo, "org/example/tool/1.0/tool-1.0.jar"));
+			byte[] unknown = new byte[20];
+			assertEquals(1, central.getRevisions(Arrays.asList(v10, unknown)).size());
+			assertEquals(1, queries.size());
+
+			assertNull(central.getRevision(unknown));
+			assertEquals(2, queries.size());
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	/**
+	 * Lookups that run on a bounded transfer pool and fan out to it must not
+	 * wait for each other, even with more lookups than threads
+	 */
+	public void testLookupsOnTransferPool() throws Exception {
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/search", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = ("{\"response\":{\"numFound\":2,\"start\":0,\"docs\":["
+						+ "{\"id\":\"org.example:tool:1.0\",\"g\":\"org.example\",\"a\":\"tool\",\"v\":\"1.0\",\"ec\":[\".jar\"]},"
+						+ "{\"id\":\"org.example:tool:1.1\",\"g\":\"org.example\",\"a\":\"tool\",\"v\":\"1.1\",\"ec\":[\".jar\"]}"
+						+ "]}}").getBytes("UTF-8");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			}
+		});
+		server.start();
+
+		int threads = 2;
+		ExecutorService saved = JustAnotherPackageManager.transferExecutor;
+		ExecutorService pool = JustAnotherPackageManager.createExecutor(false, threads, "test-transfer-", true);
+		JustAnotherPackageManager.transferExecutor = pool;
+		try {
+			URI search = new URI("http://127.0.0.1:" + server.getAddress().getPort() + "/search");
+			final MavenCentralLibrary central = new MavenCentralLibrary(repo.toURI(), search, cache,
+					new NegativeCache(null, 60000));
+
+			List<Future<?>> lookups = new ArrayList<Future<?>>();
+			for (int i = 0; i < 4 * threads; i++) {
+				final byte[] sha = new byte[20];
+				sha[0] = (byte) i;
+				lookups.add(pool.submit(() -> central.getRevision(sha)));
+				lookups.add(pool.submit(() -> central.getRevisionsByCoordinate(new Coordinate("org.example:tool"))));
+			}
+			for (Future<?> f : lookups)
+				f.get(10, TimeUnit.SECONDS);
+
+			// not on the pool the requests are still fanned out
+			assertEquals(3, count(central.getRevisionsByCoordinate(new Coordinate("org.example:tool"))));
+		} finally {
+			JustAnotherPackageManager.transferExecutor = saved;
+			pool.shutdownNow();
+			server.stop(0);
+		}
+	}
+
+	static int count(Iterable<?> iterable) {
+		int n = 0;
+		for (Iterator<?> i = iterable.iterator(); i.hasNext(); i.next())
+			n++;
+		return n;
+	}
+}
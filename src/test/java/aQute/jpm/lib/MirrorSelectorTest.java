@@ -0,0 +1,157 @@
+package aQute.jpm.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import aQute.lib.io.IO;
+import aQute.libg.cryptography.SHA1;
+import aQute.libg.reporter.ReporterAdapter;
+import junit.framework.TestCase;
+
+public class MirrorSelectorTest extends TestCase {
+	static final byte[]	CONTENT;
+	static {
+		try {
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			Manifest manifest = new Manifest();
+			manifest.getMainAttributes().putValue("Manifest-Version", "1.0");
+			manifest.getMainAttributes().putValue("Bundle-SymbolicName", "mirror.test");
+			new JarOutputStream(bout, manifest).close();
+			CONTENT = bout.toByteArray();
+		} catch (IOException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	HttpServer			slow;
+	HttpServer			fast;
+	HttpServer			broken;
+	File				dir;
+	final Transport		transport	= new Transport(2000, 2000, 0);
+	final HostLimiter	limiter		= new HostLimiter(6);
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = new File(System.getProperty("java.io.tmpdir"), "jpm-mirror-test");
+		IO.delete(dir);
+		IO.mkdirs(dir);
+		slow = server(500, 200);
+		fast = server(0, 200);
+		broken = server(0, 404);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		slow.stop(0);
+		fast.stop(0);
+		broken.stop(0);
+		IO.delete(dir);
+	}
+
+	public void testHedgedRace() throws Exception {
+		MirrorSelector selector = new MirrorSelector(dir, limiter, 50);
+		List<URI> candidates = Arrays.asList(uri(slow), uri(fast));
+		MirrorSelector.Winner winner = selector.race(transport, candidates);
+		try {
+			assertEquals(uri(fast), winner.uri);
+			assertTrue(Arrays.equals(CONTENT, IO.read(winner.response.getStream())));
+		} finally {
+			winner.response.close();
+		}
+	}
+
+	public void testNoHedgeWhenFastEnough() throws Exception {
+		MirrorSelector selector = new MirrorSelector(dir, limiter, 2000);
+		MirrorSelector.Winner winner = selector.race(transport, Arrays.asList(uri(slow), uri(fast)));
+		winner.response.close();
+		assertEquals(uri(slow), winner.uri);
+	}
+
+	public void testRaceFailsOver() throws Exception {
+		MirrorSelector selector = new MirrorSelector(dir, limiter, 2000);
+		MirrorSelector.Winner winner = selector.race(transport, Arrays.asList(uri(broken), uri(fast)));
+		winner.response.close();
+		assertEquals(uri(fast), winner.uri);
+	}
+
+	public void testOrderAndPersistence() throws Exception {
+		MirrorSelector selector = new MirrorSelector(dir, limiter, -1);
+		URI a = new URI("http://a.example.com/x.jar");
+		URI b = new URI("http://b.example.com/x.jar");
+		assertEquals(Arrays.asList(a, b), selector.order(Arrays.asList(a, b), 1000));
+
+		selector.latency(a, 100);
+		selector.latency(b, 20);
+		selector.success(b, 100000, 100);
+		assertEquals(Arrays.asList(b, a), selector.order(Arrays.asList(a, b), 1000));
+
+		selector.save();
+		selector = new MirrorSelector(dir, limiter, -1);
+		assertEquals(Arrays.asList(b, a), selector.order(Arrays.asList(a, b), 1000));
+
+		selector.failure(b);
+		selector.failure(b);
+		selector.failure(b);
+		assertEquals(Arrays.asList(a, b), selector.order(Arrays.asList(a, b), 1000));
+	}
+
+	public void testDownloadFailsOver() throws Exception {
+		System.setProperty("jpm.intest", "true");
+		JustAnotherPackageManager jpm = new JustAnotherPackageManager(new ReporterAdapter(), null,
+				new File(dir, "home"), new File(dir, "bin"));
+		try {
+			ArtifactData data = jpm.putAsync(Arrays.asList(uri(broken), uri(fast)), SHA1.digest(CONTENT)
+					.digest(), CONTENT.length);
+			data.sync();
+			assertNull(data.error);
+			assertTrue(Arrays.equals(CONTENT, IO.read(new File(data.file))));
+			assertEquals(uri(fast), data.url);
+
+			data = jpm.putAsync(Collections.singletonList(uri(broken)), new byte[20], 0);
+			data.sync();
+			assertNotNull(data.error);
+		} finally {
+			jpm.close();
+		}
+	}
+
+	static URI uri(HttpServer server) throws Exception {
+		return new URI("http://127.0.0.1:" + server.getAddress().getPort() + "/x.jar");
+	}
+
+	static HttpServer server(final long delay, final int code) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/x.jar", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				exchange.sendResponseHeaders(code, code == 200 ? CONTENT.length : -1);
+				try (OutputStream out = exchange.getResponseBody()) {
+					if (code == 200)
+						out.write(CONTENT);
+				}
+			}
+		});
+		server.start();
+		return server;
+	}
+}
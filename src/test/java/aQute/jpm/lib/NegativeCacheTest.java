@@ -0,0 +1,82 @@
+package aQute.jpm.lib;
+
+import java.io.File;
+import java.util.Arrays;
+
+import aQute.lib.io.IO;
+import junit.framework.TestCase;
+
+public class NegativeCacheTest extends TestCase {
+	File	dir;
+	File	file;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = new File(System.getProperty("java.io.tmpdir"), "jpm-negative-test");
+		IO.delete(dir);
+		file = new File(dir, "misses.json");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		IO.delete(dir);
+	}
+
+	public void testMissIsPersisted() throws Exception {
+		NegativeCache cache = new NegativeCache(file, 60000);
+		assertFalse(cache.isMiss("a"));
+		cache.miss("a");
+		assertTrue(cache.isMiss("a"));
+		assertFalse(file.exists());
+		cache.save();
+
+		NegativeCache next = new NegativeCache(file, 60000);
+		assertTrue(next.isMiss("a"));
+		assertFalse(next.isMiss("b"));
+
+		next.hit("a");
+		next.save();
+		assertFalse(new NegativeCache(file, 60000).isMiss("a"));
+	}
+
+	public void testBatch() throws Exception {
+		NegativeCache cache = new NegativeCache(file, 60000);
+		cache.miss(Arrays.asList("a", "b"));
+		cache.save();
+		NegativeCache next = new NegativeCache(file, 60000);
+		assertTrue(next.isMiss("a"));
+		assertTrue(next.isMiss("b"));
+	}
+
+	public void testExpires() throws Exception {
+		NegativeCache cache = new NegativeCache(file, 50);
+		cache.miss("a");
+		assertTrue(cache.isMiss("a"));
+		Thread.sleep(100);
+		assertFalse(cache.isMiss("a"));
+	}
+
+	public void testRefresh() throws Exception {
+		NegativeCache cache = new NegativeCache(file, 60000);
+		cache.miss("a");
+		cache.setRefresh(true);
+		assertFalse(cache.isMiss("a"));
+		cache.setRefresh(false);
+		assertTrue(cache.isMiss("a"));
+	}
+
+	public void testBounded() throws Exception {
+		NegativeCache cache = new NegativeCache(null, 60000);
+		for (int i = 0; i < NegativeCache.MAX_MISSES + 10; i++)
+			cache.miss("k" + i);
+		assertFalse(cache.isMiss("k0"));
+		assertTrue(cache.isMiss("k" + (NegativeCache.MAX_MISSES + 9)));
+	}
+
+	public void testDisabled() throws Exception {
+		NegativeCache cache = new NegativeCache(file, 0);
+		cache.miss("a");
+		assertFalse(cache.isMiss("a"));
+		assertFalse(file.exists());
+	}
+}
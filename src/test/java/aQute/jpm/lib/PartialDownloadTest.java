@@ -0,0 +1,137 @@
+package aQute.jpm.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import aQute.lib.io.IO;
+import aQute.libg.cryptography.SHA1;
+import junit.framework.TestCase;
+
+public class PartialDownloadTest extends TestCase {
+	static final byte[]	CONTENT	= new byte[300000];
+	static {
+		new Random(42).nextBytes(CONTENT);
+	}
+
+	HttpServer			server;
+	URI					uri;
+	File				repo;
+	final List<String>	ranges	= new ArrayList<String>();
+	final Transport		transport	= new Transport(1000, 1000, 2);
+	int					breakAt;
+	boolean				supportsRanges	= true;
+
+	@Override
+	protected void setUp() throws Exception {
+		repo = new File(System.getProperty("java.io.tmpdir"), "jpm-partial-test");
+		IO.delete(repo);
+		IO.mkdirs(repo);
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/a.jar", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				String range = exchange.getRequestHeaders().getFirst("Range");
+				ranges.add(range);
+				int from = 0;
+				exchange.getResponseHeaders().set("ETag", "\"v1\"");
+				if (supportsRanges && range != null
+						&& "\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-Range"))) {
+					from = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+					exchange.getResponseHeaders().set("Content-Range",
+							"bytes " + from + "-" + (CONTENT.length - 1) + "/" + CONTENT.length);
+					exchange.sendResponseHeaders(206, CONTENT.length - from);
+				} else
+					exchange.sendResponseHeaders(200, CONTENT.length);
+
+				try (OutputStream out = exchange.getResponseBody()) {
+					if (breakAt > from) {
+						out.write(CONTENT, from, breakAt - from);
+						out.flush();
+						breakAt = 0;
+						// abort the transfer halfway
+						throw new IOException("broken");
+					}
+					out.write(CONTENT, from, CONTENT.length - from);
+				}
+			}
+		});
+		server.start();
+		uri = new URI("http://127.0.0.1:" + server.getAddress().getPort() + "/a.jar");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop(0);
+		IO.delete(repo);
+	}
+
+	public void testComplete() throws Exception {
+		PartialDownload partial = new PartialDownload(repo, "key");
+		DigestingInputStream in = partial.fetch(transport, uri, SHA1.digest(CONTENT).digest(), CONTENT.length);
+		assertTrue(Arrays.equals(CONTENT, IO.read(partial.file)));
+		assertEquals(CONTENT.length, in.getCount());
+		assertEquals(Arrays.asList((String) null), ranges);
+	}
+
+	public void testResumeBrokenTransfer() throws Exception {
+		breakAt = 100000;
+		PartialDownload partial = new PartialDownload(repo, "key");
+		DigestingInputStream in = partial.fetch(transport, uri, SHA1.digest(CONTENT).digest(), CONTENT.length);
+		assertTrue(Arrays.equals(CONTENT, IO.read(partial.file)));
+		assertEquals(CONTENT.length, in.getCount());
+		assertEquals(2, ranges.size());
+		assertNull(ranges.get(0));
+		assertTrue(ranges.get(1).startsWith("bytes="));
+	}
+
+	public void testResumeNextAttempt() throws Exception {
+		PartialDownload partial = new PartialDownload(repo, "key");
+		IO.mkdirs(partial.file.getParentFile());
+		IO.copy(Arrays.copyOf(CONTENT, 1000), partial.file);
+		PartialDownload.Validator v = new PartialDownload.Validator();
+		v.url = uri;
+		v.etag = "\"v1\"";
+		JustAnotherPackageManager.codec.enc().to(partial.meta).put(v);
+
+		DigestingInputStream in = partial.fetch(transport, uri, SHA1.digest(CONTENT).digest(), CONTENT.length);
+		assertTrue(Arrays.equals(CONTENT, IO.read(partial.file)));
+		assertEquals(CONTENT.length, in.getCount());
+		assertEquals(Arrays.asList("bytes=1000-"), ranges);
+	}
+
+	public void testRestartWhenRangesNotSupported() throws Exception {
+		supportsRanges = false;
+		PartialDownload partial = new PartialDownload(repo, "key");
+		IO.mkdirs(partial.file.getParentFile());
+		IO.copy(Arrays.copyOf(CONTENT, 1000), partial.file);
+		PartialDownload.Validator v = new PartialDownload.Validator();
+		v.url = uri;
+		v.etag = "\"v1\"";
+		JustAnotherPackageManager.codec.enc().to(partial.meta).put(v);
+
+		partial.fetch(transport, uri, SHA1.digest(CONTENT).digest(), CONTENT.length);
+		assertTrue(Arrays.equals(CONTENT, IO.read(partial.file)));
+	}
+
+	public void testWrongShaDiscardsPartial() throws Exception {
+		PartialDownload partial = new PartialDownload(repo, "key");
+		try {
+			partial.fetch(transport, uri, new byte[20], CONTENT.length);
+			fail("expected sha failure");
+		} catch (IOException e) {
+			assertFalse(partial.file.exists());
+			assertFalse(partial.meta.exists());
+		}
+	}
+}
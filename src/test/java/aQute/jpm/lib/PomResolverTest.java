@@ -0,0 +1,152 @@
+package aQute.jpm.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import aQute.lib.io.IO;
+import aQute.service.library.Coordinate;
+import aQute.service.library.Library.Revision;
+import aQute.service.library.Library.RevisionRef;
+import junit.framework.TestCase;
+
+public class PomResolverTest extends TestCase {
+	File				dir;
+	File				repo;
+	MavenCentralLibrary	library;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = new File(System.getProperty("java.io.tmpdir"), "jpm-pom-test");
+		IO.delete(dir);
+		repo = new File(dir, "repo");
+		IO.mkdirs(repo);
+
+		pom("parent", "1", "<packaging>pom</packaging>"
+				+ "<properties><lib.version>2.0</lib.version></properties>"
+				+ "<dependencyManagement><dependencies>"
+				+ dep("lib", "${lib.version}", null)
+				+ dep("bom", "1", "<type>pom</type><scope>import</scope>")
+				+ "</dependencies></dependencyManagement>");
+		pom("bom", "1", "<packaging>pom</packaging><dependencyManagement><dependencies>"
+				+ dep("deep", "1.5", null) + "</dependencies></dependencyManagement>");
+
+		artifact("app", "1.0", "<parent><groupId>org.example</groupId><artifactId>parent</artifactId>"
+				+ "<version>1</version></parent>"
+				+ "<dependencies>"
+				+ "<dependency><groupId>${project.groupId}</groupId><artifactId>lib</artifactId></dependency>"
+				+ dep("other", "1.0", "<exclusions><exclusion><groupId>org.example</groupId>"
+						+ "<artifactId>bad</artifactId></exclusion></exclusions>")
+				+ dep("junit", "4.0", "<scope>test</scope>")
+				+ dep("opt", "1.0", "<optional>true</optional>")
+				+ "</dependencies>");
+		artifact("lib", "2.0", "<dependencies>" + dep("deep", "1.0", null) + dep("shared", "2.0", null)
+				+ "</dependencies>");
+		artifact("other", "1.0", "<dependencies>" + dep("shared", "1.0", null) + dep("bad", "1.0", null)
+				+ dep("ranged", "[1.0,2.0)", null) + "</dependencies>");
+		artifact("deep", "1.0", "");
+		artifact("deep", "1.5", "<dependencies>" + dep("rt", "1.0", "<scope>runtime</scope>")
+				+ dep("prov", "1.0", "<scope>provided</scope>") + "</dependencies>");
+		artifact("shared", "1.0", "");
+		artifact("shared", "2.0", "");
+		artifact("bad", "1.0", "");
+		artifact("ranged", "1.0", "");
+		artifact("ranged", "1.2", "");
+		artifact("ranged", "2.0", "");
+		artifact("rt", "1.0", "");
+		artifact("opt", "1.0", "");
+		artifact("junit", "4.0", "");
+		artifact("prov", "1.0", "");
+
+		HttpCache cache = new HttpCache(new File(dir, "cache"), new Transport(2000, 2000, 0), 60000, 1024 * 1024);
+		library = new MavenCentralLibrary(repo.toURI(), cache);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		IO.delete(dir);
+	}
+
+	static String dep(String artifactId, String version, String extra) {
+		return "<dependency><groupId>org.example</groupId><artifactId>" + artifactId + "</artifactId>"
+				+ (version == null ? "" : "<version>" + version + "</version>") + (extra == null ? "" : extra)
+				+ "</dependency>";
+	}
+
+	File pom(String artifactId, String version, String body) throws Exception {
+		File vdir = new File(repo, "org/example/" + artifactId + "/" + version);
+		IO.mkdirs(vdir);
+		IO.store("<project><modelVersion>4.0.0</modelVersion><groupId>org.example</groupId><artifactId>"
+				+ artifactId + "</artifactId><version>" + version + "</version>" + body + "</project>",
+				new File(vdir, artifactId + "-" + version + ".pom"));
+		return vdir;
+	}
+
+	void artifact(String artifactId, String version, String body) throws Exception {
+		File vdir = pom(artifactId, version, body);
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().putValue("Manifest-Version", "1.0");
+		manifest.getMainAttributes().putValue("Bundle-SymbolicName", artifactId);
+		manifest.getMainAttributes().putValue("Bundle-Version", version);
+		new JarOutputStream(bout, manifest).close();
+		IO.copy(bout.toByteArray(), new File(vdir, artifactId + "-" + version + ".jar"));
+	}
+
+	List<String> closure(String coordinate, boolean optionals) throws Exception {
+		Revision r = library.getRevisionByCoordinate(new Coordinate(coordinate));
+		List<String> result = new ArrayList<String>();
+		for (RevisionRef ref : library.getClosure(r._id, optionals))
+			result.add(ref.artifactId + "@" + ref.version);
+		return result;
+	}
+
+	public void testClosure() throws Exception {
+		assertEquals(Arrays.asList("lib@2.0", "other@1.0", "deep@1.5", "shared@2.0", "ranged@1.2", "rt@1.0"),
+				closure("org.example:app@1.0", false));
+	}
+
+	public void testOptionals() throws Exception {
+		assertEquals(Arrays.asList("lib@2.0", "other@1.0", "opt@1.0", "deep@1.5", "shared@2.0", "ranged@1.2",
+				"rt@1.0"), closure("org.example:app@1.0", true));
+	}
+
+	public void testWithoutManagement() throws Exception {
+		assertEquals(Arrays.asList("deep@1.0", "shared@2.0"), closure("org.example:lib@2.0", false));
+	}
+
+	public void testParentsAreMemoized() throws Exception {
+		closure("org.example:app@1.0", false);
+		artifact("app2", "1.0", "<parent><groupId>org.example</groupId><artifactId>parent</artifactId>"
+				+ "<version>1</version></parent><dependencies>"
+				+ "<dependency><groupId>org.example</groupId><artifactId>lib</artifactId></dependency>"
+				+ "</dependencies>");
+		IO.delete(new File(repo, "org/example/parent"));
+		IO.delete(new File(repo, "org/example/bom"));
+		assertEquals(Arrays.asList("lib@2.0", "deep@1.5", "shared@2.0", "rt@1.0"),
+				closure("org.example:app2@1.0", false));
+	}
+
+	public void testInterpolation() throws Exception {
+		Map<String,String> properties = new HashMap<String,String>();
+		properties.put("x", "${y}");
+		properties.put("y", "1.0");
+		assertEquals("a-1.0-b", PomResolver.interpolate("a-${x}-b", properties));
+		assertEquals("${unknown}", PomResolver.interpolate("${unknown}", properties));
+	}
+
+	/**
+	 * Only the properties of the project, not those of a profile
+	 */
+	public void testParseProperties() throws Exception {
+		PomResolver.Pom pom = PomResolver.parse(IO.stream("<project><properties><a>1</a></properties>"
+				+ "<profiles><profile><properties><b>2</b></properties></profile></profiles></project>"));
+		assertEquals("{a=1}", pom.properties.toString());
+	}
+}
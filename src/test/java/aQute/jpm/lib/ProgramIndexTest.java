@@ -0,0 +1,127 @@
+package aQute.jpm.lib;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import aQute.lib.io.IO;
+import aQute.service.library.Library.Program;
+import aQute.service.library.Library.Revision;
+import junit.framework.TestCase;
+
+public class ProgramIndexTest extends TestCase {
+	File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = new File(System.getProperty("java.io.tmpdir"), "jpm-program-index-test");
+		IO.delete(dir);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		IO.delete(dir);
+	}
+
+	public void testFindByPrefixAndField() throws Exception {
+		ProgramIndex index = fill(new ProgramIndex(dir));
+
+		assertEquals("[commons-lang3, commons-io, guava]", names(index.find("commons", 0, 0)));
+		assertEquals("[commons-lang3]", names(index.find("comm lang", 0, 0)));
+		assertEquals("[guava]", names(index.find("Google CORE", 0, 0)));
+		assertEquals("[]", names(index.find("commons nothing", 0, 0)));
+		// artifact hits before description hits
+		assertEquals("[jackson-core, guava]", names(index.find("core", 0, 0)));
+	}
+
+	public void testRankAndVote() throws Exception {
+		ProgramIndex index = fill(new ProgramIndex(dir));
+		assertEquals("[commons-lang3, commons-io, jackson-core, guava]", names(index.find("", 0, 0)));
+	}
+
+	public void testSkipAndLimit() throws Exception {
+		ProgramIndex index = fill(new ProgramIndex(dir));
+		assertEquals("[commons-io, jackson-core]", names(index.find("", 1, 2)));
+		assertEquals("[guava]", names(index.find("", 3, 2)));
+		assertEquals("[]", names(index.find("", 4, 2)));
+	}
+
+	public void testUpdate() throws Exception {
+		ProgramIndex index = fill(new ProgramIndex(dir));
+		Program p = program("org.apache.commons", "commons-io", 0, 0, "Streams and files");
+		index.add(p);
+		assertEquals(4, index.size());
+		assertEquals("[commons-lang3]", names(index.find("utilities", 0, 0)));
+		assertEquals("[commons-io]", names(index.find("streams", 0, 0)));
+		// rank is kept when the update does not know it
+		assertEquals("[commons-lang3, commons-io, jackson-core, guava]", names(index.find("", 0, 0)));
+
+		Revision r = new Revision();
+		r.groupId = "org.example";
+		r.artifactId = "tool";
+		r.version = "1.0";
+		r.description = "A command line tool";
+		index.add(r);
+		assertEquals("[tool]", names(index.find("command", 0, 0)));
+	}
+
+	public void testPersisted() throws Exception {
+		ProgramIndex index = fill(new ProgramIndex(dir));
+		index.save();
+		assertTrue(new File(dir, ProgramIndex.POSTINGS).isFile());
+
+		ProgramIndex next = new ProgramIndex(dir);
+		assertEquals(4, next.size());
+		assertEquals("[commons-lang3, commons-io, guava]", names(next.find("commons", 0, 0)));
+		assertEquals("[jackson-core, guava]", names(next.find("core", 0, 0)));
+
+		next.add(program("org.example", "tool", 0, 0, "more commons"));
+		next.save();
+		assertEquals("[commons-lang3, commons-io, guava, tool]", names(new ProgramIndex(dir).find("commons", 0, 0)));
+	}
+
+	public void testCorruptPostingsAreRebuilt() throws Exception {
+		ProgramIndex index = fill(new ProgramIndex(dir));
+		index.save();
+		try (RandomAccessFile raf = new RandomAccessFile(new File(dir, ProgramIndex.POSTINGS), "rw")) {
+			raf.setLength(20);
+		}
+		ProgramIndex next = new ProgramIndex(dir);
+		assertEquals("[commons-lang3, commons-io, guava]", names(next.find("commons", 0, 0)));
+
+		IO.delete(new File(dir, ProgramIndex.POSTINGS));
+		assertEquals("[jackson-core, guava]", names(new ProgramIndex(dir).find("core", 0, 0)));
+	}
+
+	static ProgramIndex fill(ProgramIndex index) {
+		index.add(program("com.google.guava", "guava", 0, 1, "Google core libraries, used by commons"));
+		index.add(program("org.apache.commons", "commons-io", 1, 5, "IO utilities"));
+		index.add(program("org.apache.commons", "commons-lang3", 2, 0, "Java lang utilities"));
+		index.add(program("com.fasterxml.jackson.core", "jackson-core", 0, 3, "Streaming JSON"));
+		return index;
+	}
+
+	static Program program(String groupId, String artifactId, int rank, int vote, String description) {
+		Program p = new Program();
+		p.groupId = groupId;
+		p.artifactId = artifactId;
+		p.rank = rank;
+		p.vote = vote;
+		p.last = new Revision();
+		p.last.groupId = groupId;
+		p.last.artifactId = artifactId;
+		p.last.version = "1.0";
+		p.last.description = description;
+		return p;
+	}
+
+	static String names(List<Program> programs) {
+		StringBuilder sb = new StringBuilder("[");
+		String del = "";
+		for (Program p : programs) {
+			sb.append(del).append(p.artifactId);
+			del = ", ";
+		}
+		return sb.append("]").toString();
+	}
+}
@@ -0,0 +1,239 @@
+package aQute.jpm.lib;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import aQute.lib.hex.Hex;
+import aQute.lib.io.IO;
+import junit.framework.TestCase;
+
+public class RepoIndexTest extends TestCase {
+	File					dir;
+	RepoLayout				layout;
+	final List<RepoIndex>	indexes	= new ArrayList<RepoIndex>();
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = new File(System.getProperty("java.io.tmpdir"), "jpm-index-test");
+		IO.delete(dir);
+		IO.mkdirs(dir);
+		layout = new RepoLayout(dir);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (RepoIndex index : indexes)
+			index.close();
+		IO.delete(dir);
+	}
+
+	RepoIndex index() {
+		RepoIndex index = new RepoIndex(layout);
+		indexes.add(index);
+		return index;
+	}
+
+	public void testBinarySearch() throws Exception {
+		for (int i = 0; i < 50; i++)
+			artifact(i * 5, i % 7 == 0);
+		RepoIndex index = index();
+		index.open();
+		assertEquals(50, header(1));
+		assertEquals(50, header(2));
+
+		for (int i = 0; i < 50; i++) {
+			byte[] sha = sha(i * 5);
+			ArtifactData data = index.get(sha);
+			assertNotNull(data);
+			String hex = Hex.toHexString(sha);
+			File file = i % 7 == 0 ? layout.getLegacyFile(hex) : layout.getFile(hex);
+			assertEquals(file.getAbsolutePath(), data.file);
+			assertEquals(file.length(), data.size);
+			assertEquals("name-" + i * 5, data.name);
+			assertEquals(1000L + i * 5, data.time);
+		}
+		assertNull(index.get(sha(1)));
+		assertNull(index.get(sha(251)));
+		assertNull(index.get(new byte[3]));
+	}
+
+	public void testTail() throws Exception {
+		RepoIndex index = index();
+		index.open();
+		assertEquals(0, header(2));
+
+		for (int i = 9; i >= 0; i--)
+			index.add(artifact(i, false), false);
+		assertEquals(0, header(1));
+		assertEquals(10, header(2));
+		for (int i = 0; i < 10; i++)
+			assertEquals("name-" + i, index.get(sha(i)).name);
+		assertNull(index.get(sha(10)));
+
+		// another process sees the tail
+		RepoIndex other = index();
+		other.open();
+		assertEquals("name-3", other.get(sha(3)).name);
+	}
+
+	public void testCompaction() throws Exception {
+		RepoIndex index = index();
+		index.open();
+		int n = RepoIndex.MAX_TAIL + 1;
+		for (int i = 0; i < n; i++)
+			index.add(artifact(n - i, false), false);
+		assertEquals(n, header(1));
+		assertEquals(n, header(2));
+		for (int i = 1; i <= n; i++)
+			assertEquals("name-" + i, index.get(sha(i)).name);
+
+		index.add(artifact(1000, false), false);
+		assertEquals(n, header(1));
+		assertEquals(n + 1, header(2));
+		assertNotNull(index.get(sha(1000)));
+	}
+
+	/**
+	 * An artifact that another process added since we mapped the index is not
+	 * appended again
+	 */
+	public void testNoDuplicates() throws Exception {
+		RepoIndex a = index();
+		RepoIndex b = index();
+		a.open();
+		b.open();
+
+		ArtifactData data = artifact(1, false);
+		a.add(data, false);
+		a.add(data, false);
+		b.add(data, false);
+		assertEquals(1, header(2));
+
+		for (int i = 2; i < 20; i++)
+			a.add(artifact(i, false), false);
+		b.add(artifact(7, false), false);
+		assertEquals(19, header(2));
+	}
+
+	/**
+	 * A rebuild rewrites the same file, an append by another process after
+	 * the rebuild is not lost
+	 */
+	public void testRebuildKeepsAppends() throws Exception {
+		RepoIndex a = index();
+		RepoIndex b = index();
+		a.open();
+		b.open();
+		a.add(artifact(1, false), false);
+
+		artifact(2, true);
+		b.rebuild();
+		assertEquals(2, header(2));
+		a.add(artifact(3, false), false);
+
+		RepoIndex c = index();
+		c.open();
+		assertNotNull(c.get(sha(1)));
+		assertEquals(layout.getLegacyFile(Hex.toHexString(sha(2))).getAbsolutePath(), c.get(sha(2)).file);
+		assertNotNull(c.get(sha(3)));
+		assertEquals(3, header(2));
+	}
+
+	public void testCorruptIndex() throws Exception {
+		artifact(1, false);
+		artifact(2, false);
+		IO.store("this is not an index, just some text that is long enough", new File(dir, RepoIndex.INDEX));
+
+		RepoIndex index = index();
+		index.open();
+		assertNotNull(index.get(sha(1)));
+		assertNotNull(index.get(sha(2)));
+
+		// truncated in the middle of a record
+		try (RandomAccessFile raf = new RandomAccessFile(new File(dir, RepoIndex.INDEX), "rw")) {
+			raf.setLength(RepoIndex.HEADER + RepoIndex.RECORD + 10);
+		}
+		index = index();
+		index.open();
+		assertEquals(2, header(2));
+		assertNotNull(index.get(sha(2)));
+
+		// corrupted while open, an add rebuilds it
+		try (RandomAccessFile raf = new RandomAccessFile(new File(dir, RepoIndex.INDEX), "rw")) {
+			raf.writeInt(0);
+		}
+		index.add(artifact(3, false), false);
+		assertEquals(RepoIndex.MAGIC, header(-1));
+		assertEquals(3, header(2));
+		assertNotNull(index.get(sha(3)));
+	}
+
+	/**
+	 * Another process compacts the index in place, the records move under an
+	 * open index
+	 */
+	public void testCompactedByOther() throws Exception {
+		RepoIndex a = index();
+		RepoIndex b = index();
+		a.open();
+		b.open();
+		a.add(artifact(1000, false), false);
+		assertNotNull(a.get(sha(1000)));
+
+		for (int i = 0; i <= RepoIndex.MAX_TAIL; i++)
+			b.add(artifact(i, false), false);
+		assertTrue(header(1) > 1);
+
+		for (int i = 0; i <= RepoIndex.MAX_TAIL; i++)
+			assertEquals("name-" + i, a.get(sha(i)).name);
+		assertEquals("name-1000", a.get(sha(1000)).name);
+	}
+
+	public void testRemovedAfterRebuild() throws Exception {
+		RepoIndex index = index();
+		index.open();
+		index.add(artifact(1, false), false);
+		assertNotNull(index.get(sha(1)));
+
+		IO.delete(layout.getFile(Hex.toHexString(sha(1))));
+		index().rebuild();
+		assertNull(index.get(sha(1)));
+	}
+
+	/**
+	 * Create a binary with metadata in the repository
+	 */
+	ArtifactData artifact(int n, boolean legacy) throws Exception {
+		String hex = Hex.toHexString(sha(n));
+		ArtifactData data = new ArtifactData();
+		data.sha = sha(n);
+		data.name = "name-" + n;
+		data.time = 1000L + n;
+		File file = legacy ? layout.getLegacyFile(hex) : layout.prepare(hex);
+		IO.store("content " + n, file);
+		data.size = file.length();
+		IO.store(JustAnotherPackageManager.codec.enc().put(data).toString(), new File(file.getParentFile(),
+				hex + RepoLayout.JSON));
+		return data;
+	}
+
+	static byte[] sha(int n) {
+		byte[] sha = new byte[RepoIndex.SHA];
+		sha[0] = (byte) (n >> 8);
+		sha[1] = (byte) n;
+		sha[19] = (byte) 0xA5;
+		return sha;
+	}
+
+	/**
+	 * Answer the header field after the magic: 0 version, 1 sorted, 2 count
+	 */
+	int header(int field) throws Exception {
+		try (RandomAccessFile raf = new RandomAccessFile(new File(dir, RepoIndex.INDEX), "r")) {
+			raf.seek(4 + field * 4);
+			return raf.readInt();
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package aQute.jpm.lib;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import aQute.lib.io.IO;
+import junit.framework.TestCase;
+
+public class RepoLayoutTest extends TestCase {
+	static final String	A	= "0123456789ABCDEF0123456789ABCDEF01234567";
+	static final String	B	= "ABCDEF0123456789ABCDEF0123456789ABCDEF01";
+	static final String	C	= "FEDCBA9876543210FEDCBA9876543210FEDCBA98";
+
+	File				dir;
+	RepoLayout			layout;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = new File(System.getProperty("java.io.tmpdir"), "jpm-layout-test");
+		IO.delete(dir);
+		IO.mkdirs(dir);
+		layout = new RepoLayout(dir);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		IO.delete(dir);
+	}
+
+	public void testLocations() throws Exception {
+		assertEquals(new File(dir, "01/23/" + A), layout.getFile(A));
+		assertEquals(new File(dir, "01/23/" + A + ".json"), layout.getMeta(A));
+		assertNull(layout.find(A));
+
+		IO.store("legacy", layout.getLegacyFile(A));
+		assertEquals(layout.getLegacyFile(A), layout.find(A));
+		IO.store("sharded", layout.prepare(A));
+		assertEquals(layout.getFile(A), layout.find(A));
+	}
+
+	public void testMigrate() throws Exception {
+		flat(A);
+		flat(B);
+		flat(C);
+		IO.store("service", new File(dir, "service.jar"));
+		assertFalse(layout.isMigrated());
+
+		assertEquals(2, layout.migrate(Collections.singleton(B)));
+		assertTrue(layout.isMigrated());
+
+		assertEquals("content " + A, IO.collect(layout.getFile(A)));
+		assertEquals("meta " + A, IO.collect(layout.getMeta(A)));
+		assertFalse(layout.getLegacyFile(A).exists());
+		assertFalse(layout.getLegacyMeta(A).exists());
+		assertEquals(layout.getFile(C), layout.find(C));
+
+		// in use, launchers refer to it by path
+		assertEquals(layout.getLegacyFile(B), layout.find(B));
+		assertEquals(layout.getLegacyMeta(B), layout.findMeta(B));
+		assertTrue(new File(dir, "service.jar").isFile());
+		assertEquals(3, layout.list().size());
+	}
+
+	/**
+	 * A migration that stopped half way is completed by the next one
+	 */
+	public void testInterruptedMigration() throws Exception {
+		// A moved, its metadata not yet
+		IO.store("content " + A, layout.prepare(A));
+		IO.store("meta " + A, layout.getLegacyMeta(A));
+		// B moved but also still in the flat directory
+		flat(B);
+		IO.store("content " + B, layout.prepare(B));
+		IO.store("meta " + B, layout.getMeta(B));
+		// C not moved at all
+		flat(C);
+
+		assertEquals(layout.getLegacyMeta(A), layout.findMeta(A));
+		layout.migrate(Collections.<String> emptySet());
+
+		assertEquals(layout.getMeta(A), layout.findMeta(A));
+		assertEquals("meta " + A, IO.collect(layout.getMeta(A)));
+		assertEquals(layout.getFile(B), layout.find(B));
+		assertFalse(layout.getLegacyFile(B).exists());
+		assertFalse(layout.getLegacyMeta(B).exists());
+		assertEquals(layout.getFile(C), layout.find(C));
+		assertEquals(layout.getMeta(C), layout.findMeta(C));
+
+		String[] left = dir.list();
+		Arrays.sort(left);
+		assertEquals("[.layout, 01, AB, FE]", Arrays.toString(left));
+	}
+
+	public void testGc() throws Exception {
+		IO.store("a", layout.prepare(A));
+		IO.store("a", layout.getMeta(A));
+		IO.store("b", layout.prepare(B));
+		IO.store("b", layout.getMeta(B));
+		flat(C);
+		IO.store("service", new File(dir, "service.jar"));
+		IO.store(RepoLayout.VERSION, new File(dir, RepoLayout.MARKER));
+		IO.store("other", new File(layout.getShard(A), "README"));
+
+		Set<String> keep = new HashSet<String>(Arrays.asList(A, C));
+		assertEquals(2, layout.gc(keep));
+		assertEquals(layout.getFile(A), layout.find(A));
+		assertEquals(layout.getMeta(A), layout.findMeta(A));
+		assertNull(layout.find(B));
+		assertNull(layout.findMeta(B));
+		assertFalse(layout.getShard(B).exists());
+		assertFalse(layout.getShard(B).getParentFile().exists());
+		assertEquals(layout.getLegacyFile(C), layout.find(C));
+		assertTrue(new File(dir, "service.jar").isFile());
+		assertTrue(new File(dir, RepoLayout.MARKER).isFile());
+		assertTrue(new File(layout.getShard(A), "README").isFile());
+
+		assertEquals(4, layout.gc(Collections.<String> emptySet()));
+		assertTrue(layout.list().isEmpty());
+		assertTrue(new File(dir, "service.jar").isFile());
+	}
+
+	public void testIsSha() throws Exception {
+		assertTrue(RepoLayout.isSha(A));
+		assertTrue(RepoLayout.isSha(A.toLowerCase()));
+		assertFalse(RepoLayout.isSha(A.substring(1)));
+		assertFalse(RepoLayout.isSha(A + "0"));
+		assertFalse(RepoLayout.isSha(A + ".json"));
+		assertFalse(RepoLayout.isSha("service.jar"));
+		assertFalse(RepoLayout.isSha(""));
+		assertFalse(RepoLayout.isSha("G123456789ABCDEF0123456789ABCDEF01234567"));
+		// digits that are not ASCII
+		assertFalse(RepoLayout.isSha("\u0660123456789ABCDEF0123456789ABCDEF01234567"));
+		assertFalse(RepoLayout.isSha("\uff10123456789ABCDEF0123456789ABCDEF01234567"));
+	}
+
+	void flat(String hex) throws Exception {
+		IO.store("content " + hex, layout.getLegacyFile(hex));
+		IO.store("meta " + hex, layout.getLegacyMeta(hex));
+	}
+}
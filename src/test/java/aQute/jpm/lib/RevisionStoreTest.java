@@ -0,0 +1,145 @@
+package aQute.jpm.lib;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import aQute.lib.io.IO;
+import aQute.service.library.Library.Capability;
+import aQute.service.library.Library.Phase;
+import aQute.service.library.Library.Revision;
+import junit.framework.TestCase;
+
+public class RevisionStoreTest extends TestCase {
+	File	dir;
+	File	file;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = new File(System.getProperty("java.io.tmpdir"), "jpm-revision-store-test");
+		IO.delete(dir);
+		file = new File(dir, "revisions.json");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		IO.delete(dir);
+	}
+
+	public void testEquality() throws Exception {
+		RevisionStore store = fill(new RevisionStore(null));
+		assertEquals("[a-1.0, a-1.1, a-2.0]", versions(store.find().where("program", "g:a")));
+		assertEquals("[a-1.1]", versions(store.find().bsn("g.a").version("1.1")));
+		assertEquals("[a-2.0, b-1.0-SNAPSHOT]", versions(store.find().where("phase", Phase.STAGING)));
+		assertEquals("[a-2.0, b-1.0-SNAPSHOT]", versions(store.find().where("phase", "STAGING")));
+		assertEquals("[]", versions(store.find().where("program", "g:a").where("program", "g:b")));
+		assertEquals("[b-1.0-SNAPSHOT]", versions(store.find().where("packaging", "war")));
+		assertEquals(4, store.find().count());
+	}
+
+	public void testRangeAndOrder() throws Exception {
+		RevisionStore store = fill(new RevisionStore(null));
+		assertEquals("[a-1.1, a-2.0]", versions(store.find().from(2000).until(3000)));
+		assertEquals("[a-2.0, a-1.1, a-1.0]", versions(store.find().where("program", "g:a").descending("created")));
+		assertEquals("[b-1.0-SNAPSHOT, a-2.0, a-1.1, a-1.0]", versions(store.find().descending("created")));
+		assertEquals("[a-1.1, a-2.0]", versions(store.find().ascending("modified").where("modified", 20, null)));
+		assertEquals("[a-1.0, b-1.0-SNAPSHOT, a-1.1, a-2.0]", versions(store.find().ascending("version")));
+		assertEquals("[a-1.1, a-2.0]", versions(store.find().ascending("created").skip(1).limit(2)));
+		assertEquals("a-2.0", name(store.find().where("program", "g:a").descending("created").first()));
+	}
+
+	public void testTemplateQueryAndCapability() throws Exception {
+		RevisionStore store = fill(new RevisionStore(null));
+		Revision template = new Revision();
+		template.phase = null;
+		template.artifactId = "a";
+		template.version = "2.0";
+		assertEquals("a-2.0", name(store.find().template(template).one()));
+		assertEquals("[a-1.0]", versions(store.find().query("FIRST release")));
+		assertEquals("[a-1.1]", versions(store.find().capability("osgi.wiring.package", "osgi.wiring.package", "x")));
+		assertEquals("[a-1.1]", versions(store.find().capability("osgi.wiring.package", null, null)));
+		assertNull(store.find().bsn("none").one());
+		try {
+			store.find().where("program", "g:a").one();
+			fail("more than one");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			store.find().where("nonsense", "x");
+			fail("unknown field");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testCallbackStops() throws Exception {
+		RevisionStore store = fill(new RevisionStore(null));
+		List<String> seen = new ArrayList<String>();
+		assertFalse(store.find().ascending("created").callback(r -> {
+			seen.add(name(r));
+			return seen.size() < 2;
+		}));
+		assertEquals("[a-1.0, a-1.1]", seen.toString());
+		assertTrue(store.find().callback(r -> true));
+	}
+
+	public void testReplaceAndPersist() throws Exception {
+		RevisionStore store = fill(new RevisionStore(file));
+		Revision r = revision("a", "2.0", 3, Phase.MASTER, 40);
+		store.add(r);
+		assertEquals(4, store.size());
+		assertEquals("[a-2.0]", versions(store.find().where("modified", 40, 40)));
+		assertEquals("[b-1.0-SNAPSHOT]", versions(store.find().where("phase", Phase.STAGING)));
+		store.save();
+
+		RevisionStore next = new RevisionStore(file);
+		assertEquals(4, next.size());
+		assertEquals("[a-1.0, a-1.1, a-2.0]", versions(next.find().where("phase", Phase.MASTER)));
+		assertEquals("a-2.0", name(next.get(r._id)));
+		assertEquals("[a-2.0]", versions(next.find().where("_id", r._id)));
+	}
+
+	static RevisionStore fill(RevisionStore store) {
+		store.add(revision("a", "1.0", 1, Phase.MASTER, 10));
+		Revision r = revision("a", "1.1", 2, Phase.MASTER, 20);
+		Capability c = new Capability();
+		c.ns = "osgi.wiring.package";
+		c.ps.put("osgi.wiring.package", "x");
+		r.capabilities.add(c);
+		store.add(r);
+		store.add(revision("a", "2.0", 3, Phase.STAGING, 30));
+		r = revision("b", "1.0-SNAPSHOT", 4, Phase.STAGING, 5);
+		r.packaging = "war";
+		store.add(r);
+		return store;
+	}
+
+	static Revision revision(String artifactId, String version, int n, Phase phase, long modified) {
+		Revision r = new Revision();
+		r._id = new byte[20];
+		r._id[0] = (byte) artifactId.charAt(0);
+		r._id[1] = (byte) version.hashCode();
+		r.groupId = "g";
+		r.artifactId = artifactId;
+		r.bsn = "g." + artifactId;
+		r.version = version;
+		r.created = n * 1000;
+		r.modified = modified;
+		r.phase = phase;
+		r.packaging = "jar";
+		r.description = n == 1 ? "The first release" : "Another release";
+		return r;
+	}
+
+	static String name(Revision r) {
+		return r == null ? null : r.artifactId + "-" + r.version;
+	}
+
+	static String versions(Iterable<Revision> revisions) {
+		List<String> names = new ArrayList<String>();
+		for (Revision r : revisions)
+			names.add(name(r));
+		return names.toString();
+	}
+}
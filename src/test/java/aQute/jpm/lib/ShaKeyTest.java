@@ -0,0 +1,33 @@
+package aQute.jpm.lib;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class ShaKeyTest extends TestCase {
+
+	public void testValue() throws Exception {
+		byte[] sha = new byte[20];
+		sha[0] = (byte) 0xAB;
+		ShaKey key = ShaKey.of(sha);
+		sha[1] = 1;
+		assertEquals("AB00000000000000000000000000000000000000", key.toString());
+		assertEquals(key, ShaKey.parse("ab00000000000000000000000000000000000000"));
+		assertFalse(key.matches(sha));
+		assertFalse(key.equals(ShaKey.of(sha)));
+
+		Map<ShaKey,String> map = new HashMap<ShaKey,String>();
+		map.put(key, "a");
+		assertEquals("a", map.get(ShaKey.parse(key.toString())));
+	}
+
+	public void testOrder() throws Exception {
+		ShaKey low = ShaKey.parse("0100");
+		ShaKey high = ShaKey.parse("FF00");
+		assertTrue(low.compareTo(high) < 0);
+		assertTrue(high.compareTo(low) > 0);
+		assertEquals(0, low.compareTo(ShaKey.parse("0100")));
+		assertTrue(low.compareTo(ShaKey.parse("010000")) < 0);
+	}
+}
@@ -0,0 +1,229 @@
+package aQute.jpm.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.URI;
+import java.security.KeyStore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import aQute.lib.io.IO;
+import junit.framework.TestCase;
+
+public class TransportTest extends TestCase {
+	HttpServer		server;
+	URI				base;
+	final Transport	transport	= new Transport(1000, 1000, 2);
+
+	@Override
+	protected void setUp() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.start();
+		base = new URI("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop(0);
+	}
+
+	public void testSimple() throws Exception {
+		server.createContext("/simple", reply(200, "hello"));
+		assertEquals("hello", IO.collect(transport.open(base.resolve("simple"))));
+	}
+
+	public void testRetryOnServerError() throws Exception {
+		final AtomicInteger calls = new AtomicInteger();
+		server.createContext("/flaky", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				if (calls.incrementAndGet() < 3)
+					send(exchange, 503, "busy");
+				else
+					send(exchange, 200, "ok");
+			}
+		});
+		assertEquals("ok", IO.collect(transport.open(base.resolve("flaky"))));
+		assertEquals(3, calls.get());
+	}
+
+	public void testRetriesAreBounded() throws Exception {
+		final AtomicInteger calls = new AtomicInteger();
+		server.createContext("/down", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				calls.incrementAndGet();
+				send(exchange, 500, "down");
+			}
+		});
+		try {
+			transport.open(base.resolve("down"));
+			fail("expected failure");
+		} catch (IOException e) {
+			assertEquals(3, calls.get());
+		}
+	}
+
+	public void testNotFoundIsNotRetried() throws Exception {
+		final AtomicInteger calls = new AtomicInteger();
+		server.createContext("/missing", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				calls.incrementAndGet();
+				send(exchange, 404, "missing");
+			}
+		});
+		try {
+			transport.open(base.resolve("missing"));
+			fail("expected failure");
+		} catch (FileNotFoundException e) {
+			assertEquals(1, calls.get());
+		}
+	}
+
+	public void testRedirect() throws Exception {
+		server.createContext("/old", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.getResponseHeaders().set("Location", "/new");
+				send(exchange, 302, "");
+			}
+		});
+		server.createContext("/new", reply(200, "moved"));
+		assertEquals("moved", IO.collect(transport.open(base.resolve("old"))));
+	}
+
+	public void testSafeRedirect() throws Exception {
+		URI http = new URI("http://example.org/a");
+		URI https = new URI("https://example.org/a");
+		assertTrue(Transport.isSafeRedirect(http, http));
+		assertTrue(Transport.isSafeRedirect(http, https));
+		assertTrue(Transport.isSafeRedirect(https, https));
+		assertFalse(Transport.isSafeRedirect(https, http));
+		assertFalse(Transport.isSafeRedirect(http, new URI("file:/etc/passwd")));
+	}
+
+	/**
+	 * An https server that redirects to http is not followed, and not retried
+	 */
+	public void testHttpsToHttpRedirectIsRefused() throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "jpm-transport-test");
+		IO.delete(dir);
+		IO.mkdirs(dir);
+		File keystore = new File(dir, "keystore.p12");
+		Process keytool = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/keytool").getPath(),
+				"-genkeypair", "-alias", "test", "-keyalg", "RSA", "-keysize", "2048", "-storetype", "PKCS12",
+				"-keystore", keystore.getPath(), "-storepass", "secret", "-keypass", "secret", "-dname",
+				"CN=127.0.0.1", "-ext", "san=ip:127.0.0.1", "-validity", "1").redirectErrorStream(true)
+						.start();
+		IO.drain(keytool.getInputStream());
+		assertEquals(0, keytool.waitFor());
+
+		KeyStore ks = KeyStore.getInstance("PKCS12");
+		try (FileInputStream in = new FileInputStream(keystore)) {
+			ks.load(in, "secret".toCharArray());
+		}
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(ks, "secret".toCharArray());
+		TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		tmf.init(ks);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+
+		final AtomicInteger calls = new AtomicInteger();
+		HttpsServer secure = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		secure.setHttpsConfigurator(new HttpsConfigurator(context));
+		secure.createContext("/down", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				calls.incrementAndGet();
+				exchange.getResponseHeaders().set("Location", base.resolve("plain").toString());
+				send(exchange, 302, "");
+			}
+		});
+		secure.createContext("/same", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.getResponseHeaders().set("Location", "/secure");
+				send(exchange, 302, "");
+			}
+		});
+		secure.createContext("/secure", reply(200, "secure"));
+		server.createContext("/plain", reply(200, "tampered"));
+		secure.start();
+
+		SSLSocketFactory deflt = HttpsURLConnection.getDefaultSSLSocketFactory();
+		HttpsURLConnection.setDefaultSSLSocketFactory(context.getSocketFactory());
+		try {
+			URI root = new URI("https://127.0.0.1:" + secure.getAddress().getPort() + "/");
+			assertEquals("secure", IO.collect(transport.open(root.resolve("same"))));
+			try {
+				transport.open(root.resolve("down"));
+				fail("expected the redirect to be refused");
+			} catch (ProtocolException e) {
+				assertEquals(1, calls.get());
+			}
+		} finally {
+			HttpsURLConnection.setDefaultSSLSocketFactory(deflt);
+			secure.stop(0);
+			IO.delete(dir);
+		}
+	}
+
+	public void testCompressed() throws Exception {
+		server.createContext("/meta", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				assertEquals("gzip", exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+				ByteArrayOutputStream bout = new ByteArrayOutputStream();
+				try (GZIPOutputStream gz = new GZIPOutputStream(bout)) {
+					gz.write("<metadata/>".getBytes("UTF-8"));
+				}
+				exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+				exchange.sendResponseHeaders(200, bout.size());
+				try (OutputStream out = exchange.getResponseBody()) {
+					bout.writeTo(out);
+				}
+			}
+		});
+		try (InputStream in = transport.openCompressed(base.resolve("meta"))) {
+			assertEquals("<metadata/>", IO.collect(in));
+		}
+	}
+
+	static HttpHandler reply(final int code, final String body) {
+		return new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				send(exchange, code, body);
+			}
+		};
+	}
+
+	static void send(HttpExchange exchange, int code, String body) throws IOException {
+		byte[] data = body.getBytes("UTF-8");
+		exchange.sendResponseHeaders(code, data.length == 0 ? -1 : data.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(data);
+		}
+	}
+}
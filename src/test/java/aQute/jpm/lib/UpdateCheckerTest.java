@@ -0,0 +1,200 @@
+package aQute.jpm.lib;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import aQute.jpm.lib.JustAnotherPackageManager.UpdateMemo;
+import aQute.lib.hex.Hex;
+import aQute.lib.io.IO;
+import aQute.libg.reporter.ReporterAdapter;
+import aQute.service.library.Coordinate;
+import aQute.service.library.Library.Revision;
+import junit.framework.TestCase;
+
+public class UpdateCheckerTest extends TestCase {
+	File						dir;
+	File						repo;
+	File						file;
+	JustAnotherPackageManager	jpm;
+	List<UpdateMemo>			notFound	= new ArrayList<UpdateMemo>();
+	List<UpdateMemo>			upToDate	= new ArrayList<UpdateMemo>();
+	List<UpdateMemo>			toUpdate	= new ArrayList<UpdateMemo>();
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = new File(System.getProperty("java.io.tmpdir"), "jpm-update-test");
+		IO.delete(dir);
+		repo = new File(dir, "repo");
+		file = new File(dir, "updates.json");
+
+		File tool = new File(repo, "org/example/tool");
+		IO.mkdirs(tool);
+		IO.store("<?xml version='1.0'?>\n<metadata><groupId>org.example</groupId><artifactId>tool</artifactId>"
+				+ "<versioning><latest>2.0-SNAPSHOT</latest><release>1.1</release><versions>"
+				+ "<version>1.0</version><version>1.1</version><version>2.0-SNAPSHOT</version></versions>"
+				+ "</versioning></metadata>", new File(tool, "maven-metadata.xml"));
+		for (String version : new String[] {
+			"1.0", "1.1"
+		}) {
+			File vdir = new File(tool, version);
+			IO.mkdirs(vdir);
+			IO.copy(MavenCentralLibraryTest.jar("tool-" + version), new File(vdir, "tool-" + version + ".jar"));
+		}
+		File snapshot = new File(tool, "2.0-SNAPSHOT");
+		IO.mkdirs(snapshot);
+		IO.copy(MavenCentralLibraryTest.jar("tool-2.0-SNAPSHOT"), new File(snapshot, "tool-2.0-SNAPSHOT.jar"));
+
+		System.setProperty("jpm.intest", "true");
+		jpm = new JustAnotherPackageManager(new ReporterAdapter(), null, new File(dir, "home"), new File(dir, "bin"));
+		jpm.setLibrary(repo.toURI());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		jpm.close();
+		IO.delete(dir);
+	}
+
+	CommandData installed(String name, String version) throws Exception {
+		Revision r = jpm.getLibrary().getRevisionByCoordinate(new Coordinate("org.example:tool@" + version));
+		assertNotNull(r);
+		jpm.revisionStore.add(r);
+		CommandData data = new CommandData();
+		data.name = name;
+		data.sha = r._id;
+		return data;
+	}
+
+	void list(UpdateChecker checker, List<CommandData> datas, boolean staged, boolean refresh) throws Exception {
+		notFound.clear();
+		upToDate.clear();
+		toUpdate.clear();
+		checker.listUpdates(notFound, upToDate, toUpdate, datas, staged, refresh);
+	}
+
+	public void testUpdates() throws Exception {
+		CommandData old = installed("old", "1.0");
+		CommandData latest = installed("latest", "1.1");
+		CommandData unknown = new CommandData();
+		unknown.name = "unknown";
+		unknown.sha = new byte[20];
+		List<CommandData> datas = Arrays.asList(old, latest, unknown);
+
+		UpdateChecker checker = new UpdateChecker(jpm, file, 60000);
+		list(checker, datas, false, false);
+		assertEquals(1, toUpdate.size());
+		assertSame(old, toUpdate.get(0).current);
+		assertEquals("1.1", toUpdate.get(0).best.version);
+		assertEquals(1, upToDate.size());
+		assertSame(latest, upToDate.get(0).current);
+		assertEquals(1, notFound.size());
+		assertSame(unknown, notFound.get(0).current);
+
+		list(checker, datas, true, false);
+		assertEquals(2, toUpdate.size());
+		assertEquals("2.0-SNAPSHOT", toUpdate.get(0).best.version);
+		assertEquals("2.0-SNAPSHOT", toUpdate.get(1).best.version);
+	}
+
+	public void testPersistedResultsAreReused() throws Exception {
+		List<CommandData> datas = Collections.singletonList(installed("tool", "1.0"));
+		list(new UpdateChecker(jpm, file, 60000), datas, false, false);
+		assertEquals(1, toUpdate.size());
+		assertTrue(file.isFile());
+
+		// a new release is not seen until the result is stale
+		release("1.2");
+		UpdateChecker checker = new UpdateChecker(jpm, file, 60000);
+		list(checker, datas, false, false);
+		assertEquals("1.1", toUpdate.get(0).best.version);
+
+		list(checker, datas, false, true);
+		assertEquals("1.2", toUpdate.get(0).best.version);
+
+		// an expired result is checked again
+		release("1.3");
+		Thread.sleep(20);
+		list(new UpdateChecker(jpm, file, 1), datas, false, false);
+		assertEquals("1.3", toUpdate.get(0).best.version);
+	}
+
+	public void testReinstallIsCheckedAgain() throws Exception {
+		UpdateChecker checker = new UpdateChecker(jpm, file, 60000);
+		list(checker, Collections.singletonList(installed("tool", "1.0")), false, false);
+		assertEquals(1, toUpdate.size());
+
+		list(checker, Collections.singletonList(installed("tool", "1.1")), false, false);
+		assertEquals(0, toUpdate.size());
+		assertEquals(1, upToDate.size());
+	}
+
+	/**
+	 * A command records the coordinate it was installed with, its revision
+	 * does not have to be in the revision store
+	 */
+	public void testCommandNotInStore() throws Exception {
+		ArtifactData artifact = jpm.getCandidate("org.example:tool@1.0");
+		assertNotNull(artifact);
+		CommandData data = jpm.parseCommandData(artifact);
+		data.name = "tool";
+		assertEquals("org.example:tool@1.0=", data.coordinate);
+
+		JustAnotherPackageManager other = new JustAnotherPackageManager(new ReporterAdapter(), null,
+				new File(dir, "other"), new File(dir, "other-bin"));
+		try {
+			other.setLibrary(repo.toURI());
+			assertNull(other.revisionStore.get(data.sha));
+			list(new UpdateChecker(other, file, 60000), Collections.singletonList(data), false, false);
+			assertEquals(1, toUpdate.size());
+			assertEquals("1.1", toUpdate.get(0).best.version);
+		} finally {
+			other.close();
+		}
+	}
+
+	/**
+	 * Older commands do not record their coordinate, the metadata of their
+	 * artifact has it
+	 */
+	public void testCoordinateFromMetadata() throws Exception {
+		File jar = new File(repo, "org/example/tool/1.0/tool-1.0.jar");
+		byte[] sha = MavenCentralLibraryTest.sha(jar);
+		String hex = Hex.toHexString(sha);
+		IO.copy(jar, jpm.layout.prepare(hex));
+		ArtifactData stored = new ArtifactData();
+		stored.sha = sha;
+		stored.url = jar.toURI();
+		stored.coordinate = new Coordinate("org.example:tool@1.0=");
+		IO.store(JustAnotherPackageManager.codec.enc().put(stored).toString(), jpm.layout.getMeta(hex));
+		// the index does not know the coordinate
+		assertNotNull(jpm.get(sha));
+		assertNull(jpm.get(sha).coordinate);
+
+		CommandData data = new CommandData();
+		data.name = "tool";
+		data.sha = sha;
+		assertNull(jpm.revisionStore.get(sha));
+		list(new UpdateChecker(jpm, file, 60000), Collections.singletonList(data), false, false);
+		assertEquals(1, toUpdate.size());
+		assertEquals("1.1", toUpdate.get(0).best.version);
+	}
+
+	/**
+	 * Add a release, a new library so the metadata is not memoized
+	 */
+	void release(String version) throws Exception {
+		File tool = new File(repo, "org/example/tool");
+		File vdir = new File(tool, version);
+		IO.mkdirs(vdir);
+		IO.copy(MavenCentralLibraryTest.jar("tool-" + version), new File(vdir, "tool-" + version + ".jar"));
+		String metadata = IO.collect(new File(tool, "maven-metadata.xml"));
+		metadata = metadata.replaceAll("<release>[^<]*</release>", "<release>" + version + "</release>")
+				.replace("<version>2.0-SNAPSHOT</version>",
+						"<version>" + version + "</version><version>2.0-SNAPSHOT</version>");
+		IO.store(metadata, new File(tool, "maven-metadata.xml"));
+		jpm.setLibrary(repo.toURI());
+	}
+}
@@ -0,0 +1,106 @@
+package aQute.jpm.lib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import aQute.bnd.version.MavenVersion;
+import aQute.service.library.Library.Phase;
+import junit.framework.TestCase;
+
+public class VersionIndexTest extends TestCase {
+	static final int	MASTER	= VersionIndex.mask(EnumSet.of(Phase.MASTER));
+	static final int	ALL		= VersionIndex.mask(EnumSet.allOf(Phase.class));
+
+	public void testPrefix() throws Exception {
+		VersionIndex index = new VersionIndex(Arrays.asList("1.0", "1.1", "1.10", "2.3", "2.3.1", "2.30",
+				"2.3-SNAPSHOT", "2.4-SNAPSHOT", "10.0", "20040616"));
+
+		assertEquals("1.10", index.best("1", false, MASTER));
+		assertEquals("2.3.1", index.best("2.3", false, MASTER));
+		assertEquals("2.3.1", index.best("2.3", false, ALL));
+		assertEquals("2.3-SNAPSHOT", index.best("2.3-", false, ALL));
+		assertEquals("2.30", index.best("2", false, ALL));
+		assertEquals("2.4-SNAPSHOT", index.best("2.4", false, ALL));
+		assertEquals("2.30", index.best("2", false, MASTER));
+		assertEquals("20040616", index.best(null, false, MASTER));
+		assertEquals("20040616", index.best("20040616", true, MASTER));
+		assertEquals("1.1", index.best("1.1", true, MASTER));
+		assertNull(index.best("2.4", false, MASTER));
+		assertNull(index.best("3", false, ALL));
+
+		assertEquals(Arrays.asList("2.3.1", "2.3", "2.3-SNAPSHOT"), index.matching("2.3", false, ALL));
+		assertEquals(Arrays.asList("1.10", "1.1", "1.0"), index.matching("1", false, MASTER));
+		assertEquals(Arrays.asList("2.4-SNAPSHOT", "2.3-SNAPSHOT"),
+				index.matching(null, false, VersionIndex.mask(Phase.STAGING)));
+	}
+
+	public void testLargeParts() throws Exception {
+		VersionIndex index = new VersionIndex(Arrays.asList("1.0", "999999999.1", "999999999.2", "1.99999999"));
+		assertEquals("999999999.2", index.best("999999999", false, MASTER));
+		assertEquals("999999999.1", index.best("999999999.1", false, MASTER));
+		assertEquals("1.99999999", index.best("1", false, MASTER));
+	}
+
+	/**
+	 * Compare with filtering all versions and sorting them in Maven order
+	 */
+	public void testAgainstScan() throws Exception {
+		Random random = new Random(1);
+		String[] qualifiers = {
+			"", "-SNAPSHOT", "-beta", "-RC1", ".Final", "-1"
+		};
+		for (int round = 0; round < 200; round++) {
+			List<String> versions = new ArrayList<String>();
+			for (int i = 0; i < 40; i++) {
+				StringBuilder sb = new StringBuilder().append(random.nextInt(4));
+				for (int p = random.nextInt(3); p > 0; p--)
+					sb.append('.').append(random.nextInt(12));
+				sb.append(qualifiers[random.nextInt(qualifiers.length)]);
+				if (!versions.contains(sb.toString()))
+					versions.add(sb.toString());
+			}
+			VersionIndex index = new VersionIndex(versions);
+
+			for (String prefix : new String[] {
+				null, "0", "1", "1.1", "2.1", "3.11", "1.1.1", "2.", "1.1-", "0.10.3"
+			}) {
+				for (int mask : new int[] {
+					MASTER, ALL
+				}) {
+					List<String> expected = scan(versions, prefix, false, mask);
+					assertEquals(prefix + " " + versions, expected, index.matching(prefix, false, mask));
+					assertEquals(expected.isEmpty() ? null : expected.get(0), index.best(prefix, false, mask));
+				}
+			}
+			String some = versions.get(random.nextInt(versions.size()));
+			assertEquals(scan(versions, some, true, ALL), index.matching(some, true, ALL));
+		}
+	}
+
+	static List<String> scan(List<String> versions, String prefix, boolean exact, int mask) {
+		List<String> result = new ArrayList<String>();
+		for (String v : versions) {
+			if ((VersionIndex.mask(VersionIndex.phase(v)) & mask) == 0)
+				continue;
+			if (prefix != null && !(exact ? v.equals(prefix) : matches(v, prefix)))
+				continue;
+			result.add(v);
+		}
+		Collections.sort(result, (a, b) -> {
+			int n = MavenCentralLibrary.compare(MavenVersion.parseMavenString(b), b, MavenVersion.parseMavenString(a),
+					a);
+			return n != 0 ? n : b.compareTo(a);
+		});
+		return result;
+	}
+
+	static boolean matches(String v, String prefix) {
+		return v.startsWith(prefix) && (v.length() == prefix.length()
+				|| !Character.isDigit(prefix.charAt(prefix.length() - 1))
+				|| !Character.isDigit(v.charAt(prefix.length())));
+	}
+}
@@ -0,0 +1,55 @@
+package aQute.jpm.lib;
+
+import java.util.Random;
+
+import aQute.bnd.version.Version;
+import junit.framework.TestCase;
+
+public class VersionKeyTest extends TestCase {
+
+	static int signum(int n) {
+		return n < 0 ? -1 : n > 0 ? 1 : 0;
+	}
+
+	static Version version(String baseline, String qualifier) {
+		return qualifier == null ? new Version(baseline) : new Version(baseline + "." + qualifier);
+	}
+
+	public void testSameOrderAsVersion() throws Exception {
+		String[] baselines = {
+			"0.0.0", "1.0.0", "1.0.1", "1.2.0", "1.10.0", "2.0.0", "10.0.0", "1.0.2097151", "1.0.2097152",
+			"3000000.0.0", "20200101.0.0"
+		};
+		String[] qualifiers = {
+			null, "SNAPSHOT", "alpha", "beta", "RC1", "20200101", "v1"
+		};
+		for (String ba : baselines)
+			for (String qa : qualifiers)
+				for (String bb : baselines)
+					for (String qb : qualifiers) {
+						int expected = signum(version(ba, qa).compareTo(version(bb, qb)));
+						int actual = signum(VersionKey.of(ba, qa).compareTo(VersionKey.of(bb, qb)));
+						assertEquals(ba + "." + qa + " <> " + bb + "." + qb, expected, actual);
+					}
+	}
+
+	public void testRandom() throws Exception {
+		Random random = new Random(42);
+		for (int i = 0; i < 10000; i++) {
+			String a = random.nextInt(5) + "." + random.nextInt(5) + "." + random.nextInt(3000000);
+			String b = random.nextInt(5) + "." + random.nextInt(5) + "." + random.nextInt(3000000);
+			String q = random.nextBoolean() ? null : "q" + random.nextInt(3);
+			assertEquals(signum(version(a, q).compareTo(version(b, null))),
+					signum(VersionKey.of(a, q).compareTo(VersionKey.of(b, null))));
+		}
+	}
+
+	public void testLenient() throws Exception {
+		assertEquals("1.2.0", VersionKey.of("1.2", null).toString());
+		assertEquals("0.0.0", VersionKey.of(null, null).toString());
+		assertEquals("1.2.3.foo", VersionKey.of("1.2.3.foo", null).toString());
+		assertEquals(VersionKey.of("1.2.3", "foo"), VersionKey.of("1.2.3.foo", null));
+		assertTrue(VersionKey.of("1.2.3", "foo").packed >= 0);
+		assertEquals(-1, VersionKey.of("1.2.3000000", null).packed);
+	}
+}
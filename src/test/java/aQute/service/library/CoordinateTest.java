@@ -0,0 +1,99 @@
+package aQute.service.library;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the hand written parser with the {@link Coordinate#COORDINATE_P}
+ * regular expression.
+ */
+public class CoordinateTest extends TestCase {
+
+	static final String[] SAMPLES = {
+		"foo", "org.example:tool", "org.example:tool@1.2.3", "org.example:tool:jdk8@1.2.3.beta-1*",
+		"org.example:tool:@1", "org.example:tool@", "org.example:tool@*", "org.example:tool@=", "g:a@1.0-SNAPSHOT",
+		"g:a@1.0.0-SNAPSHOT~", "g:a@1.2.3x", "g:a@1.2.3.4.5", "g:a@1.", "g:a@1..2", "g:a@.1", "g:a@x", "g:a@1x",
+		"g:a@01.002.0003", "g:a@99999999999999999999", "g:a@1.2.3.", "g__a__c@1", "g___a", "g:", ":a", "", "@1",
+		"g:a:c:d", "g:a@1@2", "g:a b", "g:a@1.2!", "g:a@1.2*=", "osgi:org.example", "sha:0123456789abcdef0123456789abcdef01234567",
+		"0123456789abcdef0123456789abcdef01234567", "0123456789ABCDEF0123456789ABCDEF01234567@1",
+		"sha:0123456789abcdef", "sha:0123456789abcdef0123456789abcdef0123456g", "sha:0G23456789abcdef0123456789abcdef01234567",
+		"sha:0123456789abcdef0123456789abcdef0123456789", "gr\u00f6up:\u00e4rtifact@1", "\u00e9t\u00e9:\ud801\udc00@1",
+		"g:a@1.2.3.\u00e9", "g.h-i_j:k.l-m_n@1.2.3.q_r-s.t"
+	};
+
+	static final String ALPHABET = "ab19.:_@-*=~!xZ\u00e9 ";
+
+	public void testSamples() throws Exception {
+		for (String s : SAMPLES)
+			compare(s);
+	}
+
+	public void testRandom() throws Exception {
+		Random random = new Random(1);
+		for (int i = 0; i < 50000; i++) {
+			int n = random.nextInt(14);
+			StringBuilder sb = new StringBuilder();
+			for (int j = 0; j < n; j++)
+				sb.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+			compare(sb.toString());
+		}
+	}
+
+	public void testVersions() throws Exception {
+		Random random = new Random(2);
+		String alphabet = "0123456789..-xS*";
+		for (int i = 0; i < 20000; i++) {
+			int n = random.nextInt(10);
+			StringBuilder sb = new StringBuilder("g:a@");
+			for (int j = 0; j < n; j++)
+				sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+			compare(sb.toString());
+		}
+	}
+
+	public void testParseIsShared() throws Exception {
+		Coordinate c = Coordinate.parse("org.example:tool@1.2.3");
+		assertSame(c, Coordinate.parse("org.example:tool@1.2.3"));
+		assertEquals("1.2.3", c.getVersion());
+		try {
+			c.getPhases().clear();
+			fail("shared coordinates are immutable");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+	}
+
+	static void compare(String s) {
+		Coordinate expected = null;
+		try {
+			expected = new Coordinate(Coordinate.COORDINATE_P.matcher(s.replaceAll("__", ":")));
+		} catch (RuntimeException e) {
+			// not a coordinate
+		}
+
+		Coordinate actual = null;
+		try {
+			actual = new Coordinate(s);
+		} catch (IllegalArgumentException e) {
+			// not a coordinate
+		}
+
+		assertEquals("valid " + s, expected != null, actual != null);
+		assertEquals("isValid " + s, Coordinate.COORDINATE_P.matcher(s.replaceAll("__", ":")).matches(),
+				actual == null ? new Coordinate("a").isValid(s) : actual.isValid(s));
+		if (expected == null)
+			return;
+
+		assertEquals(s, expected.toString(), actual.toString());
+		assertEquals(s, expected.getGroup(), actual.getGroup());
+		assertEquals(s, expected.getGroupId(), actual.getGroupId());
+		assertEquals(s, expected.getArtifactId(), actual.getArtifactId());
+		assertEquals(s, expected.getClassifier(), actual.getClassifier());
+		assertEquals(s, expected.getVersion(), actual.getVersion());
+		assertEquals(s, expected.getBaseline(), actual.getBaseline());
+		assertEquals(s, expected.getQualifier(), actual.getQualifier());
+		assertEquals(s, expected.getPhases(), actual.getPhases());
+		assertEquals(s, expected.isExact(), actual.isExact());
+	}
+}